@@ -0,0 +1,355 @@
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ *  Runs the USB4000 acquisition loop, independent of Swing, so the same code drives both the
+ *  GUI and the Headless runner.  Loads the wavelength calibration from the device, then reads
+ *  scans at the configured rate and publishes each one to a FrameRing that consumers read at
+ *  their own pace.
+ */
+
+class Acquisition implements Runnable {
+  static final int                usableStart = 22;
+  static final int                usableEnd = 3670;
+  private final DeviceSession     session;
+  private final FrameRing         ring = new FrameRing(16, 3840);
+  private final RateScheduler     scheduler = new RateScheduler();
+  private final ScanAverager      averager = new ScanAverager();
+  private final PeakDetector      peakDetector = new PeakDetector();
+  private final SpectrumProcessor processor = new SpectrumProcessor();
+  private final Colorimetry       colorimetry = new Colorimetry();
+  private final BaselineRemoval   baseline = new BaselineRemoval();
+  private final AcquisitionMetrics metrics = new AcquisitionMetrics(scheduler);
+  private static final long       TEMP_INTERVAL = 10000000000L; // Nanoseconds between PCB temperature reads
+  private long                    nextTemp;
+  private volatile boolean        findPeaks;
+  private volatile boolean        measureColor;
+  private int[]                   raw = new int[3840];
+  private final List<RunState>    listeners = new CopyOnWriteArrayList<>();
+  private final List<FrameListener> frameListeners = new CopyOnWriteArrayList<>();
+  private InfoHandler             infoHandler;
+  private volatile Calibration    calibration;
+  private volatile boolean        running;
+  private volatile state          runState = state.SCAN;
+  private volatile int            scanRate;
+  private volatile LibUsbException error;
+
+  enum state {SCAN, INFO, STOP}
+
+  interface RunState {
+    void isRunning (boolean running);
+  }
+
+  /**
+   *  Called on the acquisition thread after each frame is published
+   */
+  interface FrameListener {
+    void frameAcquired (FrameRing.Frame frame);
+  }
+
+  /**
+   *  Called on the acquisition thread to handle an INFO request
+   */
+  interface InfoHandler {
+    void showInfo (Acquisition acquisition);
+  }
+
+  Acquisition (DeviceSession session) {
+    this.session = session;
+    session.setMetrics(metrics);
+  }
+
+  void addRunStateListener (RunState listener) {
+    listeners.add(listener);
+  }
+
+  void removeRunStateListener (RunState listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   *  Listeners can be added, or removed, while scanning
+   */
+  void addFrameListener (FrameListener listener) {
+    frameListeners.add(listener);
+  }
+
+  void removeFrameListener (FrameListener listener) {
+    frameListeners.remove(listener);
+  }
+
+  void setInfoHandler (InfoHandler infoHandler) {
+    this.infoHandler = infoHandler;
+  }
+
+  public void run () {
+    // Note: run time for a scan < 20 ms
+    if (!running) {
+      running = true;
+      error = null;
+      for (RunState listener : listeners) {
+        listener.isRunning(running);
+      }
+      try {
+        String serial = session.getInfo(0);
+        if (calibration == null || !serial.equals(calibration.getSerial())) {
+          // Prefer coefficients from an earlier recalibration of this device over the EEPROM's
+          double[] coff = Recalibration.load(serial);
+          if (coff == null) {
+            coff = new double[4];
+            for (int ii = 0; ii < 4; ii++) {
+              coff[ii] = Double.parseDouble(session.getInfo(ii + 1));
+            }
+          }
+          calibration = new Calibration(coff, session.getPixels(), usableStart, usableEnd, serial);
+        }
+        metrics.register(serial);
+        switch (runState) {
+        case SCAN:
+          scheduler.start();
+          nextTemp = System.nanoTime();
+          // Scans left over from an earlier run, perhaps minutes ago, mustn't be averaged with these
+          averager.restart();
+          boolean published = false;
+          do {
+            scheduler.awaitNext();
+            ScanBuffer scan;
+            try {
+              scan = session.readScan();
+            } catch (LibUsbException ex) {
+              metrics.usbError();
+              if (scanRate == 0) {
+                throw ex;
+              }
+              // Session reopens the device on the next call, so keep retrying while scanning
+              sleep(1000);
+              continue;
+            }
+            if (!scan.isValid()) {
+              // Already resynced, so skip it, unless it was the only scan wanted
+              if (scanRate == 0) {
+                throw new LibUsbException("Incomplete scan", LibUsb.ERROR_IO);
+              }
+              continue;
+            }
+            long nanos = System.nanoTime();
+            int pixels = scan.pixelCount();
+            if (raw.length < pixels) {
+              raw = new int[pixels];
+            }
+            scan.decode(raw);
+            long decoded = System.nanoTime();
+            metrics.record(AcquisitionMetrics.Phase.DECODE, decoded - nanos);
+            metrics.scanCompleted();
+            if (nanos - nextTemp >= 0) {
+              readTemperature(nanos);
+            }
+            if (!averager.add(raw, pixels)) {
+              metrics.record(AcquisitionMetrics.Phase.PROCESS, System.nanoTime() - decoded);
+              continue;
+            }
+            FrameRing.Frame frame = ring.claim(pixels);
+            averager.get(frame.values);
+            frame.nanos = nanos;
+            float[] values = frame.values;
+            int[] counts = frame.counts;
+            for (int ii = 0; ii < pixels; ii++) {
+              counts[ii] = Math.round(values[ii]);
+            }
+            // Counts stay as measured, while values are dark corrected and converted to the mode's units
+            frame.mode = processor.process(values, pixels, calibration);
+            // Color is of the light as measured, so it's measured before the baseline is removed
+            if (measureColor) {
+              colorimetry.measure(values, pixels, calibration, frame.mode, frame.color);
+            } else {
+              frame.color.valid = false;
+            }
+            baseline.remove(values, usableStart, Math.min(usableEnd, pixels));
+            if (findPeaks && frame.mode == SpectrumProcessor.Mode.SCOPE) {
+              frame.peakCount = peakDetector.detect(values, usableStart, Math.min(usableEnd, pixels), frame.peaks);
+            }
+            metrics.record(AcquisitionMetrics.Phase.PROCESS, System.nanoTime() - decoded);
+            ring.publish(frame);
+            published = true;
+            for (FrameListener listener : frameListeners) {
+              listener.frameAcquired(frame);
+            }
+            // A single scan (rate 0) keeps scanning until the averager completes its first frame
+          } while ((scanRate != 0 || !published) && runState == state.SCAN);
+          session.stopScan();
+          break;
+        case INFO:
+          if (infoHandler != null) {
+            infoHandler.showInfo(this);
+          }
+          break;
+        }
+      } catch (LibUsbException ex) {
+        metrics.usbError();
+        error = ex;
+      } finally {
+        running = false;
+        for (RunState listener : listeners) {
+          listener.isRunning(running);
+        }
+      }
+    }
+  }
+
+  /**
+   *  Add the PCB temperature to the metrics' trend, then schedule the next reading
+   */
+  private void readTemperature (long nanos) {
+    try {
+      metrics.recordTemperature(session.readPcbTemp(), nanos);
+    } catch (LibUsbException ex) {
+      metrics.usbError();
+    }
+    nextTemp = nanos + TEMP_INTERVAL;
+  }
+
+  private static void sleep (long millis) {
+    if (millis > 0) {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  void doScan (state action) {
+    runState = action;
+    new Thread(this).start();
+  }
+
+  void stopScan () {
+    runState = state.STOP;
+  }
+
+  /**
+   *  @param scanRate scans per second, 0 for a single scan, or -1 to scan back to back
+   */
+  void setRate (int scanRate) {
+    this.scanRate = scanRate;
+    scheduler.setRate(scanRate);
+  }
+
+  /**
+   *  @return averaging and smoothing applied to scans before they're published
+   */
+  ScanAverager getAverager () {
+    return averager;
+  }
+
+  /**
+   *  @return dark subtraction and reference processing applied to each frame's values
+   */
+  SpectrumProcessor getProcessor () {
+    return processor;
+  }
+
+  /**
+   *  @return latency histograms and counters for this acquisition, also published through JMX
+   */
+  AcquisitionMetrics getMetrics () {
+    return metrics;
+  }
+
+  PeakDetector getPeakDetector () {
+    return peakDetector;
+  }
+
+  /**
+   *  @param findPeaks true to find the peaks in each frame before it's published, in SCOPE mode only
+   */
+  void setFindPeaks (boolean findPeaks) {
+    this.findPeaks = findPeaks;
+  }
+
+  /**
+   *  @return baseline removal, applied to each frame's values after dark/reference processing and
+   *  before peak finding
+   */
+  BaselineRemoval getBaselineRemoval () {
+    return baseline;
+  }
+
+  Colorimetry getColorimetry () {
+    return colorimetry;
+  }
+
+  /**
+   *  @param measureColor true to measure the color of each frame before it's published, in SCOPE
+   *  and IRRADIANCE modes only
+   */
+  void setMeasureColor (boolean measureColor) {
+    this.measureColor = measureColor;
+  }
+
+  double pixelToNanometers (int px) {
+    return calibration.pixelToNanometers(px);
+  }
+
+  double[] getCoefficients () {
+    return calibration.getCoefficients();
+  }
+
+  /**
+   *  @return wavelength calibration of the current device, or null if not loaded
+   */
+  Calibration getCalibration () {
+    return calibration;
+  }
+
+  /**
+   *  Replace the calibration of the current device, such as after a Recalibration
+   *  @param coff new coefficients, or null to reload them when the next scan starts
+   */
+  void setCalibration (double[] coff) {
+    Calibration cal = calibration;
+    if (coff == null) {
+      calibration = null;
+    } else if (cal != null) {
+      calibration = new Calibration(coff, cal.getWavelengths().length, usableStart, usableEnd, cal.getSerial());
+    }
+  }
+
+  /**
+   *  @return serial number of the device the calibration was loaded from, or null if not loaded
+   */
+  String getCalSerial () {
+    Calibration cal = calibration;
+    return cal != null ? cal.getSerial() : null;
+  }
+
+  DeviceSession getSession () {
+    return session;
+  }
+
+  FrameRing getFrameRing () {
+    return ring;
+  }
+
+  RateScheduler getScheduler () {
+    return scheduler;
+  }
+
+  /**
+   *  @return the exception that ended the last run, or null if it ended normally
+   */
+  LibUsbException getError () {
+    return error;
+  }
+
+  boolean isRunning () {
+    return running;
+  }
+
+  boolean hasScan () {
+    return ring.latest() >= 0;
+  }
+}
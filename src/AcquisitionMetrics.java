@@ -0,0 +1,221 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ *  Counters and per phase latency histograms for one Acquisition, cheap enough to leave on all
+ *  the time (about 20 System.nanoTime() calls per scan), so bottlenecks can be found in the field
+ *  without a profiler.  Published through JMX as:
+ *
+ *    USB4000:type=Acquisition,name=<serial>              counters, scan rate and PCB temperature
+ *    USB4000:type=Latency,name=<serial>,phase=<phase>    latency percentiles of each phase
+ *
+ *  and shown by the Spectrum's stats overlay.
+ */
+
+class AcquisitionMetrics implements AcquisitionMetricsMBean {
+  private static final int      TEMP_SAMPLES = 60;
+  private final LatencyHistogram[] latency = new LatencyHistogram[Phase.values().length];
+  private final RateScheduler   scheduler;
+  private volatile long         scans, droppedReads, shortReads, resyncs, usbErrors;
+  private final double[]        temps = new double[TEMP_SAMPLES];
+  private final long[]          tempNanos = new long[TEMP_SAMPLES];
+  private volatile int          tempCount;
+  private String                name;
+
+  /**
+   *  Phases of each scan, timed separately
+   */
+  enum Phase {
+    SEND("Send"),                     // Sending the 0x09 (Request Spectra) command
+    WAIT("Wait"),                     // From the request until the first packet, which includes the integration
+    READ_86("Read 0x86"),             // Each later packet from each endpoint
+    READ_82("Read 0x82"),
+    DECODE("Decode"),
+    PROCESS("Process"),               // Averaging, smoothing, dark/reference processing and peak finding
+    PAINT("Paint");
+
+    final String label;
+
+    Phase (String label) {
+      this.label = label;
+    }
+  }
+
+  AcquisitionMetrics (RateScheduler scheduler) {
+    this.scheduler = scheduler;
+    for (int ii = 0; ii < latency.length; ii++) {
+      latency[ii] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   *  Record the time taken by a phase.  Each phase must only be recorded by one thread.
+   */
+  void record (Phase phase, long nanos) {
+    latency[phase.ordinal()].record(nanos);
+  }
+
+  LatencyHistogram getLatency (Phase phase) {
+    return latency[phase.ordinal()];
+  }
+
+  void scanCompleted () {
+    scans++;
+  }
+
+  /**
+   *  Count a bulk read that failed or timed out, losing the rest of its scan
+   */
+  void droppedRead () {
+    droppedReads++;
+  }
+
+  /**
+   *  Count a bulk read that returned fewer bytes than a full packet
+   */
+  void shortRead () {
+    shortReads++;
+  }
+
+  /**
+   *  Count a scan that failed validation, after which the endpoints were drained to resync
+   */
+  void resynced () {
+    resyncs++;
+  }
+
+  void usbError () {
+    usbErrors++;
+  }
+
+  /**
+   *  Add a PCB temperature reading to the trend, which keeps the last TEMP_SAMPLES
+   */
+  synchronized void recordTemperature (double celsius, long nanos) {
+    int idx = tempCount % TEMP_SAMPLES;
+    temps[idx] = celsius;
+    tempNanos[idx] = nanos;
+    tempCount++;
+  }
+
+  public long getScans () {
+    return scans;
+  }
+
+  public double getScanRate () {
+    return scheduler.getAchievedRate();
+  }
+
+  public long getDroppedReads () {
+    return droppedReads;
+  }
+
+  public long getShortReads () {
+    return shortReads;
+  }
+
+  public long getResyncs () {
+    return resyncs;
+  }
+
+  public long getUsbErrors () {
+    return usbErrors;
+  }
+
+  /**
+   *  @return latest PCB temperature in degrees C, or NaN if none has been read
+   */
+  public synchronized double getPcbTemperature () {
+    return tempCount > 0 ? temps[(tempCount - 1) % TEMP_SAMPLES] : Double.NaN;
+  }
+
+  /**
+   *  @return least squares slope of the recent PCB temperatures in degrees C per minute, or 0 if
+   *  fewer than two have been read
+   */
+  public synchronized double getPcbTemperatureTrend () {
+    int count = Math.min(tempCount, TEMP_SAMPLES);
+    if (count < 2) {
+      return 0;
+    }
+    long base = tempNanos[(tempCount - count) % TEMP_SAMPLES];
+    double sx = 0, sy = 0, sxx = 0, sxy = 0;
+    for (int ii = 0; ii < count; ii++) {
+      int idx = (tempCount - count + ii) % TEMP_SAMPLES;
+      double x = (tempNanos[idx] - base) / 60e9;
+      sx += x;
+      sy += temps[idx];
+      sxx += x * x;
+      sxy += x * temps[idx];
+    }
+    double den = count * sxx - sx * sx;
+    return den > 0 ? (count * sxy - sx * sy) / den : 0;
+  }
+
+  public synchronized void reset () {
+    for (LatencyHistogram hist : latency) {
+      hist.reset();
+    }
+    scans = droppedReads = shortReads = resyncs = usbErrors = 0;
+    tempCount = 0;
+  }
+
+  /**
+   *  Publish these metrics through the platform MBean server, replacing any published under
+   *  another name.  JMX errors are ignored, as metrics are optional.
+   *  @param name device name, such as its serial number
+   */
+  synchronized void register (String name) {
+    if (name.equals(this.name)) {
+      return;
+    }
+    unregister();
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      String quoted = ObjectName.quote(name);
+      ObjectName main = new ObjectName("USB4000:type=Acquisition,name=" + quoted);
+      if (server.isRegistered(main)) {
+        // Another Acquisition for the same device, so leave its metrics published
+        return;
+      }
+      server.registerMBean(new StandardMBean(this, AcquisitionMetricsMBean.class), main);
+      for (Phase phase : Phase.values()) {
+        server.registerMBean(new StandardMBean(latency[phase.ordinal()], LatencyHistogramMBean.class),
+                             new ObjectName("USB4000:type=Latency,name=" + quoted + ",phase=" + ObjectName.quote(phase.label)));
+      }
+      this.name = name;
+    } catch (JMException ex) {
+      // Remove any that were published, as metrics are optional
+      unregister(name);
+    }
+  }
+
+  synchronized void unregister () {
+    if (name != null) {
+      unregister(name);
+      name = null;
+    }
+  }
+
+  private static void unregister (String name) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      String quoted = ObjectName.quote(name);
+      ObjectName main = new ObjectName("USB4000:type=Acquisition,name=" + quoted);
+      if (server.isRegistered(main)) {
+        server.unregisterMBean(main);
+      }
+      for (Phase phase : Phase.values()) {
+        ObjectName obj = new ObjectName("USB4000:type=Latency,name=" + quoted + ",phase=" + ObjectName.quote(phase.label));
+        if (server.isRegistered(obj)) {
+          server.unregisterMBean(obj);
+        }
+      }
+    } catch (JMException ex) {
+      // Nothing more can be done
+    }
+  }
+}
@@ -0,0 +1,22 @@
+/**
+ *  Attributes of an AcquisitionMetrics published through JMX
+ */
+public interface AcquisitionMetricsMBean {
+  long getScans ();
+
+  double getScanRate ();
+
+  long getDroppedReads ();
+
+  long getShortReads ();
+
+  long getResyncs ();
+
+  long getUsbErrors ();
+
+  double getPcbTemperature ();
+
+  double getPcbTemperatureTrend ();
+
+  void reset ();
+}
@@ -0,0 +1,387 @@
+import java.util.Random;
+
+/**
+ *  Estimates a slowly varying baseline under each frame, such as a fluorescence background or
+ *  drift, and subtracts it so peaks stand on zero.  Three methods are offered:
+ *
+ *    ALS           Asymmetric least squares (Eilers and Boelens, 2005): a smooth curve fitted with
+ *                  a second difference penalty, lambda, reweighted each pass so points above it
+ *                  (peaks) count for little, asymmetry, and points below it count fully.  The
+ *                  system is pentadiagonal, so each pass is an O(n) banded LDL' solve.
+ *    ROLLING_BALL  Rolling ball (Kneen and Annegarn, 1996): a moving minimum then moving maximum of
+ *                  width 2 * radius + 1, which rides under peaks narrower than that, then a moving
+ *                  mean of the same width to round it off.  Each filter is O(n) whatever the
+ *                  radius, with the van Herk / Gil-Werman block method for min and max.
+ *    POLYNOMIAL    Iterative polynomial fitting (Lieber and Mahadevan-Jansen, 2003): fit, clip the
+ *                  data to the fit, and repeat, so peaks are progressively cut away.  Fits are
+ *                  projections onto polynomials made orthonormal over the pixels, built once, so
+ *                  no matrix is formed or solved per frame.
+ *
+ *  Works on the usable pixels in place, with workspaces allocated once per pixel count, so steady
+ *  state removal allocates nothing.  Settings may be changed from another thread, and take effect
+ *  on the next frame.
+ */
+
+class BaselineRemoval {
+  enum Method {OFF, ALS, ROLLING_BALL, POLYNOMIAL}
+
+  private volatile Method   method = Method.OFF;
+  private volatile double   lambda = 1e6;               // ALS smoothness
+  private volatile double   asymmetry = 0.01;           // ALS weight of points above the baseline
+  private volatile int      alsIterations = 6;
+  private volatile int      radius = 50;                // Rolling ball half width, in pixels
+  private volatile int      degree = 6;                 // Polynomial degree
+  private volatile int      polyIterations = 40;
+  private int               size;                       // Pixels the workspaces are sized for
+  private double[]          baseline = new double[0];
+  private double[]          data = new double[0];
+  private double[]          weights = new double[0];
+  private double[]          diag = new double[0], lower1 = new double[0], lower2 = new double[0];
+  private double[]          work = new double[0];
+  private double[]          prefix = new double[0], suffix = new double[0];
+  private double[][]        basis = new double[0][];    // Orthonormal polynomials over the pixels
+  private int               basisSize;
+
+  void setMethod (Method method) {
+    this.method = method;
+  }
+
+  Method getMethod () {
+    return method;
+  }
+
+  /**
+   *  @param lambda ALS smoothness, larger for a stiffer baseline (typically 1e4 to 1e8)
+   *  @param asymmetry ALS weight of points above the baseline, from 0.001 to 0.1
+   *  @param iterations reweighting passes, 1 to 50
+   */
+  void setAls (double lambda, double asymmetry, int iterations) {
+    this.lambda = Math.max(1, lambda);
+    this.asymmetry = Math.max(1e-6, Math.min(0.5, asymmetry));
+    alsIterations = Math.max(1, Math.min(50, iterations));
+  }
+
+  double getLambda () {
+    return lambda;
+  }
+
+  double getAsymmetry () {
+    return asymmetry;
+  }
+
+  int getAlsIterations () {
+    return alsIterations;
+  }
+
+  /**
+   *  @param radius rolling ball half width in pixels, wider than the widest peak
+   */
+  void setRadius (int radius) {
+    this.radius = Math.max(1, radius);
+  }
+
+  int getRadius () {
+    return radius;
+  }
+
+  /**
+   *  @param degree polynomial degree, 1 to 10
+   *  @param iterations fit and clip passes, 1 to 200
+   */
+  void setPolynomial (int degree, int iterations) {
+    this.degree = Math.max(1, Math.min(10, degree));
+    polyIterations = Math.max(1, Math.min(200, iterations));
+  }
+
+  int getDegree () {
+    return degree;
+  }
+
+  int getPolyIterations () {
+    return polyIterations;
+  }
+
+  /**
+   *  Subtract the baseline from values[from] to values[to - 1]
+   *  @return true if a baseline was removed
+   */
+  boolean remove (float[] values, int from, int to) {
+    Method method = this.method;
+    int count = to - from;
+    if (method == Method.OFF || count < 5) {
+      return false;
+    }
+    if (size != count) {
+      allocate(count);
+    }
+    for (int ii = 0; ii < count; ii++) {
+      data[ii] = values[from + ii];
+    }
+    switch (method) {
+    case ALS:
+      als(count);
+      break;
+    case ROLLING_BALL:
+      rollingBall(count);
+      break;
+    case POLYNOMIAL:
+      polynomial(count);
+      break;
+    default:
+      return false;
+    }
+    for (int ii = 0; ii < count; ii++) {
+      values[from + ii] = (float) (data[ii] - baseline[ii]);
+    }
+    return true;
+  }
+
+  private void allocate (int count) {
+    size = count;
+    baseline = new double[count];
+    data = new double[count];
+    weights = new double[count];
+    diag = new double[count];
+    lower1 = new double[count];
+    lower2 = new double[count];
+    work = new double[count];
+    prefix = new double[count];
+    suffix = new double[count];
+    basisSize = 0;
+  }
+
+  /**
+   *  Solve (W + lambda D'D) z = W y for z, where D is the second difference matrix, then reweight
+   *  and repeat.  D'D has rows 1 -2 1, -2 5 -4 1, then 1 -4 6 -4 1 down to the mirror image at the
+   *  end, so the system is symmetric pentadiagonal, factored as L D L' with two subdiagonals.
+   */
+  private void als (int n) {
+    double lam = lambda, p = asymmetry;
+    double[] y = data, w = weights, z = baseline, d = diag, l1 = lower1, l2 = lower2, r = work;
+    for (int ii = 0; ii < n; ii++) {
+      w[ii] = 1;
+    }
+    int iterations = alsIterations;
+    for (int iter = 0; iter < iterations; iter++) {
+      // Factor, with A[i][i] = w + lambda * diagonal of D'D, A[i][i+1] and A[i][i+2] its off diagonals
+      for (int ii = 0; ii < n; ii++) {
+        double a = w[ii] + lam * (ii == 0 || ii == n - 1 ? 1 : ii == 1 || ii == n - 2 ? 5 : 6);
+        double b = ii < n - 1 ? lam * (ii == 0 || ii == n - 2 ? -2 : -4) : 0;
+        double c = ii < n - 2 ? lam : 0;
+        double dd = a;
+        if (ii > 0) {
+          dd -= l1[ii - 1] * l1[ii - 1] * d[ii - 1];
+        }
+        if (ii > 1) {
+          dd -= l2[ii - 2] * l2[ii - 2] * d[ii - 2];
+        }
+        d[ii] = dd;
+        l1[ii] = (b - (ii > 0 ? l2[ii - 1] * l1[ii - 1] * d[ii - 1] : 0)) / dd;
+        l2[ii] = c / dd;
+      }
+      // Forward substitution through L, scale by D, then back substitution through L'
+      for (int ii = 0; ii < n; ii++) {
+        double val = w[ii] * y[ii];
+        if (ii > 0) {
+          val -= l1[ii - 1] * r[ii - 1];
+        }
+        if (ii > 1) {
+          val -= l2[ii - 2] * r[ii - 2];
+        }
+        r[ii] = val;
+      }
+      for (int ii = n - 1; ii >= 0; ii--) {
+        double val = r[ii] / d[ii];
+        if (ii < n - 1) {
+          val -= l1[ii] * z[ii + 1];
+        }
+        if (ii < n - 2) {
+          val -= l2[ii] * z[ii + 2];
+        }
+        z[ii] = val;
+      }
+      boolean changed = false;
+      for (int ii = 0; ii < n; ii++) {
+        double wt = y[ii] > z[ii] ? p : 1 - p;
+        changed |= wt != w[ii];
+        w[ii] = wt;
+      }
+      if (!changed) {
+        break;
+      }
+    }
+  }
+
+  private void rollingBall (int n) {
+    int rad = Math.min(radius, n / 2);
+    movingExtreme(data, work, n, rad, false);
+    movingExtreme(work, baseline, n, rad, true);
+    // Moving mean, with the window shrinking at the ends
+    double[] z = baseline, sum = prefix;
+    double acc = 0;
+    for (int ii = 0; ii < n; ii++) {
+      acc += z[ii];
+      sum[ii] = acc;
+    }
+    for (int ii = 0; ii < n; ii++) {
+      int lo = Math.max(0, ii - rad), hi = Math.min(n - 1, ii + rad);
+      work[ii] = (sum[hi] - (lo > 0 ? sum[lo - 1] : 0)) / (hi - lo + 1);
+    }
+    System.arraycopy(work, 0, baseline, 0, n);
+  }
+
+  /**
+   *  Moving minimum, or maximum, over src[i - rad] to src[i + rad], clipped at the ends.  Splits
+   *  src into blocks of the window's width, and takes running extremes forward (prefix) and
+   *  backward (suffix) through each, so every window is the extreme of one suffix and one prefix.
+   */
+  private void movingExtreme (double[] src, double[] dst, int n, int rad, boolean max) {
+    int width = 2 * rad + 1;
+    double[] pre = prefix, suf = suffix;
+    for (int start = 0; start < n; start += width) {
+      int end = Math.min(n, start + width);
+      pre[start] = src[start];
+      for (int ii = start + 1; ii < end; ii++) {
+        pre[ii] = max ? Math.max(pre[ii - 1], src[ii]) : Math.min(pre[ii - 1], src[ii]);
+      }
+      suf[end - 1] = src[end - 1];
+      for (int ii = end - 2; ii >= start; ii--) {
+        suf[ii] = max ? Math.max(suf[ii + 1], src[ii]) : Math.min(suf[ii + 1], src[ii]);
+      }
+    }
+    for (int ii = 0; ii < n; ii++) {
+      int lo = Math.max(0, ii - rad), hi = Math.min(n - 1, ii + rad);
+      if (lo / width != hi / width) {
+        // Spans the end of one block and the start of the next
+        dst[ii] = max ? Math.max(suf[lo], pre[hi]) : Math.min(suf[lo], pre[hi]);
+      } else {
+        // Within one block, so it starts the block, or is clipped by the end of the data
+        dst[ii] = lo % width == 0 ? pre[hi] : suf[lo];
+      }
+    }
+  }
+
+  /**
+   *  Fit, by projection onto the orthonormal basis, then clip the data to the fit so peaks sink
+   *  toward the baseline, until nothing is clipped or the iterations run out
+   */
+  private void polynomial (int n) {
+    int deg = degree;
+    if (basisSize != n || basis.length != deg + 1) {
+      buildBasis(n, deg);
+    }
+    double[] y = work, z = baseline;
+    System.arraycopy(data, 0, y, 0, n);
+    int iterations = polyIterations;
+    for (int iter = 0; iter < iterations; iter++) {
+      for (int ii = 0; ii < n; ii++) {
+        z[ii] = 0;
+      }
+      for (double[] q : basis) {
+        double coeff = 0;
+        for (int ii = 0; ii < n; ii++) {
+          coeff += q[ii] * y[ii];
+        }
+        for (int ii = 0; ii < n; ii++) {
+          z[ii] += coeff * q[ii];
+        }
+      }
+      boolean clipped = false;
+      for (int ii = 0; ii < n; ii++) {
+        if (y[ii] > z[ii]) {
+          y[ii] = z[ii];
+          clipped = true;
+        }
+      }
+      if (!clipped) {
+        break;
+      }
+    }
+  }
+
+  /**
+   *  Build polynomials of degree 0 to deg that are orthonormal over n evenly spaced points,
+   *  with the three term (Stieltjes) recurrence on x scaled to -1 to 1
+   */
+  private void buildBasis (int n, int deg) {
+    basis = new double[deg + 1][n];
+    double norm = 1 / Math.sqrt(n);
+    for (int ii = 0; ii < n; ii++) {
+      basis[0][ii] = norm;
+    }
+    for (int kk = 1; kk <= deg; kk++) {
+      double[] prev = basis[kk - 1], next = basis[kk];
+      double alpha = 0;
+      for (int ii = 0; ii < n; ii++) {
+        double x = 2.0 * ii / (n - 1) - 1;
+        alpha += x * prev[ii] * prev[ii];
+      }
+      double[] prev2 = kk > 1 ? basis[kk - 2] : null;
+      double beta = 0;
+      if (prev2 != null) {
+        for (int ii = 0; ii < n; ii++) {
+          double x = 2.0 * ii / (n - 1) - 1;
+          beta += x * prev[ii] * prev2[ii];
+        }
+      }
+      double sum = 0;
+      for (int ii = 0; ii < n; ii++) {
+        double x = 2.0 * ii / (n - 1) - 1;
+        double val = (x - alpha) * prev[ii] - (prev2 != null ? beta * prev2[ii] : 0);
+        next[ii] = val;
+        sum += val * val;
+      }
+      double scale = 1 / Math.sqrt(sum);
+      for (int ii = 0; ii < n; ii++) {
+        next[ii] *= scale;
+      }
+    }
+    basisSize = n;
+  }
+
+  /**
+   *  Times each method on the usable pixels of a synthetic spectrum: a broad fluorescence hump
+   *  and a sloping offset under a few narrow peaks, plus noise, then reports the rate and how far
+   *  the removed baseline is from the true one
+   */
+  public static void main (String[] args) {
+    int from = Acquisition.usableStart, to = Acquisition.usableEnd;
+    float[] spectrum = new float[3840];
+    double[] truth = new double[spectrum.length];
+    Random rand = new Random(1);
+    for (int px = 0; px < spectrum.length; px++) {
+      double t = (double) px / spectrum.length;
+      truth[px] = 2000 + 1500 * t + 8000 * Math.exp(-Math.pow((t - 0.45) / 0.25, 2));
+      double peaks = 0;
+      for (double center : new double[] {500, 1200, 1900, 2600, 3300}) {
+        peaks += 20000 * Math.exp(-Math.pow((px - center) / 4, 2));
+      }
+      spectrum[px] = (float) (truth[px] + peaks + rand.nextGaussian() * 30);
+    }
+    float[] values = new float[spectrum.length];
+    BaselineRemoval remover = new BaselineRemoval();
+    for (Method method : new Method[] {Method.ALS, Method.ROLLING_BALL, Method.POLYNOMIAL}) {
+      remover.setMethod(method);
+      int frames = 2000;
+      long elapsed = 0;
+      for (int ii = 0; ii < frames; ii++) {
+        System.arraycopy(spectrum, 0, values, 0, values.length);
+        long start = System.nanoTime();
+        remover.remove(values, from, to);
+        elapsed += ii >= frames / 2 ? System.nanoTime() - start : 0;
+      }
+      // Error of the baseline away from the peaks
+      double err = 0;
+      int count = 0;
+      for (int px = from; px < to; px++) {
+        if (px % 700 > 30 && px % 700 < 670) {
+          double removed = spectrum[px] - values[px];
+          err += (removed - truth[px]) * (removed - truth[px]);
+          count++;
+        }
+      }
+      System.out.println(String.format("%-13s %7.1f us/frame  %6.0f frames/s  baseline rms error %.1f counts", method,
+                                       elapsed / 1e3 / (frames / 2), 1e9 / (elapsed / (frames / 2.0)), Math.sqrt(err / count)));
+    }
+  }
+}
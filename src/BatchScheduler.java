@@ -0,0 +1,411 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Runs a batch job unattended: a sequence of steps, such as the lines of a spectral image, each
+ *  of which writes a set number of frames to its own file, then dwells before the next.  The job
+ *  is read from a properties file:
+ *
+ *    steps = 10                    number of steps (default 1)
+ *    scans = 20                    frames written per step (default 1)
+ *    dwell = 5                     seconds from the end of one step's scans to the start of the next
+ *    average = 4                   scans averaged into each frame (default 1)
+ *    mode = block                  "block" or "ema" averaging
+ *    boxcar = 0                    boxcar smoothing half width in pixels
+ *    rate = max                    scans per second, or "max" (default max)
+ *    integration = 20              integration time in milliseconds (default: leave as set)
+ *    file = line-{step}.usb4k      file name pattern; {step} becomes the step number, zero padded.
+ *                                  Written as CSV if the name ends with ".csv"
+ *
+ *  Scanning, and processing, run on the Acquisition's own thread, which is started for each step
+ *  with doScan(state.SCAN) and stopped from a FrameListener as soon as the step's last frame is
+ *  published.  Each step's frames are written by a separate writer thread reading from the
+ *  FrameRing, which can still be finishing one step while the next scans, so a slow write never
+ *  delays a scan.  The job, and its writers, run on virtual threads when the JVM has them (Java
+ *  21 and later), otherwise on daemon platform threads.
+ */
+
+class BatchScheduler {
+  private static final Method   ofVirtual, builderName, builderStart;
+  private final Acquisition     acquisition;
+  private final Job             job;
+  private final List<Thread>    writers = new ArrayList<>();         // Only used by the job's thread
+  private volatile boolean      cancelled;
+  private volatile int          step;
+  private long                  framesWritten, bytesWritten, framesDropped;
+  private volatile long         stepEnd;                            // Sequence of the current step's last frame
+  private volatile Exception    error;
+  private StepListener          stepListener;
+  private volatile Thread       thread;
+  private long                  startNanos, endNanos;
+
+  static {
+    Method of = null, name = null, start = null;
+    try {
+      // Thread.ofVirtual().name(name).start(task), which needs Java 21
+      of = Thread.class.getMethod("ofVirtual");
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      name = builder.getMethod("name", String.class);
+      start = builder.getMethod("start", Runnable.class);
+    } catch (ReflectiveOperationException ex) {
+      of = null;
+    }
+    ofVirtual = of;
+    builderName = name;
+    builderStart = start;
+  }
+
+  /**
+   *  Called on the job's thread before each step starts scanning, such as to move a stage
+   */
+  interface StepListener {
+    void stepStarting (int step, int steps);
+  }
+
+  /**
+   *  Settings of a batch job, as read from a properties file
+   */
+  static class Job {
+    int                 steps = 1;
+    int                 scans = 1;
+    double              dwell;
+    int                 average = 1;
+    ScanAverager.Mode   mode = ScanAverager.Mode.BLOCK;
+    int                 boxcar;
+    int                 rate = -1;
+    int                 integration;
+    String              file = "step-{step}.usb4k";
+
+    static Job load (File file) throws IOException {
+      Properties props = new Properties();
+      try (InputStream in = new FileInputStream(file)) {
+        props.load(in);
+      }
+      Job job = new Job();
+      try {
+        job.steps = Integer.parseInt(props.getProperty("steps", "1").trim());
+        job.scans = Integer.parseInt(props.getProperty("scans", "1").trim());
+        job.dwell = Double.parseDouble(props.getProperty("dwell", "0").trim());
+        job.average = Integer.parseInt(props.getProperty("average", "1").trim());
+        job.mode = ScanAverager.Mode.valueOf(props.getProperty("mode", "block").trim().toUpperCase());
+        job.boxcar = Integer.parseInt(props.getProperty("boxcar", "0").trim());
+        String rate = props.getProperty("rate", "max").trim();
+        job.rate = "max".equalsIgnoreCase(rate) ? -1 : Integer.parseInt(rate);
+        job.integration = (int) Math.round(Double.parseDouble(props.getProperty("integration", "0").trim()) * 1000);
+      } catch (IllegalArgumentException ex) {
+        throw new IOException("Invalid job file " + file + ": " + ex.getMessage(), ex);
+      }
+      job.file = props.getProperty("file", job.file).trim();
+      if (job.steps < 1 || job.scans < 1 || job.average < 1 || job.dwell < 0) {
+        throw new IOException("Invalid job file " + file + ": steps, scans and average must be 1 or more, and dwell " +
+                              "can't be negative");
+      }
+      // Relative file names are relative to the job file
+      if (!new File(job.file).isAbsolute() && file.getAbsoluteFile().getParentFile() != null) {
+        job.file = new File(file.getAbsoluteFile().getParentFile(), job.file).getPath();
+      }
+      return job;
+    }
+
+    /**
+     *  @return file name for step, numbered from 1
+     */
+    String fileName (int step) {
+      String num = String.valueOf(step);
+      int width = String.valueOf(steps).length();
+      while (num.length() < width) {
+        num = "0" + num;
+      }
+      return file.replace("{step}", num);
+    }
+  }
+
+  BatchScheduler (Acquisition acquisition, Job job) {
+    this.acquisition = acquisition;
+    this.job = job;
+  }
+
+  void setStepListener (StepListener stepListener) {
+    this.stepListener = stepListener;
+  }
+
+  /**
+   *  Start a task on a virtual thread if the JVM supports them, otherwise on a daemon thread
+   */
+  static Thread startThread (String name, Runnable task) {
+    if (ofVirtual != null) {
+      try {
+        Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+        return (Thread) builderStart.invoke(builder, task);
+      } catch (ReflectiveOperationException ex) {
+        // Fall back to a platform thread
+      }
+    }
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  static boolean hasVirtualThreads () {
+    return ofVirtual != null;
+  }
+
+  /**
+   *  Start the job.  Settings in the job replace the Acquisition's rate, averaging and integration
+   *  time until the job ends, when the previous settings are restored.
+   */
+  synchronized void start () {
+    if (thread != null) {
+      throw new IllegalStateException("Job already started");
+    }
+    if (acquisition.isRunning()) {
+      throw new IllegalStateException("Stop scanning before starting a batch job");
+    }
+    thread = startThread("BatchJob", this::run);
+  }
+
+  /**
+   *  Stop the job, ending the current step early.  Frames already acquired are still written.
+   */
+  void cancel () {
+    cancelled = true;
+    acquisition.stopScan();
+    Thread thread = this.thread;
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  /**
+   *  Wait for the job, and every write it started, to finish
+   */
+  void await () throws InterruptedException {
+    Thread thread = this.thread;
+    if (thread != null) {
+      thread.join();
+    }
+  }
+
+  boolean isRunning () {
+    Thread thread = this.thread;
+    return thread != null && thread.isAlive();
+  }
+
+  private void run () {
+    startNanos = System.nanoTime();
+    DeviceSession session = acquisition.getSession();
+    ScanAverager averager = acquisition.getAverager();
+    int lastRate = (int) acquisition.getScheduler().getRate();
+    int lastAverage = averager.getAverage(), lastBoxcar = averager.getBoxcar();
+    ScanAverager.Mode lastMode = averager.getMode();
+    int lastIntegration = session.getIntegrationTime();
+    if (job.integration > 0) {
+      session.setIntegrationTime(job.integration);
+    }
+    acquisition.setRate(job.rate == 0 ? -1 : job.rate);
+    averager.setMode(job.mode);
+    averager.setBoxcar(job.boxcar);
+    FrameRing ring = acquisition.getFrameRing();
+    // Stops scanning as soon as the step's last frame is published, so each step gets exactly job.scans frames
+    Acquisition.FrameListener frameListener = frame -> {
+      if (frame.sequence >= stepEnd) {
+        acquisition.stopScan();
+      }
+    };
+    acquisition.addFrameListener(frameListener);
+    try {
+      for (int ii = 1; ii <= job.steps && !cancelled; ii++) {
+        if (ii > 1 && job.dwell > 0) {
+          Thread.sleep((long) (job.dwell * 1000));
+        }
+        step = ii;
+        if (stepListener != null) {
+          stepListener.stepStarting(ii, job.steps);
+        }
+        if (cancelled) {
+          break;
+        }
+        // Restart the averager, so no scan from the last step is mixed into this one
+        averager.setAverage(job.average);
+        long first = ring.latest() + 1;
+        stepEnd = first + job.scans - 1;
+        StepWriter writer = new StepWriter(new FrameWriter(acquisition, job.fileName(ii)), first);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Acquisition.RunState runState = running -> {
+          if (!running) {
+            stopped.countDown();
+          }
+        };
+        acquisition.addRunStateListener(runState);
+        boolean started = false;
+        try {
+          acquisition.doScan(Acquisition.state.SCAN);
+          started = true;
+          stopped.await();
+        } finally {
+          if (started) {
+            // If cancelled, the acquisition thread may still be publishing its last frame
+            awaitUninterruptibly(stopped);
+          }
+          acquisition.removeRunStateListener(runState);
+          // Fewer frames than planned if the step was cancelled, or failed
+          writer.end(Math.min(stepEnd, ring.latest()));
+        }
+        if (acquisition.getError() != null) {
+          error = acquisition.getError();
+          break;
+        }
+      }
+    } catch (InterruptedException ex) {
+      acquisition.stopScan();
+    } catch (IOException | RuntimeException ex) {
+      error = ex;
+      acquisition.stopScan();
+    } finally {
+      acquisition.removeFrameListener(frameListener);
+      for (Thread writer : writers) {
+        joinUninterruptibly(writer);
+      }
+      writers.clear();
+      endNanos = System.nanoTime();
+      acquisition.setRate(lastRate);
+      averager.setAverage(lastAverage);
+      averager.setMode(lastMode);
+      averager.setBoxcar(lastBoxcar);
+      if (job.integration > 0 && lastIntegration > 0) {
+        session.setIntegrationTime(lastIntegration);
+      }
+    }
+  }
+
+  /**
+   *  Wait for a latch even if interrupted, as frames already acquired are still written when a
+   *  job is cancelled.  Interrupts only come from cancel(), which has already recorded itself.
+   */
+  private static void awaitUninterruptibly (CountDownLatch latch) {
+    while (latch.getCount() > 0) {
+      try {
+        latch.await();
+      } catch (InterruptedException ex) {
+        // Keep waiting
+      }
+    }
+  }
+
+  private static void joinUninterruptibly (Thread thread) {
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        // Keep waiting
+      }
+    }
+  }
+
+  /**
+   *  Writes one step's frames, in sequence, on a thread of its own, finishing once the frame
+   *  the job passes to end() has been written.  The thread parks until a FrameListener, or end(),
+   *  wakes it.
+   */
+  private class StepWriter implements Runnable {
+    private final FrameWriter       writer;
+    private final FrameRing.Reader  reader;
+    private final long              first;
+    private volatile long           last = Long.MAX_VALUE;
+    private volatile Thread         thread;
+    private final Acquisition.FrameListener wake = frame -> LockSupport.unpark(thread);
+
+    StepWriter (FrameWriter writer, long first) {
+      this.writer = writer;
+      this.first = first;
+      // Starts at the newest frame already published, which is before first
+      reader = acquisition.getFrameRing().newReader();
+      acquisition.addFrameListener(wake);
+      thread = startThread("BatchWriter-" + step, this);
+      writers.add(thread);
+    }
+
+    /**
+     *  @param last sequence of the step's last frame, which is less than first if it has none
+     */
+    void end (long last) {
+      this.last = last;
+      acquisition.removeFrameListener(wake);
+      LockSupport.unpark(thread);
+    }
+
+    public void run () {
+      FrameRing.Frame frame = new FrameRing.Frame(0);
+      long written = first - 1;
+      try {
+        while (written < last) {
+          if (!reader.next(frame)) {
+            // Frames published before the listener was added, or while parked, are found on waking
+            LockSupport.park(this);
+            continue;
+          }
+          if (frame.sequence > last) {
+            break;
+          }
+          if (frame.sequence >= first) {
+            writer.write(frame, 0);
+            written = frame.sequence;
+          }
+        }
+      } catch (IOException ex) {
+        error = ex;
+      } finally {
+        try {
+          writer.close();
+        } catch (IOException ex) {
+          error = ex;
+        }
+        synchronized (BatchScheduler.this) {
+          framesWritten += writer.getWritten();
+          bytesWritten += writer.getBytes();
+          framesDropped += reader.getDropped();
+        }
+      }
+    }
+  }
+
+  int getStep () {
+    return step;
+  }
+
+  /**
+   *  @return error that stopped the job, or null
+   */
+  Exception getError () {
+    return error;
+  }
+
+  /**
+   *  @return summary of the job's throughput, once it has finished
+   */
+  synchronized String getReport () {
+    double elapsed = (endNanos - startNanos) / 1e9;
+    RateScheduler scheduler = acquisition.getScheduler();
+    StringBuilder buf = new StringBuilder();
+    buf.append(String.format("Steps: %d of %d%s%n", step, job.steps, cancelled ? " (cancelled)" : ""));
+    buf.append(String.format("Wrote %d frames (%.1f MB) in %.2f s, %.1f frames/sec, %.2f MB/s%n", framesWritten,
+                             bytesWritten / 1e6, elapsed, framesWritten / elapsed, bytesWritten / 1e6 / elapsed));
+    buf.append(String.format("Scans: %d acquired, last step at %.1f Hz%n", acquisition.getMetrics().getScans(),
+                             scheduler.getAchievedRate()));
+    buf.append(String.format("Dropped: %d by writers, %d scheduler overruns%n", framesDropped, scheduler.getOverruns()));
+    buf.append(String.format("Threads: %s%n", hasVirtualThreads() ? "virtual" : "platform"));
+    if (error != null) {
+      buf.append("Stopped by error: ").append(error.getMessage()).append(System.lineSeparator());
+    }
+    return buf.toString();
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ *  Wavelength calibration for one device, built from the cubic coefficients stored in its EEPROM
+ *  (info slots 1 - 4).  The wavelength of every pixel is computed once, in double precision, so
+ *  pixel to nanometer lookups are a table read, and nanometer to pixel lookups are a binary search
+ *  over the usable pixels, where the calibration increases monotonically.
+ */
+
+class Calibration {
+  private final double[]  coff;
+  private final double[]  nm;
+  private final int       usableStart, usableEnd;
+  private final String    serial;
+
+  /**
+   *  @param coff calibration coefficients, coff[0] + coff[1] * px + coff[2] * px^2 + coff[3] * px^3
+   *  @param pixels number of pixels to tabulate
+   *  @param usableStart first usable pixel
+   *  @param usableEnd pixel after the last usable pixel
+   *  @param serial serial number of the device the coefficients were read from, or null
+   */
+  Calibration (double[] coff, int pixels, int usableStart, int usableEnd, String serial) {
+    this.coff = coff.clone();
+    this.usableStart = usableStart;
+    this.usableEnd = Math.min(usableEnd, pixels);
+    this.serial = serial;
+    nm = new double[pixels];
+    for (int px = 0; px < pixels; px++) {
+      nm[px] = polynomial(px);
+    }
+  }
+
+  private double polynomial (double x) {
+    // Horner's method, in double, so px^3 can't overflow
+    return coff[0] + x * (coff[1] + x * (coff[2] + x * coff[3]));
+  }
+
+  /**
+   *  @return wavelength of pixel px, in nanometers
+   */
+  double pixelToNanometers (int px) {
+    return px >= 0 && px < nm.length ? nm[px] : polynomial(px);
+  }
+
+  /**
+   *  @return wavelength at a fractional pixel position, in nanometers
+   */
+  double pixelToNanometers (double px) {
+    int ii = (int) Math.floor(px);
+    if (ii >= 0 && ii + 1 < nm.length) {
+      return nm[ii] + (px - ii) * (nm[ii + 1] - nm[ii]);
+    }
+    return polynomial(px);
+  }
+
+  /**
+   *  Inverse of pixelToNanometers() over the usable pixels, using a binary search of the table
+   *  and linear interpolation between pixels
+   *  @return fractional pixel position of nanometers, clamped to the usable range
+   */
+  double nanometersToPixel (double nanometers) {
+    int lo = usableStart;
+    int hi = usableEnd - 1;
+    if (nanometers <= nm[lo]) {
+      return lo;
+    }
+    if (nanometers >= nm[hi]) {
+      return hi;
+    }
+    // Invariant: nm[lo] < nanometers <= nm[hi]
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+      if (nm[mid] < nanometers) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo + (nanometers - nm[lo]) / (nm[hi] - nm[lo]);
+  }
+
+  /**
+   *  Resample src onto a uniform wavelength grid, interpolating linearly between pixels.  Grid
+   *  points outside the usable range are set to NaN.  As the grid is walked in order, the source
+   *  pixel is tracked incrementally, so the whole grid costs O(pixels + points).
+   *  @param src values per pixel, such as FrameRing.Frame.values
+   *  @param startNm wavelength of dst[0]
+   *  @param stepNm spacing of the grid, in nanometers
+   *  @param dst resampled values, one per grid point
+   */
+  void resample (float[] src, double startNm, double stepNm, float[] dst) {
+    int end = Math.min(usableEnd, src.length) - 1;
+    int px = usableStart;
+    for (int ii = 0; ii < dst.length; ii++) {
+      double target = startNm + ii * stepNm;
+      if (target < nm[usableStart] || target > nm[end]) {
+        dst[ii] = Float.NaN;
+        continue;
+      }
+      while (px < end - 1 && nm[px + 1] < target) {
+        px++;
+      }
+      double frac = (target - nm[px]) / (nm[px + 1] - nm[px]);
+      dst[ii] = (float) (src[px] + frac * (src[px + 1] - src[px]));
+    }
+  }
+
+  /**
+   *  @return number of points on a grid of the given step that covers the usable pixels
+   */
+  int gridPoints (double startNm, double stepNm) {
+    return Math.max(0, (int) Math.floor((nm[usableEnd - 1] - startNm) / stepNm) + 1);
+  }
+
+  double[] getCoefficients () {
+    return coff.clone();
+  }
+
+  /**
+   *  @return wavelength of each pixel, which callers must not modify
+   */
+  double[] getWavelengths () {
+    return nm;
+  }
+
+  int getUsableStart () {
+    return usableStart;
+  }
+
+  int getUsableEnd () {
+    return usableEnd;
+  }
+
+  String getSerial () {
+    return serial;
+  }
+}
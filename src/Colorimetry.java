@@ -0,0 +1,582 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Measures the color of each frame: CIE XYZ, xy and u'v' chromaticity, correlated color
+ *  temperature and its distance from the Planckian locus (Duv), and the color rendering index.
+ *
+ *  The CIE 1931 2 degree color matching functions are evaluated with the multi-lobe Gaussian fit
+ *  of Wyman, Sloan and Shirley (2013), which is within about 1% of the tabulated functions, so no
+ *  tables need to be shipped.  Each one is multiplied by the wavelength span of each pixel once,
+ *  when the calibration changes, so measuring a frame is a single pass of dot products over the
+ *  pixels from 360 to 830 nm.  CCT is found with McCamy's formula, which is within a few K of the
+ *  exact value from 2000 to 12500 K.
+ *
+ *  The CRI needs the CIE 13.3 test color samples and the CIE daylight components, which aren't
+ *  included, so it's only computed once they have been loaded with CriTables.load().  The
+ *  reference illuminant, and the samples' colors under it, only depend on the CCT, so they're
+ *  computed again only when the CCT moves by more than REF_CCT_TOLERANCE.  With them and all
+ *  working storage kept between frames, measuring a frame allocates nothing.
+ *
+ *  Values are only meaningful as color if they're proportional to spectral power, so colors are
+ *  measured in IRRADIANCE mode, or in SCOPE mode, where they include the detector's response.
+ *  Frames in other modes are marked invalid.
+ */
+
+class Colorimetry {
+  private static final double   C2 = 1.4388e7;                  // Second radiation constant, in nm K
+  private static final double   MIN_NM = 360, MAX_NM = 830;
+  private static final int      LOCUS_STEP = 5;                 // nm between points when integrating the locus
+  private static final double   REF_CCT_TOLERANCE = 10;         // K the CCT may move before the reference is redone
+  private static final double[] locusX, locusY, locusZ;         // Color matching functions at LOCUS_STEP
+  private volatile CriTables    tables;
+  private Calibration           cal;                            // Calibration the weights were built for
+  private CriTables             tablesFor;                      // Tables the weights were built for
+  private int                   start, end;                     // Pixels the weights cover
+  private int                   stride;                         // Weights per pixel
+  private double[]              weights = new double[0];
+  private double[]              sums = new double[0];
+  private double[]              refSpectrum = new double[0];
+  private double                refCct = Double.NaN;            // CCT the reference illuminant was computed for
+  private final double[]        refUv = new double[2];          // Reference illuminant's CIE 1960 uv
+  private double                refC, refD;                     // Its c and d, for the von Kries adaptation
+  private double[]              refU = new double[0], refV = new double[0], refW = new double[0];  // Samples' U*V*W*
+  private final double[]        samples = new double[15];       // Special color rendering index of each sample
+  private final double[]        xyz = new double[3], uv = new double[2];
+
+  static {
+    int count = (int) ((MAX_NM - MIN_NM) / LOCUS_STEP) + 1;
+    locusX = new double[count];
+    locusY = new double[count];
+    locusZ = new double[count];
+    for (int ii = 0; ii < count; ii++) {
+      double nm = MIN_NM + ii * LOCUS_STEP;
+      locusX[ii] = xBar(nm);
+      locusY[ii] = yBar(nm);
+      locusZ[ii] = zBar(nm);
+    }
+  }
+
+  /**
+   *  Color of one frame
+   */
+  static class Result {
+    boolean   valid;
+    double    X, Y, Z;                    // Tristimulus values, in the frame's units times nanometers
+    double    x, y;                       // CIE 1931 chromaticity
+    double    u, v;                       // CIE 1976 u', v' chromaticity
+    double    cct;                        // Correlated color temperature, in K, or NaN if off the locus
+    double    duv;                        // Distance from the Planckian locus in CIE 1960 uv, + if above
+    double    ra = Double.NaN;            // General color rendering index, or NaN if not computed
+    double    r9 = Double.NaN;            // Special index for saturated red, if the tables include it
+
+    void copyFrom (Result src) {
+      valid = src.valid;
+      X = src.X;
+      Y = src.Y;
+      Z = src.Z;
+      x = src.x;
+      y = src.y;
+      u = src.u;
+      v = src.v;
+      cct = src.cct;
+      duv = src.duv;
+      ra = src.ra;
+      r9 = src.r9;
+    }
+
+    /**
+     *  @return the color as sRGB, scaled so its brightest channel is full scale
+     */
+    int toRgb () {
+      double r = Math.max(0, 3.2406 * X - 1.5372 * Y - 0.4986 * Z);
+      double g = Math.max(0, -0.9689 * X + 1.8758 * Y + 0.0415 * Z);
+      double b = Math.max(0, 0.0557 * X - 0.2040 * Y + 1.0570 * Z);
+      double max = Math.max(r, Math.max(g, b));
+      if (max <= 0) {
+        return 0;
+      }
+      return (gamma(r / max) << 16) | (gamma(g / max) << 8) | gamma(b / max);
+    }
+
+    private static int gamma (double lin) {
+      double val = lin <= 0.0031308 ? 12.92 * lin : 1.055 * Math.pow(lin, 1 / 2.4) - 0.055;
+      return (int) Math.round(Math.min(1, val) * 255);
+    }
+  }
+
+  /**
+   *  CIE 13.3 test color samples and the CIE daylight components S0, S1 and S2, tabulated on a
+   *  uniform wavelength grid
+   */
+  static class CriTables {
+    final double[]    nm;
+    final double[][]  tcs;                      // Reflectance of each sample, 0 to 1
+    final double[]    s0, s1, s2;
+    final double[][]  cmf;                      // x, y and z bar at each wavelength, times the step
+
+    private CriTables (double[] nm, double[][] tcs, double[] s0, double[] s1, double[] s2) {
+      this.nm = nm;
+      this.tcs = tcs;
+      this.s0 = s0;
+      this.s1 = s1;
+      this.s2 = s2;
+      double step = nm.length > 1 ? nm[1] - nm[0] : 1;
+      cmf = new double[3][nm.length];
+      for (int ii = 0; ii < nm.length; ii++) {
+        cmf[0][ii] = xBar(nm[ii]) * step;
+        cmf[1][ii] = yBar(nm[ii]) * step;
+        cmf[2][ii] = zBar(nm[ii]) * step;
+      }
+    }
+
+    /**
+     *  Load the tables from a CSV file with a header row naming its columns: "nm", "S0", "S1",
+     *  "S2" and "TCS01" to "TCS08" are required, and "TCS09" to "TCS14" are optional.  Wavelengths
+     *  must be evenly spaced.  Reflectances may be 0 to 1, or percentages.
+     */
+    static CriTables load (File file) throws IOException {
+      List<double[]> rows = new ArrayList<>();
+      String[] header = null;
+      try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          line = line.trim();
+          if (line.isEmpty() || line.startsWith("#")) {
+            continue;
+          }
+          String[] parts = line.split(",");
+          if (header == null) {
+            header = parts;
+            continue;
+          }
+          double[] row = new double[header.length];
+          try {
+            for (int ii = 0; ii < row.length; ii++) {
+              row[ii] = Double.parseDouble(parts[ii].trim());
+            }
+          } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Invalid line \"" + line + "\" in " + file);
+          }
+          rows.add(row);
+        }
+      }
+      if (header == null || rows.size() < 2) {
+        throw new IOException("No table in " + file);
+      }
+      double[] nm = column(file, header, rows, "nm");
+      for (int ii = 2; ii < nm.length; ii++) {
+        if (Math.abs((nm[ii] - nm[ii - 1]) - (nm[1] - nm[0])) > 1e-6 || nm[1] <= nm[0]) {
+          throw new IOException("Wavelengths in " + file + " must be evenly spaced and increasing");
+        }
+      }
+      List<double[]> tcs = new ArrayList<>();
+      for (int ii = 1; ii <= 14; ii++) {
+        String name = String.format("TCS%02d", ii);
+        if (ii > 8 && indexOf(header, name) < 0) {
+          break;
+        }
+        double[] refl = column(file, header, rows, name);
+        double max = 0;
+        for (double val : refl) {
+          max = Math.max(max, val);
+        }
+        if (max > 1.5) {
+          // Percentages
+          for (int jj = 0; jj < refl.length; jj++) {
+            refl[jj] /= 100;
+          }
+        }
+        tcs.add(refl);
+      }
+      return new CriTables(nm, tcs.toArray(new double[0][]), column(file, header, rows, "S0"),
+                           column(file, header, rows, "S1"), column(file, header, rows, "S2"));
+    }
+
+    private static int indexOf (String[] header, String name) {
+      for (int ii = 0; ii < header.length; ii++) {
+        if (header[ii].trim().equalsIgnoreCase(name)) {
+          return ii;
+        }
+      }
+      return -1;
+    }
+
+    private static double[] column (File file, String[] header, List<double[]> rows, String name) throws IOException {
+      int col = indexOf(header, name);
+      if (col < 0) {
+        throw new IOException("No \"" + name + "\" column in " + file);
+      }
+      double[] vals = new double[rows.size()];
+      for (int ii = 0; ii < vals.length; ii++) {
+        vals[ii] = rows.get(ii)[col];
+      }
+      return vals;
+    }
+
+    /**
+     *  @return reflectance of a sample at nanometers, interpolated, or 0 outside the table
+     */
+    double reflectance (int sample, double nanometers) {
+      double pos = (nanometers - nm[0]) / (nm[1] - nm[0]);
+      if (pos < 0 || pos > nm.length - 1) {
+        return 0;
+      }
+      int idx = Math.min((int) pos, nm.length - 2);
+      double frac = pos - idx;
+      return tcs[sample][idx] + frac * (tcs[sample][idx + 1] - tcs[sample][idx]);
+    }
+  }
+
+  private static double lobe (double nm, double mu, double sigmaBelow, double sigmaAbove) {
+    double t = (nm - mu) / (nm < mu ? sigmaBelow : sigmaAbove);
+    return Math.exp(-0.5 * t * t);
+  }
+
+  static double xBar (double nm) {
+    return 1.056 * lobe(nm, 599.8, 37.9, 31.0) + 0.362 * lobe(nm, 442.0, 16.0, 26.7) - 0.065 * lobe(nm, 501.1, 20.4, 26.2);
+  }
+
+  static double yBar (double nm) {
+    return 0.821 * lobe(nm, 568.8, 46.9, 40.5) + 0.286 * lobe(nm, 530.9, 16.3, 31.1);
+  }
+
+  static double zBar (double nm) {
+    return 1.217 * lobe(nm, 437.0, 11.8, 36.0) + 0.681 * lobe(nm, 459.0, 26.0, 13.8);
+  }
+
+  /**
+   *  @param tables test color samples and daylight components for the CRI, or null to not compute it
+   */
+  void setCriTables (CriTables tables) {
+    this.tables = tables;
+  }
+
+  CriTables getCriTables () {
+    return tables;
+  }
+
+  /**
+   *  Build a weight per pixel for each color matching function, times the pixel's span in nm and,
+   *  for the CRI, times the reflectance of each sample (the first "sample" being a perfect white
+   *  over the tables' range)
+   */
+  private void build (Calibration cal, CriTables crit) {
+    double[] nm = cal.getWavelengths();
+    int first = cal.getUsableStart(), last = cal.getUsableEnd() - 1;
+    start = first;
+    while (start < last && nm[start] < MIN_NM) {
+      start++;
+    }
+    end = start;
+    while (end <= last && nm[end] <= MAX_NM) {
+      end++;
+    }
+    int count = crit != null ? crit.tcs.length + 1 : 0;
+    stride = 3 + 3 * count;
+    weights = new double[(end - start) * stride];
+    sums = new double[stride];
+    int idx = 0;
+    for (int px = start; px < end; px++) {
+      double span = (nm[Math.min(px + 1, last)] - nm[Math.max(px - 1, first)]) / (Math.min(px + 1, last) - Math.max(px - 1, first));
+      double xb = xBar(nm[px]) * span, yb = yBar(nm[px]) * span, zb = zBar(nm[px]) * span;
+      weights[idx++] = xb;
+      weights[idx++] = yb;
+      weights[idx++] = zb;
+      for (int ii = 0; ii < count; ii++) {
+        double refl;
+        if (ii == 0) {
+          refl = nm[px] >= crit.nm[0] && nm[px] <= crit.nm[crit.nm.length - 1] ? 1 : 0;
+        } else {
+          refl = crit.reflectance(ii - 1, nm[px]);
+        }
+        weights[idx++] = xb * refl;
+        weights[idx++] = yb * refl;
+        weights[idx++] = zb * refl;
+      }
+    }
+    if (crit != null) {
+      refSpectrum = new double[crit.nm.length];
+      refU = new double[crit.tcs.length];
+      refV = new double[crit.tcs.length];
+      refW = new double[crit.tcs.length];
+    }
+    refCct = Double.NaN;
+    this.cal = cal;
+    tablesFor = crit;
+  }
+
+  /**
+   *  Measure the color of a frame
+   *  @param values frame values, indexed by pixel
+   *  @param mode units of values
+   *  @param result receives the color, which is marked invalid if it can't be measured
+   */
+  void measure (float[] values, int length, Calibration cal, SpectrumProcessor.Mode mode, Result result) {
+    result.valid = false;
+    result.ra = result.r9 = Double.NaN;
+    if (cal == null || (mode != SpectrumProcessor.Mode.SCOPE && mode != SpectrumProcessor.Mode.IRRADIANCE)) {
+      return;
+    }
+    CriTables crit = tables;
+    if (cal != this.cal || crit != tablesFor) {
+      build(cal, crit);
+    }
+    int stop = Math.min(end, length);
+    double X = 0, Y = 0, Z = 0;
+    double[] wts = weights;
+    if (stride == 3) {
+      for (int px = start, idx = 0; px < stop; px++, idx += 3) {
+        double val = values[px];
+        X += val * wts[idx];
+        Y += val * wts[idx + 1];
+        Z += val * wts[idx + 2];
+      }
+    } else {
+      double[] acc = sums;
+      for (int ii = 0; ii < stride; ii++) {
+        acc[ii] = 0;
+      }
+      for (int px = start, idx = 0; px < stop; px++) {
+        double val = values[px];
+        for (int ii = 0; ii < stride; ii++) {
+          acc[ii] += val * wts[idx++];
+        }
+      }
+      X = acc[0];
+      Y = acc[1];
+      Z = acc[2];
+    }
+    double sum = X + Y + Z;
+    if (Y <= 0 || sum <= 0) {
+      return;
+    }
+    result.X = X;
+    result.Y = Y;
+    result.Z = Z;
+    result.x = X / sum;
+    result.y = Y / sum;
+    double den = X + 15 * Y + 3 * Z;
+    result.u = 4 * X / den;
+    result.v = 9 * Y / den;
+    // McCamy's cubic in the inverse slope of the line to the epicenter (0.3320, 0.1858)
+    double n = (result.x - 0.3320) / (0.1858 - result.y);
+    double cct = ((449 * n + 3525) * n + 6823.3) * n + 5520.33;
+    if (cct >= 1000 && cct <= 25000) {
+      result.cct = cct;
+      double[] uv = this.uv;
+      planckUv(cct, uv);
+      double du = result.u - uv[0], dv = result.v * 2 / 3 - uv[1];
+      result.duv = Math.copySign(Math.sqrt(du * du + dv * dv), dv);
+      if (crit != null && stride > 3) {
+        colorRendering(crit, cct, result);
+      }
+    } else {
+      result.cct = Double.NaN;
+      result.duv = Double.NaN;
+    }
+    result.valid = true;
+  }
+
+  /**
+   *  Find the CIE 1960 uv of a blackbody at temperature kelvin
+   */
+  private static void planckUv (double kelvin, double[] uv) {
+    double X = 0, Y = 0, Z = 0;
+    for (int ii = 0; ii < locusX.length; ii++) {
+      double power = planck(MIN_NM + ii * LOCUS_STEP, kelvin);
+      X += power * locusX[ii];
+      Y += power * locusY[ii];
+      Z += power * locusZ[ii];
+    }
+    double den = X + 15 * Y + 3 * Z;
+    uv[0] = 4 * X / den;
+    uv[1] = 6 * Y / den;
+  }
+
+  /**
+   *  @return relative spectral power of a blackbody, normalized to 1 at 560 nm
+   */
+  static double planck (double nm, double kelvin) {
+    double ratio = 560 / nm;
+    return ratio * ratio * ratio * ratio * ratio * Math.expm1(C2 / (560 * kelvin)) / Math.expm1(C2 / (nm * kelvin));
+  }
+
+  /**
+   *  Compute the general color rendering index, Ra, as CIE 13.3 specifies: the test samples'
+   *  colors under the frame and under a reference illuminant of the same CCT are compared in the
+   *  CIE 1964 U*V*W* space, after a von Kries adaptation of the frame's white point to the
+   *  reference's.
+   */
+  private void colorRendering (CriTables crit, double cct, Result result) {
+    if (!(Math.abs(cct - refCct) <= REF_CCT_TOLERANCE)) {
+      reference(crit, cct);
+    }
+    int count = crit.tcs.length;
+    double[] acc = sums;
+    double[] uv = this.uv;
+    // White point, from the "sample" covering the tables' range, so it covers the reference's wavelengths
+    uv(acc[3], acc[4], acc[5], uv);
+    double testY = acc[4];
+    double cr = refC / c(uv[0], uv[1]), dr = refD / d(uv[0], uv[1]);
+    double sumR = 0;
+    for (int ii = 0; ii < count; ii++) {
+      int idx = 6 + 3 * ii;
+      uv(acc[idx], acc[idx + 1], acc[idx + 2], uv);
+      double ci = c(uv[0], uv[1]), di = d(uv[0], uv[1]);
+      double den = 16.518 + 1.481 * cr * ci - dr * di;
+      double ua = (10.872 + 0.404 * cr * ci - 4 * dr * di) / den;
+      double va = 5.520 / den;
+      double wt = 25 * Math.cbrt(100 * acc[idx + 1] / testY) - 17;
+      double ut = 13 * wt * (ua - refUv[0]), vt = 13 * wt * (va - refUv[1]);
+      double du = ut - refU[ii], dv = vt - refV[ii], dw = wt - refW[ii];
+      samples[ii] = 100 - 4.6 * Math.sqrt(du * du + dv * dv + dw * dw);
+      if (ii < 8) {
+        sumR += samples[ii];
+      }
+    }
+    result.ra = sumR / 8;
+    result.r9 = count > 8 ? samples[8] : Double.NaN;
+  }
+
+  /**
+   *  Compute the reference illuminant for a CCT (a blackbody below 5000 K, otherwise CIE
+   *  daylight) and the U*V*W* of each test sample under it
+   */
+  private void reference (CriTables crit, double cct) {
+    double[] ref = refSpectrum;
+    if (cct < 5000) {
+      for (int ii = 0; ii < ref.length; ii++) {
+        ref[ii] = planck(crit.nm[ii], cct);
+      }
+    } else {
+      double t = 1e3 / cct;
+      double xd = cct <= 7000 ? ((-4.6070 * t + 2.9678) * t + 0.09911) * t + 0.244063
+                              : ((-2.0064 * t + 1.9018) * t + 0.24748) * t + 0.237040;
+      double yd = -3.000 * xd * xd + 2.870 * xd - 0.275;
+      double m = 0.0241 + 0.2562 * xd - 0.7341 * yd;
+      double m1 = (-1.3515 - 1.7703 * xd + 5.9114 * yd) / m;
+      double m2 = (0.0300 - 31.4424 * xd + 30.0717 * yd) / m;
+      for (int ii = 0; ii < ref.length; ii++) {
+        ref[ii] = crit.s0[ii] + m1 * crit.s1[ii] + m2 * crit.s2[ii];
+      }
+    }
+    double[] xyz = this.xyz, uv = this.uv;
+    referenceXyz(crit, ref, -1, xyz);
+    double refY = xyz[1];
+    uv(xyz[0], xyz[1], xyz[2], refUv);
+    refC = c(refUv[0], refUv[1]);
+    refD = d(refUv[0], refUv[1]);
+    for (int ii = 0; ii < crit.tcs.length; ii++) {
+      referenceXyz(crit, ref, ii, xyz);
+      uv(xyz[0], xyz[1], xyz[2], uv);
+      double wr = 25 * Math.cbrt(100 * xyz[1] / refY) - 17;
+      refU[ii] = 13 * wr * (uv[0] - refUv[0]);
+      refV[ii] = 13 * wr * (uv[1] - refUv[1]);
+      refW[ii] = wr;
+    }
+    refCct = cct;
+  }
+
+  /**
+   *  Find the XYZ of sample (or of the illuminant itself, if -1) under the reference illuminant
+   */
+  private static void referenceXyz (CriTables crit, double[] ref, int sample, double[] xyz) {
+    double X = 0, Y = 0, Z = 0;
+    for (int ii = 0; ii < ref.length; ii++) {
+      double power = sample < 0 ? ref[ii] : ref[ii] * crit.tcs[sample][ii];
+      X += power * crit.cmf[0][ii];
+      Y += power * crit.cmf[1][ii];
+      Z += power * crit.cmf[2][ii];
+    }
+    xyz[0] = X;
+    xyz[1] = Y;
+    xyz[2] = Z;
+  }
+
+  /**
+   *  Find the CIE 1960 u and v of X, Y and Z
+   */
+  private static void uv (double X, double Y, double Z, double[] uv) {
+    double den = X + 15 * Y + 3 * Z;
+    uv[0] = 4 * X / den;
+    uv[1] = 6 * Y / den;
+  }
+
+  private static double c (double u, double v) {
+    return (4 - u - 10 * v) / v;
+  }
+
+  private static double d (double u, double v) {
+    return (1.708 * v + 0.404 - 1.481 * u) / v;
+  }
+
+  /**
+   *  Measures the cost of colorimetry per frame, without and with the CRI, on a blackbody
+   *  spectrum seen through the FakeUSB4000's calibration.  The CRI is computed from the tables
+   *  in the CSV file given as the first argument or, if none is given, from made up samples
+   *  that only serve to time it.  Also times WavelengthToRGB.getRBG().
+   */
+  public static void main (String[] args) throws IOException {
+    double[] coff = {190.3772211113, 0.3631595112307, -1.246344904E-5, -2.247514764E-9};
+    Calibration cal = new Calibration(coff, 3840, Acquisition.usableStart, Acquisition.usableEnd, "fake");
+    float[] values = new float[3840];
+    for (int px = 0; px < values.length; px++) {
+      values[px] = (float) (1000 * planck(cal.pixelToNanometers(px), 2856));
+    }
+    CriTables crit;
+    if (args.length > 0) {
+      crit = CriTables.load(new File(args[0]));
+    } else {
+      double[] nm = new double[81];
+      double[][] tcs = new double[14][81];
+      double[] s0 = new double[81], s1 = new double[81], s2 = new double[81];
+      for (int ii = 0; ii < nm.length; ii++) {
+        nm[ii] = 380 + 5 * ii;
+        for (int jj = 0; jj < tcs.length; jj++) {
+          tcs[jj][ii] = 0.5 + 0.4 * Math.sin(nm[ii] / (40 + 7 * jj) + jj);
+        }
+        s0[ii] = 100;
+      }
+      crit = new CriTables(nm, tcs, s0, s1, s2);
+    }
+    Colorimetry color = new Colorimetry();
+    Result result = new Result();
+    for (int pass = 0; pass < 2; pass++) {
+      for (int test = 0; test < 2; test++) {
+        color.setCriTables(test == 0 ? null : crit);
+        // Build the weights outside the timed loop, as they're only built when the tables change
+        color.measure(values, values.length, cal, SpectrumProcessor.Mode.IRRADIANCE, result);
+        int iterations = 20000;
+        long bytes = ScanBuffer.allocated();
+        long start = System.nanoTime();
+        for (int ii = 0; ii < iterations; ii++) {
+          color.measure(values, values.length, cal, SpectrumProcessor.Mode.IRRADIANCE, result);
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = ScanBuffer.allocated() - bytes;
+        if (pass == 1) {
+          System.out.println(String.format("%-16s %7.2f us/frame, %d bytes/frame allocated  x %.4f y %.4f  CCT %.0f K  "
+                             + "Duv %+.4f  Ra %.1f", test == 0 ? "XYZ, xy, CCT:" : "With CRI:", elapsed / 1e3 / iterations,
+                             bytes / iterations, result.x, result.y, result.cct, result.duv, result.ra));
+        }
+      }
+    }
+    for (int pass = 0; pass < 2; pass++) {
+      int iterations = 1000000;
+      long sum = 0;
+      long start = System.nanoTime();
+      for (int ii = 0; ii < iterations; ii++) {
+        sum += WavelengthToRGB.getRBG(380 + (ii % 3700) * 0.1).getRGB();
+      }
+      if (pass == 1) {
+        System.out.println(String.format("WavelengthToRGB: %.1f ns/call (%d)", (System.nanoTime() - start) / (double) iterations,
+                           sum & 1));
+      }
+    }
+  }
+}
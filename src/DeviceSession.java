@@ -0,0 +1,496 @@
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Long-lived connection to a USB4000.  The device is opened, initialized and its status block
+ *  read on first use, then kept open so each scan, or Info request, costs only its own transfers.
+ *  Information strings read from the EEPROM are cached for as long as the device stays connected.
+ *
+ *  Integration time, trigger mode and strobe settings are requested without waiting on a scan in
+ *  progress, then sent by the acquisition thread before its next scan, and again whenever the
+ *  device is reopened.  The status block is kept up to date as commands are sent, so a command
+ *  is only sent when it would change the device's state.
+ *
+ *  If a transfer fails because the device was unplugged, the connection is dropped and the next
+ *  call reopens it, so the caller only needs to retry.  When several USB4000s are attached, each
+ *  session can be bound to one by its serial number, which also finds it again if it comes back
+ *  at another address.
+ */
+
+class DeviceSession {
+  private static final short    vendId = 0x2457;
+  private static final short    prodId = 0x1022;
+  private static final byte     iFace  = 0x00;
+  private static final byte     eOut1 = 0x01;
+  private static final byte     eIn1 = (byte) 0x81;
+  private static final byte[]   init = new byte[] {(byte) 0x01};
+  private static final byte[]   queryStatus = new byte[] {(byte) 0xFE};
+  static final int              MIN_INTEGRATION = 3800;       // Microseconds
+  static final int              MAX_INTEGRATION = 10000000;
+  private static final int      hsReadout = 1000;             // Estimated microseconds to read out a scan
+  private static final int      fsReadout = 6500;
+  private USBTransport          usb;
+  private ScanReader            reader;
+  private byte[]                status;
+  private final String[]        info = new String[32];
+  private volatile int          integration;                  // Requested microseconds, or 0 for the device's
+  private volatile TriggerMode  trigger;                      // Requested mode, or null for the device's
+  private volatile int          strobe = -1;                  // Requested state (0 or 1), or -1 for the device's
+  private volatile boolean      lowPower;
+  private volatile int          deviceIntegration;            // From the status block, or 0 if not yet read
+  private volatile boolean      highSpeed = true;
+  private volatile String       serial;                       // Device to open, or null for the first found
+  private AcquisitionMetrics    metrics;
+
+  /**
+   *  Trigger modes set by command 0x0A
+   */
+  enum TriggerMode {NORMAL, SOFTWARE, EXTERNAL_LEVEL, EXTERNAL_SYNC, EXTERNAL_EDGE}
+
+  DeviceSession () {
+  }
+
+  /**
+   *  @param serial serial number of the device to open, as read from EEPROM slot 0
+   */
+  DeviceSession (String serial) {
+    this.serial = serial;
+  }
+
+  /**
+   *  Opens the index'th USB4000 unless one of these system properties selects another transport:
+   *    usb4000.fake        FakeUSB4000.  If not empty, names a CSV file saved by "Save Scan" to
+   *                        replay, otherwise a Hg-Ar lamp spectrum is synthesized
+   *    usb4000.fake.count  number of FakeUSB4000s, each with its own serial number and a
+   *                        wavelength range 400 nm above the last (default 1)
+   *    usb4000.fake.faults fraction of the FakeUSB4000's scans to lose a packet from (default 0)
+   *    usb4000.replay      ReplayTransport playing back the named capture file in real time, or
+   *                        as fast as possible if usb4000.replay.fast is also set
+   */
+  private static USBTransport openDevice (int index) {
+    String fake = System.getProperty("usb4000.fake");
+    String replay = System.getProperty("usb4000.replay");
+    try {
+      if (replay != null) {
+        return new ReplayTransport(new File(replay), System.getProperty("usb4000.replay.fast") == null);
+      } else if (fake != null) {
+        FakeUSB4000 dev = new FakeUSB4000(fake.length() > 0 ? fake : null, true, index);
+        dev.setFaultRate(Double.parseDouble(System.getProperty("usb4000.fake.faults", "0")));
+        return dev;
+      } else {
+        return new USBIO(vendId, prodId, iFace, eOut1, eIn1, index);
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex.getMessage(), ex);
+    }
+  }
+
+  /**
+   *  @return number of devices openDevice() can choose from
+   */
+  private static int deviceCount () {
+    if (System.getProperty("usb4000.replay") != null) {
+      return 1;
+    } else if (System.getProperty("usb4000.fake") != null) {
+      return Integer.getInteger("usb4000.fake.count", 1);
+    }
+    return USBIO.countDevices(vendId, prodId);
+  }
+
+  /**
+   *  Open the device with the requested serial number, trying each attached device in turn, or
+   *  the first one if no serial number was requested.  If usb4000.record names a file, every
+   *  transfer made with the device opened is captured to it.
+   */
+  private USBTransport openSelected () {
+    String want = serial;
+    USBTransport usb = null;
+    if (want == null) {
+      usb = openDevice(0);
+    } else {
+      int count = deviceCount();
+      for (int ii = 0; ii < count && usb == null; ii++) {
+        USBTransport dev;
+        try {
+          dev = openDevice(ii);
+        } catch (LibUsbException ex) {
+          // Likely in use by another session, and a failed open has already released everything
+          continue;
+        }
+        try {
+          dev.send(init);
+          dev.send(new byte[] {0x05, 0});
+          if (want.equals(getString(dev.receive()))) {
+            usb = dev;
+          }
+        } catch (RuntimeException ex) {
+          // Not usable, so skip it
+        }
+        if (usb == null) {
+          dev.close();
+        }
+      }
+      if (usb == null) {
+        throw new LibUsbException("USB4000 " + want + " not found", LibUsb.ERROR_NO_DEVICE);
+      }
+    }
+    String record = System.getProperty("usb4000.record");
+    if (record != null) {
+      try {
+        usb = new RecordingTransport(usb, new File(record));
+      } catch (IOException ex) {
+        usb.close();
+        throw new IllegalStateException(ex.getMessage(), ex);
+      }
+    }
+    return usb;
+  }
+
+  /**
+   *  Read the serial number of each attached device that isn't already open
+   */
+  static List<String> listSerials () {
+    List<String> serials = new ArrayList<>();
+    int count = deviceCount();
+    for (int ii = 0; ii < count; ii++) {
+      USBTransport usb;
+      try {
+        usb = openDevice(ii);
+      } catch (LibUsbException ex) {
+        // In use by another session, and a failed open has already released everything
+        continue;
+      }
+      try {
+        usb.send(init);
+        usb.send(new byte[] {0x05, 0});
+        String serial = getString(usb.receive());
+        if (!serial.isEmpty() && !serials.contains(serial)) {
+          serials.add(serial);
+        }
+      } catch (RuntimeException ex) {
+        // Skip devices that don't answer
+      } finally {
+        usb.close();
+      }
+    }
+    return serials;
+  }
+
+  /**
+   *  Switch to the device with this serial number, which is opened on the next call
+   *  @param serial serial number, or null for the first device found
+   */
+  synchronized void setSerial (String serial) {
+    if (serial == null ? this.serial != null : !serial.equals(this.serial)) {
+      disconnect();
+      this.serial = serial;
+    }
+  }
+
+  private USBTransport connect () {
+    if (usb == null) {
+      USBTransport usb = openSelected();
+      try {
+        usb.send(init);
+        usb.send(queryStatus);
+        status = usb.receive();
+        if (status.length < 16) {
+          throw new LibUsbException("Unable to read status", LibUsb.ERROR_IO);
+        }
+        highSpeed = status[14] == (byte) 0x80;
+        deviceIntegration = getInt(status, 2);
+        apply(usb);
+      } catch (RuntimeException ex) {
+        usb.close();
+        throw ex;
+      }
+      this.usb = usb;
+    }
+    return usb;
+  }
+
+  /**
+   *  Send the commands needed to bring the device to the requested settings, updating the
+   *  cached status block to match
+   */
+  private void apply (USBTransport usb) {
+    int micros = integration;
+    if (micros > 0 && micros != getInt(status, 2)) {
+      usb.send(new byte[] {0x02, (byte) micros, (byte) (micros >> 8), (byte) (micros >> 16), (byte) (micros >> 24)});
+      putInt(status, 2, micros);
+      deviceIntegration = micros;
+    }
+    int strobe = this.strobe;
+    if (strobe >= 0 && strobe != status[6]) {
+      usb.send(new byte[] {0x03, (byte) strobe, 0});
+      status[6] = (byte) strobe;
+    }
+    TriggerMode trigger = this.trigger;
+    if (trigger != null && trigger.ordinal() != status[7]) {
+      usb.send(new byte[] {0x0A, (byte) trigger.ordinal(), 0});
+      status[7] = (byte) trigger.ordinal();
+    }
+    if (reader != null) {
+      reader.setIntegrationTime(getInt(status, 2));
+    }
+  }
+
+  /**
+   *  Send 0x04 (Set Shutdown Mode), unless the device is already in that state
+   *  @param shutdown true to power down everything but the USB interface
+   */
+  private void power (USBTransport usb, boolean shutdown) {
+    if (shutdown != (status[10] != 0)) {
+      usb.send(new byte[] {0x04, (byte) (shutdown ? 0 : 1), 0});
+      status[10] = (byte) (shutdown ? 1 : 0);
+    }
+  }
+
+  private static int getInt (byte[] data, int off) {
+    return (data[off] & 0xFF) + ((data[off + 1] & 0xFF) << 8) + ((data[off + 2] & 0xFF) << 16) +
+           ((data[off + 3] & 0xFF) << 24);
+  }
+
+  private static void putInt (byte[] data, int off, int val) {
+    for (int ii = 0; ii < 4; ii++) {
+      data[off + ii] = (byte) (val >> (ii * 8));
+    }
+  }
+
+  /**
+   *  Request an integration time, which is sent before the next scan
+   *  @param micros from MIN_INTEGRATION to MAX_INTEGRATION microseconds
+   */
+  void setIntegrationTime (int micros) {
+    if (micros < MIN_INTEGRATION || micros > MAX_INTEGRATION) {
+      throw new IllegalArgumentException("Integration time " + micros + " us is outside " + MIN_INTEGRATION +
+                                         " - " + MAX_INTEGRATION + " us");
+    }
+    integration = micros;
+  }
+
+  /**
+   *  @return integration time in microseconds the next scan will use, or 0 if unknown until the
+   *  device is opened
+   */
+  int getIntegrationTime () {
+    int micros = integration;
+    return micros > 0 ? micros : deviceIntegration;
+  }
+
+  /**
+   *  Request a trigger mode, which is sent before the next scan.  In the external modes, scans
+   *  wait on the trigger input, so a scan may time out if it isn't pulsed.
+   */
+  void setTriggerMode (TriggerMode trigger) {
+    this.trigger = trigger;
+  }
+
+  /**
+   *  Request the strobe/lamp enable output be turned on or off before the next scan
+   */
+  void setStrobe (boolean on) {
+    strobe = on ? 1 : 0;
+  }
+
+  /**
+   *  @param lowPower true to shut down the device's analog circuits while not scanning.  It's
+   *  powered up again before the next scan.
+   */
+  void setLowPower (boolean lowPower) {
+    this.lowPower = lowPower;
+  }
+
+  /**
+   *  Estimate the highest scan rate the device can reach at the integration time the next scan
+   *  will use.  The detector reads out one scan while integrating the next, so the period is the
+   *  longer of the integration time and the detector's minimum, plus the USB transfer.  Doesn't
+   *  open the device, so it assumes high speed until it has been opened.
+   *  @return scans per second
+   */
+  double getMaxScanRate () {
+    int micros = getIntegrationTime();
+    if (micros == 0) {
+      micros = 10000;
+    }
+    return 1e6 / (Math.max(micros, MIN_INTEGRATION) + (highSpeed ? hsReadout : fsReadout));
+  }
+
+  /**
+   *  Drop the connection after a failure, so the next call reopens the device
+   */
+  private void disconnect () {
+    if (usb != null) {
+      try {
+        if (reader != null) {
+          reader.cancel();
+        }
+        usb.close();
+      } catch (RuntimeException ex) {
+        // Device is likely already gone
+      }
+      usb = null;
+      reader = null;
+      status = null;
+      for (int ii = 0; ii < info.length; ii++) {
+        info[ii] = null;
+      }
+    }
+  }
+
+  private RuntimeException failed (RuntimeException ex) {
+    if (ex instanceof LibUsbException) {
+      disconnect();
+    }
+    return ex;
+  }
+
+  synchronized boolean isHighSpeed () {
+    connect();
+    return status[14] == (byte) 0x80;
+  }
+
+  synchronized int getPixels () {
+    connect();
+    return (status[0] & 0xFF) + ((status[1] & 0xFF) << 8);
+  }
+
+  synchronized TriggerMode getTriggerMode () {
+    connect();
+    int mode = status[7];
+    return mode >= 0 && mode < TriggerMode.values().length ? TriggerMode.values()[mode] : TriggerMode.NORMAL;
+  }
+
+  synchronized boolean isStrobeOn () {
+    connect();
+    return status[6] != 0;
+  }
+
+  /**
+   *  Read an information string from the USB4000's EEPROM, such as the serial number (0), or
+   *  the wavelength calibration coefficients (1-4)
+   */
+  synchronized String getInfo (int index) {
+    if (info[index] == null) {
+      try {
+        USBTransport usb = connect();
+        usb.send(new byte[] {0x05, (byte) index});
+        info[index] = getString(usb.receive());
+      } catch (RuntimeException ex) {
+        throw failed(ex);
+      }
+    }
+    return info[index];
+  }
+
+  /**
+   *  Write an information string to the USB4000's EEPROM
+   *  @param value at most 15 ASCII characters
+   */
+  synchronized void setInfo (int index, String value) {
+    byte[] str = value.getBytes(StandardCharsets.US_ASCII);
+    if (str.length > 15) {
+      throw new IllegalArgumentException("\"" + value + "\" is longer than 15 characters");
+    }
+    byte[] cmd = new byte[18];
+    cmd[0] = 0x06;
+    cmd[1] = (byte) index;
+    System.arraycopy(str, 0, cmd, 2, str.length);
+    try {
+      connect().send(cmd);
+      info[index] = value;
+    } catch (RuntimeException ex) {
+      throw failed(ex);
+    }
+  }
+
+  private static String getString (byte[] data) {
+    StringBuilder buf = new StringBuilder();
+    for (int ii = 2; ii < data.length; ii++) {
+      if (data[ii] == 0) {
+        break;
+      }
+      buf.append((char) data[ii]);
+    }
+    return buf.toString();
+  }
+
+  synchronized String getPcbTemp () {
+    return String.format("%2.2f", readPcbTemp()) + "° C";
+  }
+
+  /**
+   *  @return PCB temperature in degrees C
+   */
+  synchronized double readPcbTemp () {
+    try {
+      USBTransport usb = connect();
+      usb.send(new byte[] {(byte) 0x6C});
+      byte[] data = usb.receive();
+      if (data.length < 3) {
+        throw new LibUsbException("Unable to read PCB temperature", LibUsb.ERROR_IO);
+      }
+      return ((data[1] & 0xFF) + ((data[1 + 1] & 0xFF) << 8)) * .003906;
+    } catch (RuntimeException ex) {
+      throw failed(ex);
+    }
+  }
+
+  /**
+   *  @param metrics receives transfer timings, and counts of failed and short reads
+   */
+  synchronized void setMetrics (AcquisitionMetrics metrics) {
+    this.metrics = metrics;
+    if (reader != null) {
+      reader.setMetrics(metrics);
+    }
+  }
+
+  /**
+   *  Request and read one scan, reusing the reads ScanReader has queued from the previous scan.
+   *  A scan that's incomplete, or out of step, is recovered from without closing the device, and
+   *  returned with isValid() false only if the retry failed too.
+   *  @return buffer holding the scan, which stays valid until the next call
+   */
+  synchronized ScanBuffer readScan () {
+    try {
+      USBTransport usb = connect();
+      if (reader == null) {
+        reader = new ScanReader(usb, status[14] == (byte) 0x80, getPixels(), true);
+        reader.setMetrics(metrics);
+      }
+      power(usb, false);
+      apply(usb);
+      return reader.readScan();
+    } catch (RuntimeException ex) {
+      throw failed(ex);
+    }
+  }
+
+  /**
+   *  Cancel reads queued for the next scan.  Called when scanning stops so the device isn't
+   *  left with outstanding reads while idle.
+   */
+  synchronized void stopScan () {
+    if (reader != null) {
+      reader.cancel();
+      if (lowPower) {
+        try {
+          power(usb, true);
+        } catch (RuntimeException ex) {
+          throw failed(ex);
+        }
+      }
+    }
+  }
+
+  synchronized void close () {
+    disconnect();
+  }
+}
@@ -0,0 +1,226 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ *  Emulates enough of the USB4000's command protocol to run the viewer, or benchmark the
+ *  scan path, without a spectrometer attached.  The spectrum returned for each 0x09 request is
+ *  either replayed from a CSV file saved with "Save Scan", or synthesized as a Hg-Ar calibration
+ *  lamp seen through the calibration stored in the emulated EEPROM, complete with dark offset,
+ *  fixed pattern noise, a slowly drifting baseline, shot and read noise, and saturation.
+ *
+ *  Timing is modelled as an integration delay before the first packet of a scan is available,
+ *  a per-packet transfer time, and a fixed round trip cost charged to each blocking receive().
+ *  A fraction of scans can also be made to lose a packet, to exercise recovery.
+ */
+
+class FakeUSB4000 extends QueuedTransport {
+  private static final int          PIXELS = 3840;
+  private static final String[]     defaultInfo = {
+      "USB4F0FAKE",                                                     // 0: Serial Number
+      "190.3772211113", "0.3631595112307",                              // 1, 2: Cal Coefficients
+      "-1.246344904E-5", "-2.247514764E-9",                             // 3, 4: (15 chars max)
+  };
+  // Hg-Ar lamp lines (nm) and approximate relative intensities
+  private static final double[][]   lines = {
+      {253.65, 0.30}, {296.73, 0.05}, {302.15, 0.05}, {313.16, 0.15}, {334.15, 0.03}, {365.02, 0.25},
+      {404.66, 0.35}, {407.78, 0.05}, {435.84, 1.00}, {546.07, 0.90}, {576.96, 0.25}, {579.07, 0.27},
+      {696.54, 0.08}, {706.72, 0.06}, {727.29, 0.03}, {738.40, 0.05}, {750.39, 0.10}, {763.51, 0.20},
+      {772.38, 0.06}, {794.82, 0.05}, {800.62, 0.05}, {811.53, 0.15},
+  };
+  private static final int          DARK_LEVEL = 1500;
+  private static final double       FWHM = 1.5;                       // Line width in nm
+  private final String[]            info = defaultInfo.clone();      // Emulated EEPROM, writable with 0x06
+  private final int[]               replay;
+  private final double[]            signal = new double[PIXELS];
+  private final double[]            dark = new double[PIXELS];
+  private final Random              random;
+  private final byte[]              spectrum = new byte[PIXELS * 2];
+  private final boolean             hsUsb;
+  private final long                startNanos = System.nanoTime();
+  private long                      integrationNanos = 10000000L;
+  private long                      packetNanos = 13000L;
+  private double                    faultRate;
+  private int                       strobe, trigger;
+  private boolean                   shutdown;
+
+  FakeUSB4000 (String csvFile, boolean hsUsb) throws IOException {
+    this(csvFile, hsUsb, 0);
+  }
+
+  /**
+   *  @param index for emulating several devices.  Each has its own serial number and noise, and
+   *  a wavelength range 400 nm above the one before it, so neighbours partly overlap.
+   */
+  FakeUSB4000 (String csvFile, boolean hsUsb, int index) throws IOException {
+    this.hsUsb = hsUsb;
+    random = new Random(4000 + index);
+    if (index > 0) {
+      info[0] = defaultInfo[0] + index;
+      info[1] = Double.toString(Double.parseDouble(defaultInfo[1]) + 400 * index);
+    }
+    if (csvFile != null) {
+      replay = new int[PIXELS];
+      // Lines are "index,value" where index is relative to the first usable pixel
+      try (BufferedReader in = new BufferedReader(new FileReader(csvFile))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          String[] parts = line.split(",");
+          if (parts.length == 2) {
+            int px = Integer.parseInt(parts[0].trim()) + Acquisition.usableStart;
+            if (px >= 0 && px < PIXELS) {
+              replay[px] = Integer.parseInt(parts[1].trim());
+            }
+          }
+        }
+      }
+    } else {
+      replay = null;
+      double[] coff = new double[4];
+      for (int ii = 0; ii < 4; ii++) {
+        coff[ii] = Double.parseDouble(info[ii + 1]);
+      }
+      for (int px = 0; px < PIXELS; px++) {
+        // Fixed pattern noise in the dark level
+        dark[px] = DARK_LEVEL + random.nextGaussian() * 15;
+        if (px >= Acquisition.usableStart) {
+          double nm = coff[0] + coff[1] * px + coff[2] * px * px + coff[3] * px * px * px;
+          double dispersion = coff[1] + 2 * coff[2] * px + 3 * coff[3] * px * px;
+          double sigma = FWHM / 2.3548 / dispersion;
+          double val = 0;
+          for (double[] line : lines) {
+            double center = line[0];
+            if (Math.abs(center - nm) < 20) {
+              double dx = (center - nm) / dispersion / sigma;
+              val += line[1] * Math.exp(-0.5 * dx * dx);
+            }
+          }
+          signal[px] = val * 40000;
+        }
+      }
+    }
+  }
+
+  /**
+   *  Set the simulated timing
+   *  @param integrationNanos delay from the 0x09 request until the first packet is available
+   *  @param packetNanos time to transfer each packet once the scan has started
+   *  @param roundTripNanos extra latency for each blocking receive()
+   */
+  void setTiming (long integrationNanos, long packetNanos, long roundTripNanos) {
+    this.integrationNanos = integrationNanos;
+    this.packetNanos = packetNanos;
+    this.roundTripNanos = roundTripNanos;
+  }
+
+  /**
+   *  @param faultRate fraction of scans, 0 to 1, that lose one packet, chosen at random
+   */
+  void setFaultRate (double faultRate) {
+    this.faultRate = faultRate;
+  }
+
+  public synchronized void send (byte[] data) {
+    long now = System.nanoTime();
+    byte[] rsp = null;
+    switch (data[0]) {
+    case (byte) 0xFE:                                                   // Query Status
+      rsp = new byte[16];
+      rsp[0] = (byte) PIXELS;
+      rsp[1] = (byte) (PIXELS >> 8);
+      int integration = (int) (integrationNanos / 1000);
+      for (int ii = 0; ii < 4; ii++) {
+        rsp[2 + ii] = (byte) (integration >> (ii * 8));
+      }
+      rsp[6] = (byte) strobe;
+      rsp[7] = (byte) trigger;
+      rsp[10] = (byte) (shutdown ? 1 : 0);
+      rsp[14] = hsUsb ? (byte) 0x80 : 0;
+      break;
+    case 0x02:                                                          // Set Integration Time (us)
+      long micros = (data[1] & 0xFF) + ((data[2] & 0xFF) << 8) + ((data[3] & 0xFF) << 16) + ((long) (data[4] & 0xFF) << 24);
+      integrationNanos = micros * 1000;
+      break;
+    case 0x03:                                                          // Set Strobe Enable
+      strobe = data[1];
+      break;
+    case 0x04:                                                          // Set Shutdown Mode
+      shutdown = data[1] == 0;
+      break;
+    case 0x0A:                                                          // Set Trigger Mode
+      trigger = data[1];
+      break;
+    case 0x05:                                                          // Query Information
+      int index = data[1];
+      String val = index < info.length ? info[index] : index == 15 ? "H2 OFLV-200-850 25" : "";
+      rsp = new byte[18];
+      rsp[0] = 0x05;
+      rsp[1] = (byte) index;
+      byte[] str = val.getBytes(StandardCharsets.US_ASCII);
+      System.arraycopy(str, 0, rsp, 2, Math.min(str.length, 15));
+      break;
+    case 0x06:                                                          // Write Information
+      if (data[1] < info.length) {
+        int len = 0;
+        while (len < 16 && 2 + len < data.length && data[2 + len] != 0) {
+          len++;
+        }
+        info[data[1]] = new String(data, 2, len, StandardCharsets.US_ASCII);
+      }
+      break;
+    case 0x6C:                                                          // Read PCB Temperature
+      int temp = (int) (25.0 / .003906);
+      rsp = new byte[] {0x08, (byte) temp, (byte) (temp >> 8)};
+      break;
+    case 0x09:                                                          // Request Spectra
+      if (!shutdown) {
+        queueScan(now + integrationNanos);
+      }
+      break;
+    }
+    if (rsp != null) {
+      queue((byte) 0x81, rsp, now);
+    }
+  }
+
+  private void generate (long time) {
+    double scale = integrationNanos / 10e6;
+    // Baseline drifts slowly, by up to +/- 20 counts, as the detector warms
+    double drift = 20 * Math.sin((time - startNanos) / 60e9);
+    for (int px = 0; px < PIXELS; px++) {
+      double val;
+      if (replay != null) {
+        val = replay[px];
+      } else {
+        double light = signal[px] * scale;
+        val = dark[px] + drift + light + random.nextGaussian() * Math.sqrt(64 + light * 0.5);
+      }
+      int counts = (int) Math.min(Math.max(val, 0), 65535);
+      spectrum[px * 2] = (byte) counts;
+      spectrum[px * 2 + 1] = (byte) (counts >> 8);
+    }
+  }
+
+  private void queueScan (long start) {
+    generate(start);
+    int pktSize = hsUsb ? 512 : 64;
+    int pktCount = PIXELS * 2 / pktSize;
+    int lost = faultRate > 0 && random.nextDouble() < faultRate ? random.nextInt(pktCount + 1) : -1;
+    for (int pkt = 0; pkt < pktCount; pkt++) {
+      if (pkt == lost) {
+        continue;
+      }
+      byte[] data = new byte[pktSize];
+      System.arraycopy(spectrum, pkt * pktSize, data, 0, pktSize);
+      // High speed sends the first 2K bytes on 0x86, everything else comes from 0x82
+      byte ep = hsUsb && pkt < 4 ? (byte) 0x86 : (byte) 0x82;
+      queue(ep, data, start + pkt * packetNanos);
+    }
+    // Scan ends with a single sync byte
+    if (lost != pktCount) {
+      queue((byte) 0x82, new byte[] {ScanBuffer.SYNC}, start + pktCount * packetNanos);
+    }
+  }
+}
@@ -0,0 +1,221 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Single producer, multiple consumer ring of preallocated spectrum frames.  The acquisition
+ *  thread claims a slot, fills it and publishes it without ever waiting on a consumer.  Each
+ *  consumer (display, file writer, etc.) reads through its own Reader at its own pace, copying
+ *  frames out under a per-slot sequence number (a seqlock) so a frame overwritten mid-copy is
+ *  detected and counted as dropped rather than returned torn.
+ *
+ *  A volatile write only keeps earlier accesses before it, and a volatile read only keeps later
+ *  ones after it, so the frame's plain fields could otherwise be written before its seq is marked
+ *  -1, or read after it is checked again.  Explicit fences close both gaps.  They come from
+ *  sun.misc.Unsafe, as this targets Java 8, looked up by reflection so it also builds on later JDKs,
+ *  and called through constant method handles, which the JIT inlines to the bare fences.
+ */
+
+class FrameRing {
+  private final Frame[]     slots;
+  private final int         mask;
+  private final AtomicLong  published = new AtomicLong(-1);
+  private static final MethodHandle loadFence, storeFence;
+
+  static {
+    try {
+      Class<?> type = Class.forName("sun.misc.Unsafe");
+      Field field = type.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      Object unsafe = field.get(null);
+      MethodType fence = MethodType.methodType(void.class);
+      loadFence = MethodHandles.lookup().findVirtual(type, "loadFence", fence).bindTo(unsafe);
+      storeFence = MethodHandles.lookup().findVirtual(type, "storeFence", fence).bindTo(unsafe);
+    } catch (ReflectiveOperationException ex) {
+      throw new ExceptionInInitializerError(ex);
+    }
+  }
+
+  static class Frame {
+    private volatile long seq = -1;                   // -1 while being written
+    long                  sequence;
+    long                  nanos;                      // System.nanoTime() when acquired
+    int                   length;
+    int[]                 counts;                     // Averaged and smoothed counts, rounded
+    float[]               values;                     // The same, before rounding, then processed
+    SpectrumProcessor.Mode mode = SpectrumProcessor.Mode.SCOPE;        // Units of values
+    final double[]        peaks = new double[PeakDetector.MAX_PEAKS];   // Fractional pixel of each peak
+    int                   peakCount;
+    final Colorimetry.Result color = new Colorimetry.Result();      // Valid if measured
+
+    Frame (int pixels) {
+      counts = new int[pixels];
+      values = new float[pixels];
+    }
+
+    /**
+     *  Copy src into this frame, growing counts and values if needed
+     */
+    void copyFrom (Frame src) {
+      // Read src's fields once, as the producer may be rewriting them
+      int[] data = src.counts;
+      float[] vals = src.values;
+      int len = Math.min(src.length, Math.min(data.length, vals.length));
+      if (counts.length < len) {
+        counts = new int[len];
+      }
+      if (values.length < len) {
+        values = new float[len];
+      }
+      System.arraycopy(data, 0, counts, 0, len);
+      System.arraycopy(vals, 0, values, 0, len);
+      int count = Math.min(src.peakCount, peaks.length);
+      System.arraycopy(src.peaks, 0, peaks, 0, count);
+      peakCount = count;
+      color.copyFrom(src.color);
+      mode = src.mode;
+      length = len;
+      nanos = src.nanos;
+      sequence = src.sequence;
+    }
+  }
+
+  private static void fence (MethodHandle fence) {
+    try {
+      fence.invokeExact();
+    } catch (Throwable ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   *  @param size number of frames, rounded up to a power of 2
+   *  @param pixels initial size of each frame's counts and values arrays
+   */
+  FrameRing (int size, int pixels) {
+    int cap = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+    slots = new Frame[cap];
+    for (int ii = 0; ii < cap; ii++) {
+      slots[ii] = new Frame(pixels);
+    }
+    mask = cap - 1;
+  }
+
+  /**
+   *  Claim the next slot for writing.  Only the acquisition thread may call this.
+   *  @param pixels number of pixels that will be written
+   */
+  Frame claim (int pixels) {
+    long next = published.get() + 1;
+    Frame frame = slots[(int) next & mask];
+    frame.seq = -1;
+    // Keep the writes that follow after the slot is marked as being written
+    fence(storeFence);
+    if (frame.counts.length < pixels) {
+      frame.counts = new int[pixels];
+    }
+    if (frame.values.length < pixels) {
+      frame.values = new float[pixels];
+    }
+    frame.sequence = next;
+    frame.length = pixels;
+    frame.peakCount = 0;
+    return frame;
+  }
+
+  /**
+   *  Publish the frame returned by the last call to claim()
+   */
+  void publish (Frame frame) {
+    frame.seq = frame.sequence;
+    published.set(frame.sequence);
+  }
+
+  /**
+   *  @return sequence number of the most recently published frame, or -1 if none
+   */
+  long latest () {
+    return published.get();
+  }
+
+  Reader newReader () {
+    return new Reader();
+  }
+
+  /**
+   *  Per consumer read position and dropped frame count.  A Reader must only be used by one thread.
+   */
+  class Reader {
+    private long          next;
+    private volatile long dropped;
+
+    private Reader () {
+      // Start with the current frame, if any, so a new consumer sees what's on screen
+      next = Math.max(0, published.get());
+    }
+
+    /**
+     *  Copy the next frame in sequence into dst.  If this reader has fallen more than a ring's
+     *  length behind, it skips ahead and counts the frames it missed as dropped.
+     *  @return true if a frame was copied, false if no new frame has been published
+     */
+    boolean next (Frame dst) {
+      while (true) {
+        long last = published.get();
+        if (next > last) {
+          return false;
+        }
+        if (last - next >= slots.length) {
+          dropped += last - next - slots.length + 1;
+          next = last - slots.length + 1;
+        }
+        if (copy(next, dst)) {
+          next++;
+          return true;
+        }
+        // Overwritten while copying, so count it and try the next one
+        dropped++;
+        next++;
+      }
+    }
+
+    /**
+     *  Copy the most recently published frame into dst, counting any frames skipped as dropped.
+     *  Used by consumers, such as the display, that only care about the newest frame.
+     *  @return true if a frame was copied, false if no new frame has been published
+     */
+    boolean latest (Frame dst) {
+      while (true) {
+        long last = published.get();
+        if (next > last) {
+          return false;
+        }
+        dropped += last - next;
+        next = last;
+        if (copy(next, dst)) {
+          next++;
+          return true;
+        }
+        dropped++;
+        next++;
+      }
+    }
+
+    long getDropped () {
+      return dropped;
+    }
+
+    private boolean copy (long seq, Frame dst) {
+      Frame src = slots[(int) seq & mask];
+      if (src.seq != seq) {
+        return false;
+      }
+      dst.copyFrom(src);
+      // Finish the copy's reads before checking the slot wasn't reclaimed while copying
+      fence(loadFence);
+      return src.seq == seq;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *  Writes frames from an Acquisition to a binary SpectrumLog or, if the file name ends with
+ *  ".csv", to a CSV file whose first row holds the wavelength of each usable pixel.
+ */
+
+class FrameWriter {
+  private final Acquisition     acquisition;
+  private final String          file;
+  private final boolean         csv;
+  private final StringBuilder   buf = new StringBuilder();
+  private Writer                out;
+  private SpectrumLog.Writer    log;
+  private boolean               header;
+  private long                  written, bytes;
+
+  FrameWriter (Acquisition acquisition, String file) throws IOException {
+    this.acquisition = acquisition;
+    this.file = file;
+    csv = file.toLowerCase().endsWith(".csv");
+    if (csv) {
+      out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   *  @param start System.nanoTime() that CSV rows are timed from
+   */
+  void write (FrameRing.Frame frame, long start) throws IOException {
+    if (!csv) {
+      if (log == null) {
+        log = new SpectrumLog.Writer(new File(file), frame.length, Acquisition.usableStart, Acquisition.usableEnd,
+                                     acquisition.getCoefficients(), acquisition.getCalSerial());
+      }
+      log.append(frame.nanos, frame.counts, frame.length);
+      bytes += 8 + frame.length * 2;
+      written++;
+      return;
+    }
+    if (!header) {
+      // First row holds the wavelength of each pixel
+      buf.append("sequence,nanos");
+      for (int ii = Acquisition.usableStart; ii < Acquisition.usableEnd; ii++) {
+        buf.append(',');
+        buf.append(String.format("%.3f", acquisition.pixelToNanometers(ii)));
+      }
+      buf.append('\n');
+      header = true;
+    }
+    buf.append(frame.sequence);
+    buf.append(',');
+    buf.append(frame.nanos - start);
+    for (int ii = Acquisition.usableStart; ii < Math.min(Acquisition.usableEnd, frame.length); ii++) {
+      buf.append(',');
+      buf.append(frame.counts[ii]);
+    }
+    buf.append('\n');
+    out.append(buf);
+    bytes += buf.length();
+    buf.setLength(0);
+    written++;
+  }
+
+  String getFile () {
+    return file;
+  }
+
+  long getWritten () {
+    return written;
+  }
+
+  long getBytes () {
+    return bytes;
+  }
+
+  void close () throws IOException {
+    if (log != null) {
+      log.close();
+    }
+    if (out != null) {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,337 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ *  Command line acquisition runner for unattended logging on hosts without a display.  Uses the
+ *  same Acquisition loop as the GUI, but never touches Swing or AWT so it starts quickly on small
+ *  embedded hosts.  Scans are written to disk by a separate thread reading from the FrameRing, so
+ *  a slow disk can't stall acquisition (frames it can't keep up with are counted as dropped).
+ *
+ *  Several spectrometers can be logged at once, each scanning on its own acquisition thread to
+ *  its own file, and their spectra can also be stitched into one time aligned spectrum.
+ *
+ *  Usage: java -cp USB4000.jar Headless [-d serials|all] [-n scans] [-t seconds] [-r rate|max] [-i ms]
+ *                                      [-a scans] [-m block|ema] [-s pixels] [-j step] [-p port] [-o file]
+ *         java -cp USB4000.jar Headless -export file.usb4k file.csv [step]
+ *         java -cp USB4000.jar Headless -list
+ *         java -cp USB4000.jar Headless -batch job.properties
+ *
+ *    -d  comma separated serial numbers of the devices to log, or "all" (default the first found)
+ *    -n  number of scans to write from each device (default 1, unless -t is given)
+ *    -t  write scans for this many seconds
+ *    -r  scans per second, or "max" to scan back to back (default max)
+ *    -i  integration time in milliseconds, from 3.8 to 10000 (default: leave the device's setting)
+ *    -a  number of scans averaged into each frame written (default 1)
+ *    -m  "block" to write the mean of each -a scans, or "ema" to write a moving average every scan
+ *    -s  boxcar smoothing half width in pixels (default 0, off)
+ *    -j  also write the devices' spectra stitched onto a grid of step nm, to file-stitched.csv
+ *    -p  also stream live spectra to local clients from a SpectrumServer on this TCP port.  With
+ *        more than one device, each device gets the next port
+ *    -o  output file (default spectra.usb4k). Written as CSV if the name ends with ".csv",
+ *        otherwise as a binary SpectrumLog.  With more than one device, each device's serial
+ *        number is added to the name
+ *    -export  stream a SpectrumLog to a CSV file, resampled onto a uniform grid of step nm if given
+ *    -list    print the serial number of each attached device
+ *    -batch   run a batch job, as described in BatchScheduler, on the first device found
+ *
+ *  Add -Dusb4000.fake to run against the FakeUSB4000 instead of a real device, and
+ *  -Dusb4000.fake.count=n to emulate n of them.
+ */
+
+public class Headless {
+
+  /**
+   *  Writes the frames from one device to a SpectrumLog, or a CSV file
+   */
+  private static class Output {
+    private final DeviceSession   session;
+    private final Acquisition     acquisition;
+    private final FrameRing.Reader reader;
+    private final FrameRing.Frame frame = new FrameRing.Frame(0);
+    private final FrameWriter     writer;
+
+    Output (DeviceSession session, String file) throws IOException {
+      this.session = session;
+      acquisition = new Acquisition(session);
+      reader = acquisition.getFrameRing().newReader();
+      writer = new FrameWriter(acquisition, file);
+    }
+
+    /**
+     *  Write the next frame, if there is one
+     *  @return true if a frame was written
+     */
+    boolean poll (long start) throws IOException {
+      if (!reader.next(frame)) {
+        return false;
+      }
+      writer.write(frame, start);
+      return true;
+    }
+
+    void close () throws IOException {
+      writer.close();
+    }
+  }
+
+  public static void main (String[] args) throws Exception {
+    long scans = 0;
+    double seconds = 0;
+    int rate = -1;
+    int average = 1, boxcar = 0;
+    int integration = 0;
+    double stitchStep = 0;
+    int port = -1;
+    String devices = null;
+    ScanAverager.Mode mode = ScanAverager.Mode.BLOCK;
+    String outFile = "spectra.usb4k";
+    if ((args.length == 3 || args.length == 4) && "-export".equals(args[0])) {
+      try (SpectrumLog.Reader log = new SpectrumLog.Reader(new File(args[1]));
+           Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[2]), StandardCharsets.UTF_8))) {
+        log.exportCsv(out, args.length == 4 ? Double.parseDouble(args[3]) : 0);
+        System.out.println("Exported " + log.getFrameCount() + " frames to " + args[2]);
+      }
+      return;
+    }
+    if (args.length == 2 && "-batch".equals(args[0])) {
+      BatchScheduler.Job job = BatchScheduler.Job.load(new File(args[1]));
+      DeviceSession session = new DeviceSession();
+      BatchScheduler batch = new BatchScheduler(new Acquisition(session), job);
+      batch.setStepListener((step, steps) -> System.out.println("Step " + step + " of " + steps + ": " + job.fileName(step)));
+      batch.start();
+      batch.await();
+      session.close();
+      System.out.print(batch.getReport());
+      if (batch.getError() != null) {
+        System.exit(1);
+      }
+      return;
+    }
+    if (args.length == 1 && "-list".equals(args[0])) {
+      for (String serial : DeviceSession.listSerials()) {
+        System.out.println(serial);
+      }
+      return;
+    }
+    for (int ii = 0; ii < args.length; ii++) {
+      String arg = args[ii];
+      if (ii + 1 >= args.length) {
+        usage("Missing value for " + arg);
+      }
+      String val = args[++ii];
+      switch (arg) {
+      case "-d":
+        devices = val;
+        break;
+      case "-n":
+        scans = Long.parseLong(val);
+        break;
+      case "-t":
+        seconds = Double.parseDouble(val);
+        break;
+      case "-r":
+        rate = "max".equalsIgnoreCase(val) ? -1 : Integer.parseInt(val);
+        break;
+      case "-i":
+        integration = (int) Math.round(Double.parseDouble(val) * 1000);
+        break;
+      case "-a":
+        average = Integer.parseInt(val);
+        break;
+      case "-m":
+        mode = ScanAverager.Mode.valueOf(val.toUpperCase());
+        break;
+      case "-s":
+        boxcar = Integer.parseInt(val);
+        break;
+      case "-j":
+        stitchStep = Double.parseDouble(val);
+        break;
+      case "-p":
+        port = Integer.parseInt(val);
+        break;
+      case "-o":
+        outFile = val;
+        break;
+      default:
+        usage("Unknown option " + arg);
+      }
+    }
+    if (scans == 0 && seconds == 0) {
+      scans = 1;
+    }
+    List<String> serials = new ArrayList<>();
+    if ("all".equalsIgnoreCase(devices)) {
+      serials.addAll(DeviceSession.listSerials());
+      if (serials.isEmpty()) {
+        usage("No devices found");
+      }
+    } else if (devices != null) {
+      serials.addAll(Arrays.asList(devices.split(",")));
+    } else {
+      serials.add(null);
+    }
+    List<Output> outputs = new ArrayList<>();
+    List<Acquisition> acquisitions = new ArrayList<>();
+    Thread writerThread = Thread.currentThread();
+    for (String serial : serials) {
+      DeviceSession session = serial != null ? new DeviceSession(serial) : new DeviceSession();
+      if (integration > 0) {
+        try {
+          session.setIntegrationTime(integration);
+        } catch (IllegalArgumentException ex) {
+          usage(ex.getMessage());
+        }
+      }
+      Output output = new Output(session, serials.size() > 1 ? withSuffix(outFile, "-" + serial) : outFile);
+      Acquisition acquisition = output.acquisition;
+      // Always scan continuously, as the writer decides when to stop
+      acquisition.setRate(rate == 0 ? -1 : rate);
+      ScanAverager averager = acquisition.getAverager();
+      averager.setAverage(average);
+      averager.setMode(mode);
+      averager.setBoxcar(boxcar);
+      acquisition.addFrameListener(frame -> LockSupport.unpark(writerThread));
+      outputs.add(output);
+      acquisitions.add(acquisition);
+    }
+    List<SpectrumServer> servers = new ArrayList<>();
+    if (port >= 0) {
+      for (Acquisition acquisition : acquisitions) {
+        SpectrumServer server = new SpectrumServer(acquisition, port > 0 ? port + servers.size() : 0);
+        System.out.println("Streaming spectra on port " + server.getPort());
+        servers.add(server);
+      }
+    }
+    SpectrumStitcher stitcher = stitchStep > 0 ? new SpectrumStitcher(acquisitions, stitchStep) : null;
+    SpectrumStitcher.Stitched stitched = new SpectrumStitcher.Stitched();
+    String stitchFile = withSuffix(outFile.replaceAll("\\.[^./\\\\]*$", ""), "-stitched") + ".csv";
+    long stitchCount = 0, maxSkew = 0;
+    long start = System.nanoTime();
+    long end = seconds > 0 ? start + (long) (seconds * 1e9) : Long.MAX_VALUE;
+    try (Writer stitchOut = stitcher != null ? new BufferedWriter(new OutputStreamWriter(new FileOutputStream(stitchFile),
+                                                                  StandardCharsets.UTF_8)) : null) {
+      // Each device scans on its own thread, while this one writes for all of them
+      for (Acquisition acquisition : acquisitions) {
+        acquisition.doScan(Acquisition.state.SCAN);
+      }
+      StringBuilder buf = new StringBuilder();
+      while (System.nanoTime() < end) {
+        boolean busy = false, done = true, failed = false;
+        for (Output output : outputs) {
+          if (scans == 0 || output.writer.getWritten() < scans) {
+            busy |= output.poll(start);
+            done = false;
+          }
+          failed |= !output.acquisition.isRunning() && output.acquisition.getError() != null;
+        }
+        if (stitcher != null && stitcher.stitch(stitched)) {
+          if (stitchCount == 0) {
+            buf.append("nanos,skew_us");
+            for (int ii = 0; ii < stitched.points; ii++) {
+              buf.append(',');
+              buf.append(String.format("%.3f", stitched.nanometers(ii)));
+            }
+            buf.append('\n');
+          }
+          buf.append(stitched.nanos - start);
+          buf.append(',');
+          buf.append(stitched.skewNanos / 1000);
+          for (int ii = 0; ii < stitched.points; ii++) {
+            buf.append(',');
+            buf.append(Math.round(stitched.values[ii]));
+          }
+          buf.append('\n');
+          stitchOut.append(buf);
+          buf.setLength(0);
+          maxSkew = Math.max(maxSkew, stitched.skewNanos);
+          stitchCount++;
+          busy = true;
+        }
+        if (done || failed) {
+          break;
+        }
+        if (!busy) {
+          LockSupport.parkNanos(10000000L);
+        }
+      }
+    } finally {
+      for (SpectrumServer server : servers) {
+        server.close();
+      }
+      for (Output output : outputs) {
+        output.close();
+        output.acquisition.stopScan();
+      }
+      for (Output output : outputs) {
+        while (output.acquisition.isRunning()) {
+          LockSupport.parkNanos(1000000L);
+        }
+        output.session.close();
+      }
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    long total = 0, totalBytes = 0;
+    boolean failed = false;
+    for (Output output : outputs) {
+      RateScheduler scheduler = output.acquisition.getScheduler();
+      total += output.writer.getWritten();
+      totalBytes += output.writer.getBytes();
+      System.out.println(String.format("Wrote %d scans (%.1f MB) to %s in %.2f s", output.writer.getWritten(), output.writer.getBytes() / 1e6,
+                         output.writer.getFile(), elapsed));
+      System.out.println(String.format("Throughput: %.1f scans/sec, acquired %.1f Hz, jitter %.2f ms",
+                         output.writer.getWritten() / elapsed, scheduler.getAchievedRate(), scheduler.getJitter()));
+      System.out.println(String.format("Dropped: %d by writer, %d scheduler overruns", output.reader.getDropped(),
+                         scheduler.getOverruns()));
+      System.out.println(String.format("Integration: %.1f ms, max %.1f Hz", output.session.getIntegrationTime() / 1000.0,
+                         output.session.getMaxScanRate()));
+      if (output.acquisition.getError() != null) {
+        System.out.println("Stopped by error: " + output.acquisition.getError().getMessage());
+        failed = true;
+      }
+    }
+    if (outputs.size() > 1) {
+      System.out.println(String.format("Total: %d scans (%.1f MB) from %d devices, %.1f scans/sec", total,
+                         totalBytes / 1e6, outputs.size(), total / elapsed));
+    }
+    for (SpectrumServer server : servers) {
+      System.out.println(String.format("Streamed %d frames on port %d, %d dropped for slow clients", server.getFramesSent(),
+                         server.getPort(), server.getFramesDropped()));
+    }
+    if (stitcher != null) {
+      System.out.println(String.format("Stitched %d spectra of %d points to %s, max skew %.2f ms", stitchCount,
+                         stitcher.getPoints(), stitchFile, maxSkew / 1e6));
+    }
+    if (failed) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   *  @return file name with suffix added before its extension
+   */
+  private static String withSuffix (String file, String suffix) {
+    int dot = file.lastIndexOf('.');
+    return dot > Math.max(file.lastIndexOf('/'), file.lastIndexOf('\\')) ? file.substring(0, dot) + suffix +
+           file.substring(dot) : file + suffix;
+  }
+
+  private static void usage (String msg) {
+    System.err.println(msg);
+    System.err.println("Usage: Headless [-d serials|all] [-n scans] [-t seconds] [-r rate|max] [-i ms] [-a scans]");
+    System.err.println("                [-m block|ema] [-s pixels] [-j step] [-p port] [-o file]");
+    System.err.println("       Headless -export file.usb4k file.csv [step]");
+    System.err.println("       Headless -list");
+    System.err.println("       Headless -batch job.properties");
+    System.exit(2);
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ *  Fixed size histogram of latencies in nanoseconds, laid out like an HdrHistogram: values below
+ *  64 ns get a bucket each, then every power of two range above that is split into 32 equal
+ *  buckets, so any value is recorded to within about 3% up to 2^40 ns (18 minutes) in under
+ *  10 KB.  Recording is a few shifts and an increment, with no allocation or locking.
+ *
+ *  Each histogram must only be recorded to by one thread.  Other threads can read it at any time,
+ *  and may see a recording in progress, which is fine for monitoring.
+ */
+
+class LatencyHistogram implements LatencyHistogramMBean {
+  private static final int  SUB_BITS = 5;
+  private static final int  SUB = 1 << SUB_BITS;
+  private static final int  MAX_SHIFT = 40 - SUB_BITS;
+  private final long[]      counts = new long[(MAX_SHIFT + 2) * SUB];
+  private volatile long     count;
+  private long              sum, max;
+
+  void record (long nanos) {
+    long val = Math.max(0, Math.min(nanos, (1L << 40) - 1));
+    counts[index(val)]++;
+    sum += val;
+    max = Math.max(max, val);
+    count++;
+  }
+
+  private static int index (long val) {
+    if (val < 2 * SUB) {
+      return (int) val;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(val) - SUB_BITS;
+    return (shift + 1) * SUB + (int) (val >>> shift) - SUB;
+  }
+
+  /**
+   *  @return middle of the range of values recorded in bucket idx
+   */
+  private static double value (int idx) {
+    if (idx < 2 * SUB) {
+      return idx;
+    }
+    int shift = idx / SUB - 1;
+    long sub = idx % SUB + SUB;
+    return (sub << shift) + ((1L << shift) - 1) / 2.0;
+  }
+
+  /**
+   *  @param percentile 0 to 100
+   *  @return value in nanoseconds that percentile of the recordings are at or below
+   */
+  double getPercentile (double percentile) {
+    long total = count;
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int ii = 0; ii < counts.length; ii++) {
+      seen += counts[ii];
+      if (seen >= target) {
+        return Math.min(value(ii), max);
+      }
+    }
+    return max;
+  }
+
+  public long getCount () {
+    return count;
+  }
+
+  double getMean () {
+    long total = count;
+    return total > 0 ? (double) sum / total : 0;
+  }
+
+  public double getMeanMicros () {
+    return getMean() / 1000;
+  }
+
+  public double getP50Micros () {
+    return getPercentile(50) / 1000;
+  }
+
+  public double getP90Micros () {
+    return getPercentile(90) / 1000;
+  }
+
+  public double getP99Micros () {
+    return getPercentile(99) / 1000;
+  }
+
+  public double getMaxMicros () {
+    return max / 1000.0;
+  }
+
+  /**
+   *  Clear the histogram.  Recordings made while it's cleared may be partly lost.
+   */
+  public void reset () {
+    for (int ii = 0; ii < counts.length; ii++) {
+      counts[ii] = 0;
+    }
+    sum = 0;
+    max = 0;
+    count = 0;
+  }
+}
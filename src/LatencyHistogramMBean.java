@@ -0,0 +1,18 @@
+/**
+ *  Attributes of a LatencyHistogram published through JMX, in microseconds
+ */
+public interface LatencyHistogramMBean {
+  long getCount ();
+
+  double getMeanMicros ();
+
+  double getP50Micros ();
+
+  double getP90Micros ();
+
+  double getP99Micros ();
+
+  double getMaxMicros ();
+
+  void reset ();
+}
@@ -0,0 +1,112 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Table of reference emission lines, sorted by wavelength so a detected peak can be matched to
+ *  the nearest line with a binary search.  Defaults to the lines of a Hg-Ar calibration lamp, or
+ *  can be loaded from a file with one "nm,label" line per emission line.
+ */
+
+class LineTable {
+  private static final Object[][] hgAr = {
+      {253.652, "Hg"}, {296.728, "Hg"}, {302.150, "Hg"}, {313.155, "Hg"}, {334.148, "Hg"}, {365.015, "Hg"},
+      {404.656, "Hg"}, {407.783, "Hg"}, {435.833, "Hg"}, {546.074, "Hg"}, {576.960, "Hg"}, {579.066, "Hg"},
+      {696.543, "Ar"}, {706.722, "Ar"}, {727.294, "Ar"}, {738.398, "Ar"}, {750.387, "Ar"}, {763.511, "Ar"},
+      {772.376, "Ar"}, {794.818, "Ar"}, {800.616, "Ar"}, {811.531, "Ar"}, {826.452, "Ar"}, {842.465, "Ar"},
+  };
+  private final String    name;
+  private final double[]  nm;
+  private final String[]  labels;
+
+  private LineTable (String name, List<Object[]> lines) {
+    this.name = name;
+    lines.sort((a, b) -> Double.compare((Double) a[0], (Double) b[0]));
+    nm = new double[lines.size()];
+    labels = new String[lines.size()];
+    for (int ii = 0; ii < nm.length; ii++) {
+      nm[ii] = (Double) lines.get(ii)[0];
+      labels[ii] = (String) lines.get(ii)[1];
+    }
+  }
+
+  /**
+   *  @return built in table of Hg-Ar lamp lines
+   */
+  static LineTable hgAr () {
+    List<Object[]> lines = new ArrayList<>();
+    for (Object[] line : hgAr) {
+      lines.add(line);
+    }
+    return new LineTable("Hg-Ar", lines);
+  }
+
+  /**
+   *  Load a table from a file of "nm,label" lines.  Blank lines and lines starting with '#' are skipped.
+   */
+  static LineTable load (File file) throws IOException {
+    List<Object[]> lines = new ArrayList<>();
+    try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] parts = line.split(",", 2);
+        try {
+          lines.add(new Object[] {Double.parseDouble(parts[0].trim()), parts.length > 1 ? parts[1].trim() : ""});
+        } catch (NumberFormatException ex) {
+          throw new IOException("Invalid line \"" + line + "\" in " + file);
+        }
+      }
+    }
+    String name = file.getName();
+    return new LineTable(name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name, lines);
+  }
+
+  /**
+   *  @return index of the line nearest to nanometers, or -1 if none is within tolerance
+   */
+  int nearest (double nanometers, double tolerance) {
+    int lo = 0, hi = nm.length;
+    // Find the first line at or above nanometers, then check it and the one below
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (nm[mid] < nanometers) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    int best = -1;
+    double bestErr = tolerance;
+    for (int ii = Math.max(0, lo - 1); ii <= Math.min(nm.length - 1, lo); ii++) {
+      double err = Math.abs(nm[ii] - nanometers);
+      if (err <= bestErr) {
+        best = ii;
+        bestErr = err;
+      }
+    }
+    return best;
+  }
+
+  int size () {
+    return nm.length;
+  }
+
+  double getNanometers (int idx) {
+    return nm[idx];
+  }
+
+  String getLabel (int idx) {
+    return labels[idx];
+  }
+
+  String getName () {
+    return name;
+  }
+}
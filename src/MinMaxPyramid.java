@@ -0,0 +1,69 @@
+/**
+ *  Min/max envelope of a spectrum at every power of two window size, built once per frame, so
+ *  the display can find the exact minimum and maximum of any range of pixels in O(1) and draw a
+ *  zoomed out spectrum in O(screen width) without losing narrow peaks.
+ *
+ *  Level k holds, for each pixel i, the min and max of pixels i to i + 2^k - 1.  Any range is
+ *  covered exactly by two, possibly overlapping, windows from the largest level that fits it.
+ */
+
+class MinMaxPyramid {
+  private float[][] mins = new float[0][];
+  private float[][] maxs = new float[0][];
+  private int       start, end;
+
+  /**
+   *  Build the pyramid for pixels start to end - 1 of data, reusing the arrays from the last build
+   */
+  void build (float[] data, int start, int end) {
+    int len = Math.max(0, end - start);
+    int levels = len > 0 ? 32 - Integer.numberOfLeadingZeros(len) : 0;
+    if (mins.length < levels || (levels > 0 && mins[0].length < len)) {
+      mins = new float[levels][len];
+      maxs = new float[levels][len];
+    }
+    this.start = start;
+    this.end = start + len;
+    if (len == 0) {
+      return;
+    }
+    System.arraycopy(data, start, mins[0], 0, len);
+    System.arraycopy(data, start, maxs[0], 0, len);
+    for (int level = 1; level < levels; level++) {
+      int half = 1 << (level - 1);
+      float[] minSrc = mins[level - 1], maxSrc = maxs[level - 1];
+      float[] minDst = mins[level], maxDst = maxs[level];
+      int count = len - (1 << level) + 1;
+      for (int ii = 0; ii < count; ii++) {
+        minDst[ii] = Math.min(minSrc[ii], minSrc[ii + half]);
+        maxDst[ii] = Math.max(maxSrc[ii], maxSrc[ii + half]);
+      }
+    }
+  }
+
+  /**
+   *  @return minimum of pixels from to to - 1, which must be a non empty range inside the built range
+   */
+  float min (int from, int to) {
+    int level = 31 - Integer.numberOfLeadingZeros(to - from);
+    float[] mn = mins[level];
+    return Math.min(mn[from - start], mn[to - start - (1 << level)]);
+  }
+
+  /**
+   *  @return maximum of pixels from to to - 1, which must be a non empty range inside the built range
+   */
+  float max (int from, int to) {
+    int level = 31 - Integer.numberOfLeadingZeros(to - from);
+    float[] mx = maxs[level];
+    return Math.max(mx[from - start], mx[to - start - (1 << level)]);
+  }
+
+  int getStart () {
+    return start;
+  }
+
+  int getEnd () {
+    return end;
+  }
+}
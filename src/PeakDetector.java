@@ -0,0 +1,203 @@
+/**
+ *  Finds emission peaks in a spectrum.  A peak is where a smoothed first derivative crosses from
+ *  rising to falling, and is kept if its prominence (height above the higher of the lowest points
+ *  between it and a taller neighbour on either side) clears a threshold set from an estimate of
+ *  the noise in the frame.  Each peak's position is refined to a fraction of a pixel by fitting a
+ *  Gaussian (a parabola through the logs of the three highest points).
+ *
+ *  All working storage is allocated up front, so detection allocates nothing per frame and can
+ *  run on the acquisition thread at the maximum scan rate.
+ */
+
+class PeakDetector {
+  static final int          MAX_PEAKS = 64;
+  private static final int  MAX_WALK = 64;                    // Pixels searched either side for the base
+  private final float[]     prominence = new float[MAX_PEAKS];
+  private double[]          prefix = new double[1];
+  private volatile int      halfWidth = 3;
+  private volatile float    minProminence = 50;
+  private volatile float    snr = 10;
+
+  /**
+   *  @param halfWidth pixels either side averaged by the derivative filter
+   */
+  void setHalfWidth (int halfWidth) {
+    this.halfWidth = Math.max(1, halfWidth);
+  }
+
+  /**
+   *  @param minProminence peaks must stand at least this many counts above their base
+   *  @param snr and at least this many times the estimated noise
+   */
+  void setThreshold (float minProminence, float snr) {
+    this.minProminence = minProminence;
+    this.snr = snr;
+  }
+
+  /**
+   *  Find peaks in values from start to end - 1
+   *  @param peaks receives the fractional pixel position of each peak, in ascending order
+   *  @return number of peaks found, at most MAX_PEAKS (keeping the most prominent)
+   */
+  int detect (float[] values, int start, int end, double[] peaks) {
+    int h = halfWidth;
+    int n = end - start;
+    int capacity = Math.min(MAX_PEAKS, peaks.length);
+    if (n < 2 * h + 3 || capacity == 0) {
+      return 0;
+    }
+    if (prefix.length < n + 1) {
+      prefix = new double[n + 1];
+    }
+    // Prefix sums for the derivative filter, plus a noise estimate from the mean absolute second
+    // difference, which white noise of sigma makes sqrt(6) * sigma * sqrt(2 / pi) on average
+    double sum = 0, curve = 0;
+    for (int ii = 0; ii < n; ii++) {
+      prefix[ii] = sum;
+      sum += values[start + ii];
+      if (ii > 0 && ii < n - 1) {
+        curve += Math.abs(values[start + ii - 1] - 2 * values[start + ii] + values[start + ii + 1]);
+      }
+    }
+    prefix[n] = sum;
+    double sigma = curve / (n - 2) * 0.5117;
+    double threshold = Math.max(minProminence, snr * sigma);
+    int count = 0;
+    int lastPeak = -1;
+    double lastDeriv = 0;
+    for (int ii = h; ii < n - h; ii++) {
+      // Sum of the h pixels to the right less the h pixels to the left
+      double deriv = (prefix[ii + h + 1] - prefix[ii + 1]) - (prefix[ii] - prefix[ii - h]);
+      if (lastDeriv > 0 && deriv <= 0) {
+        // Crossing found, so take the highest pixel near it as the peak
+        int pk = start + ii;
+        for (int jj = Math.max(start, start + ii - h); jj <= Math.min(end - 1, start + ii + h); jj++) {
+          if (values[jj] > values[pk]) {
+            pk = jj;
+          }
+        }
+        if (pk != lastPeak && pk > start && pk < end - 1) {
+          lastPeak = pk;
+          float top = values[pk];
+          float leftMin = top, rightMin = top;
+          for (int jj = pk - 1; jj >= Math.max(start, pk - MAX_WALK) && values[jj] <= top; jj--) {
+            leftMin = Math.min(leftMin, values[jj]);
+          }
+          for (int jj = pk + 1; jj < Math.min(end, pk + MAX_WALK) && values[jj] <= top; jj++) {
+            rightMin = Math.min(rightMin, values[jj]);
+          }
+          float base = Math.max(leftMin, rightMin);
+          float prom = top - base;
+          if (prom >= threshold) {
+            double pos = pk + subPixel(values[pk - 1] - base, prom, values[pk + 1] - base);
+            if (count < capacity) {
+              prominence[count] = prom;
+              peaks[count++] = pos;
+            } else {
+              // Full, so replace the least prominent peak if this one is more prominent
+              int weakest = 0;
+              for (int jj = 1; jj < count; jj++) {
+                if (prominence[jj] < prominence[weakest]) {
+                  weakest = jj;
+                }
+              }
+              if (prom > prominence[weakest]) {
+                prominence[weakest] = prom;
+                peaks[weakest] = pos;
+              }
+            }
+          }
+        }
+      }
+      lastDeriv = deriv;
+    }
+    // Replacements can leave peaks out of order, so insertion sort them by position
+    for (int ii = 1; ii < count; ii++) {
+      double pos = peaks[ii];
+      int jj = ii - 1;
+      while (jj >= 0 && peaks[jj] > pos) {
+        peaks[jj + 1] = peaks[jj];
+        jj--;
+      }
+      peaks[jj + 1] = pos;
+    }
+    return count;
+  }
+
+  /**
+   *  Offset of the vertex from the center of three points above the base, using a Gaussian fit
+   *  when all three are positive, otherwise a parabola
+   */
+  private static double subPixel (double left, double center, double right) {
+    double offset;
+    if (left > 0 && right > 0) {
+      double la = Math.log(left), lb = Math.log(center), lc = Math.log(right);
+      offset = 0.5 * (la - lc) / (la - 2 * lb + lc);
+    } else {
+      offset = 0.5 * (left - right) / (left - 2 * center + right);
+    }
+    return Double.isNaN(offset) ? 0 : Math.max(-0.5, Math.min(0.5, offset));
+  }
+
+  /*
+   *  Measures detection, conversion to nm and line matching on scans from the FakeUSB4000, to
+   *  check the stage keeps up with the ~100 scans/sec maximum scan rate
+   */
+  public static void main (String[] args) throws Exception {
+    FakeUSB4000 fake = new FakeUSB4000(null, true);
+    fake.setTiming(10000000L, 0, 0);
+    ScanReader reader = new ScanReader(fake, true, 3840, false);
+    double[] coff = new double[4];
+    for (int ii = 0; ii < 4; ii++) {
+      fake.send(new byte[] {0x05, (byte) (ii + 1)});
+      byte[] rsp = fake.receive();
+      int len = 0;
+      while (len < 15 && rsp[2 + len] != 0) {
+        len++;
+      }
+      coff[ii] = Double.parseDouble(new String(rsp, 2, len, java.nio.charset.StandardCharsets.US_ASCII));
+    }
+    Calibration cal = new Calibration(coff, 3840, Acquisition.usableStart, Acquisition.usableEnd, "fake");
+    LineTable lines = LineTable.hgAr();
+    int frames = 64;
+    float[][] scans = new float[frames][3840];
+    int[] counts = new int[3840];
+    for (int ff = 0; ff < frames; ff++) {
+      reader.readScan().decode(counts);
+      for (int ii = 0; ii < counts.length; ii++) {
+        scans[ff][ii] = counts[ii];
+      }
+    }
+    PeakDetector detector = new PeakDetector();
+    double[] peaks = new double[MAX_PEAKS];
+    int found = detector.detect(scans[0], Acquisition.usableStart, Acquisition.usableEnd, peaks);
+    for (int ii = 0; ii < found; ii++) {
+      double nm = cal.pixelToNanometers(peaks[ii]);
+      int line = lines.nearest(nm, 1.0);
+      System.out.println(String.format("%8.2f px  %8.3f nm  %s", peaks[ii], nm,
+                         line >= 0 ? String.format("%s %.3f (%+.3f)", lines.getLabel(line), lines.getNanometers(line),
+                         nm - lines.getNanometers(line)) : ""));
+    }
+    for (int pass = 0; pass < 2; pass++) {
+      int iterations = 20000;
+      long matched = 0;
+      long bytes = ScanBuffer.allocated();
+      long start = System.nanoTime();
+      for (int ii = 0; ii < iterations; ii++) {
+        int count = detector.detect(scans[ii % frames], Acquisition.usableStart, Acquisition.usableEnd, peaks);
+        for (int jj = 0; jj < count; jj++) {
+          if (lines.nearest(cal.pixelToNanometers(peaks[jj]), 1.0) >= 0) {
+            matched++;
+          }
+        }
+      }
+      long elapsed = System.nanoTime() - start;
+      bytes = ScanBuffer.allocated() - bytes;
+      if (pass > 0) {
+        System.out.println(String.format("%.2f us/frame (%.0f frames/sec), %.1f lines matched/frame, %d bytes/frame allocated",
+                           elapsed / 1e3 / iterations, iterations / (elapsed / 1e9), (double) matched / iterations,
+                           bytes / iterations));
+      }
+    }
+  }
+}
@@ -0,0 +1,62 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ *  Benchmarks the whole acquisition -> decode -> paint pipeline without hardware, so it can run
+ *  in CI.  Scans come from whichever transport the usb4000.* system properties select (see
+ *  DeviceSession), defaulting to the FakeUSB4000, and every frame the painter can keep up with is
+ *  painted into an offscreen image.
+ *
+ *  Usage: java -Djava.awt.headless=true [-Dusb4000.replay=capture -Dusb4000.replay.fast]
+ *              -cp USB4000.jar PipelineBenchmark [scans]
+ */
+
+public class PipelineBenchmark {
+
+  public static void main (String[] args) {
+    int scans = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    if (System.getProperty("usb4000.replay") == null && System.getProperty("usb4000.fake") == null) {
+      System.setProperty("usb4000.fake", "");
+    }
+    DeviceSession session = new DeviceSession();
+    Acquisition acquisition = new Acquisition(session);
+    USB4000.Spectrum spectrum = new USB4000.Spectrum(acquisition);
+    Dimension dim = spectrum.getPreferredSize();
+    spectrum.setSize(dim);
+    BufferedImage img = new BufferedImage(dim.width, dim.height, BufferedImage.TYPE_INT_RGB);
+    Thread painter = Thread.currentThread();
+    acquisition.addFrameListener(frame -> LockSupport.unpark(painter));
+    acquisition.setRate(-1);
+    long start = System.nanoTime();
+    acquisition.doScan(Acquisition.state.SCAN);
+    long painted = 0, paintNanos = 0, maxPaint = 0;
+    FrameRing ring = acquisition.getFrameRing();
+    while (ring.latest() + 1 < scans) {
+      if (!acquisition.isRunning() && acquisition.getError() != null) {
+        System.out.println("Stopped by error: " + acquisition.getError().getMessage());
+        break;
+      }
+      long paintStart = System.nanoTime();
+      Graphics2D g2 = img.createGraphics();
+      spectrum.paint(g2);
+      g2.dispose();
+      long time = System.nanoTime() - paintStart;
+      paintNanos += time;
+      maxPaint = Math.max(maxPaint, time);
+      painted++;
+      LockSupport.parkNanos(20000000L);
+    }
+    acquisition.stopScan();
+    while (acquisition.isRunning()) {
+      LockSupport.parkNanos(1000000L);
+    }
+    session.close();
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    long acquired = ring.latest() + 1;
+    System.out.println(String.format("Acquired %d scans in %.2f s, %.1f scans/sec (jitter %.2f ms)", acquired, elapsed,
+                       acquired / elapsed, acquisition.getScheduler().getJitter()));
+    System.out.println(String.format("Painted %d frames, %.3f ms avg, %.3f ms max, %d dropped by display", painted,
+                       painted > 0 ? paintNanos / 1e6 / painted : 0, maxPaint / 1e6, spectrum.getDroppedFrames()));
+  }
+}
@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /*
   Adapted from https://algs4.cs.princeton.edu/14analysis/PolynomialRegression.java
  */
@@ -78,53 +80,90 @@ public class PolynomialRegression {
   /**
    * Performs a polynomial reggression on the data points
    *
-   * @param xy  predictor in pairs[n][0] and corresponding response in pairs[n][1]
+   * @param xy  predictor in pairs[n][0] and corresponding response in pairs[n][1], which are not modified
    * @param degree the degree of the polynomial to fit
    */
-  private static double[] getCoefficients (double[][] xy, int degree) {
+  static double[] getCoefficients (double[][] xy, int degree) {
+    double[] x = new double[xy.length];
+    double[] y = new double[xy.length];
+    for (int ii = 0; ii < xy.length; ii++) {
+      x[ii] = xy[ii][0];
+      y[ii] = xy[ii][1];
+    }
+    return getCoefficients(vandermonde(x, degree), y, null, xy.length, degree);
+  }
+
+  /**
+   * Build the Vandermonde matrix for x, so repeated fits to subsets of the same points can reuse it
+   *
+   * @return matrix where row ii holds 1, x[ii], x[ii]^2 ... x[ii]^degree
+   */
+  static double[][] vandermonde (double[] x, int degree) {
+    double[][] powers = new double[x.length][degree + 1];
+    for (int ii = 0; ii < x.length; ii++) {
+      powers[ii][0] = 1;
+      for (int jj = 1; jj <= degree; jj++) {
+        powers[ii][jj] = powers[ii][jj - 1] * x[ii];
+      }
+    }
+    return powers;
+  }
+
+  /**
+   * Performs a polynomial reggression on a subset of the points in a Vandermonde matrix
+   *
+   * @param powers Vandermonde matrix from vandermonde(), which is not modified
+   * @param y response for each row of powers
+   * @param rows indexes of the rows to fit, or null to fit rows 0 to count - 1
+   * @param count number of rows to fit
+   * @param degree the degree of the polynomial to fit, at most the degree powers was built for
+   */
+  static double[] getCoefficients (double[][] powers, double[] y, int[] rows, int count, int degree) {
+    degree = Math.min(degree, count - 1);
+    if (degree < 0) {
+      throw new IllegalArgumentException("No points to fit");
+    }
+    double[][] xMatrix = new double[count][];
     QRDecomposition qr;
     // in case Vandermonde matrix does not have full rank, reduce degree until it does
     while (true) {
-      // build Vandermonde matrix
-      double[][] xMatrix = new double[xy.length][degree + 1];
-      for (int ii = 0; ii < xy.length; ii++) {
-        for (int jj = 0; jj <= degree; jj++) {
-          xMatrix[ii][jj] = Math.pow(xy[ii][0], jj);
-        }
+      // QR decomposition works in place, so copy the columns needed for this degree
+      for (int ii = 0; ii < count; ii++) {
+        xMatrix[ii] = Arrays.copyOf(powers[rows != null ? rows[ii] : ii], degree + 1);
       }
       // find least squares solution
       qr = new QRDecomposition(xMatrix);
-      if (qr.isFullRank()) {
+      if (qr.isFullRank() || degree == 0) {
         break;
       }
       // decrease degree and try again
       degree--;
     }
     // Copy right hand side
+    double[] rhs = new double[count];
+    for (int ii = 0; ii < count; ii++) {
+      rhs[ii] = y[rows != null ? rows[ii] : ii];
+    }
     // Compute Y = transpose(Q) * B
     for (int kk = 0; kk < qr.cols; kk++) {
       double s = 0.0;
       for (int ii = kk; ii < qr.rows; ii++) {
-        s += qr.qr[ii][kk] * xy[ii][1];
+        s += qr.qr[ii][kk] * rhs[ii];
       }
       s = -s / qr.qr[kk][kk];
       for (int ii = kk; ii < qr.rows; ii++) {
-        xy[ii][1] += s * qr.qr[ii][kk];
+        rhs[ii] += s * qr.qr[ii][kk];
       }
     }
     // Solve R * X = Y;
     for (int kk = qr.cols - 1; kk >= 0; kk--) {
-      xy[kk][1] /= qr.Rdiag[kk];
+      rhs[kk] /= qr.Rdiag[kk];
       for (int ii = 0; ii < kk; ii++) {
-        xy[ii][1] -= xy[kk][1] * qr.qr[ii][kk];
+        rhs[ii] -= rhs[kk] * qr.qr[ii][kk];
       }
     }
     // copy polynomial regression coefficients
-    double[] coeff = new double[degree + 1];
-    for (int ii = 0; ii < coeff.length; ii++) {
-      coeff[ii] = xy[ii][1];
-    }
-    return coeff;
+    return Arrays.copyOf(rhs, degree + 1);
   }
 
   /**
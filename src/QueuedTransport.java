@@ -0,0 +1,110 @@
+import org.usb4java.LibUsb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Base for transports that stand in for a USB4000 by queuing the packets it would send on each
+ *  IN endpoint, each with the System.nanoTime() at which it becomes available.  Subclasses
+ *  interpret commands in send() and queue the responses.
+ *
+ *  A blocking receive() is also charged a fixed round trip cost, which is the cost the async
+ *  bulkRead() path avoids on real hardware.
+ */
+
+abstract class QueuedTransport implements USBTransport {
+  private static final int                    TIMEOUT = 500;
+  private final Map<Byte,ArrayDeque<Packet>>  queues = new HashMap<>();
+  long                                        roundTripNanos = 125000L;
+
+  private static class Packet {
+    final byte[]  data;
+    final long    ready;
+
+    Packet (byte[] data, long ready) {
+      this.data = data;
+      this.ready = ready;
+    }
+  }
+
+  /**
+   *  Queue a packet to be received from an IN endpoint
+   *  @param ready System.nanoTime() at which the packet is available
+   */
+  synchronized void queue (byte ep, byte[] data, long ready) {
+    queues.computeIfAbsent(ep, k -> new ArrayDeque<>()).add(new Packet(data, ready));
+    notifyAll();
+  }
+
+  private synchronized Packet next (byte ep, long timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+    ArrayDeque<Packet> queue = queues.computeIfAbsent(ep, k -> new ArrayDeque<>());
+    while (queue.isEmpty()) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return null;
+      }
+      try {
+        wait(remaining);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    return queue.poll();
+  }
+
+  static void waitUntil (long time) {
+    long delay;
+    while ((delay = time - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(delay);
+    }
+  }
+
+  public byte[] receive () {
+    return receive((byte) 0x81, 64);
+  }
+
+  public byte[] receive (byte eIn, int bSize) {
+    long start = System.nanoTime();
+    Packet pkt = next(eIn, TIMEOUT);
+    if (pkt == null) {
+      return new byte[0];
+    }
+    waitUntil(Math.max(pkt.ready, start) + roundTripNanos);
+    return pkt.data.length > bSize ? Arrays.copyOf(pkt.data, bSize) : pkt.data;
+  }
+
+  public BulkRead bulkRead (byte eIn, ByteBuffer buf) {
+    return new BulkRead() {
+      public void submit () { }
+
+      public int await (long timeout) {
+        Packet pkt = next(eIn, timeout);
+        if (pkt == null) {
+          return LibUsb.ERROR_TIMEOUT;
+        }
+        waitUntil(pkt.ready);
+        int len = Math.min(pkt.data.length, buf.capacity());
+        buf.clear();
+        buf.put(pkt.data, 0, len);
+        buf.clear();
+        return len;
+      }
+
+      public void cancel () { }
+
+      public ByteBuffer buffer () {
+        return buf;
+      }
+    };
+  }
+
+  public synchronized void close () {
+    queues.clear();
+  }
+}
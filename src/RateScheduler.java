@@ -0,0 +1,107 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Fixed rate scheduler for the acquisition loop based on System.nanoTime().  Deadlines advance
+ *  by exactly one period from the previous deadline, rather than from when the last scan ended,
+ *  so timing doesn't drift under load.  If a scan overruns by more than a full period, the
+ *  missed slots are skipped instead of being run back to back to catch up.
+ *
+ *  Also tracks the achieved rate and the jitter (mean absolute deviation of the interval between
+ *  scans) as exponentially weighted averages.
+ */
+
+class RateScheduler {
+  private static final long   SPIN_NANOS = 200000;        // Spin, rather than park, this close to a deadline
+  private static final double WEIGHT = 0.1;
+  private volatile double     rate;
+  private long                period;
+  private long                deadline;
+  private long                lastStart;
+  private volatile double     avgInterval;
+  private volatile double     avgJitter;
+  private volatile long       overruns;
+
+  /**
+   *  @param rate scans per second, or a value <= 0 to run back to back at the maximum rate
+   */
+  void setRate (double rate) {
+    this.rate = rate;
+  }
+
+  double getRate () {
+    return rate;
+  }
+
+  /**
+   *  Reset the schedule and statistics.  Call before the first scan.
+   */
+  void start () {
+    deadline = System.nanoTime();
+    lastStart = 0;
+    avgInterval = 0;
+    avgJitter = 0;
+    overruns = 0;
+  }
+
+  /**
+   *  Wait until the next scan is due, then record its start time
+   */
+  void awaitNext () {
+    double rate = this.rate;
+    long now = System.nanoTime();
+    if (rate > 0) {
+      long period = (long) (1e9 / rate);
+      if (period != this.period) {
+        // Rate changed, so restart the schedule from now
+        this.period = period;
+        deadline = now;
+      }
+      if (now - deadline > period) {
+        overruns += (now - deadline) / period;
+        deadline = now;
+      }
+      long delay;
+      while ((delay = deadline - System.nanoTime()) > 0) {
+        if (delay > SPIN_NANOS) {
+          LockSupport.parkNanos(delay - SPIN_NANOS);
+        } else {
+          Thread.yield();
+        }
+      }
+      now = System.nanoTime();
+      deadline += period;
+    }
+    if (lastStart != 0) {
+      long interval = now - lastStart;
+      if (avgInterval == 0) {
+        avgInterval = interval;
+      } else {
+        avgJitter += WEIGHT * (Math.abs(interval - avgInterval) - avgJitter);
+        avgInterval += WEIGHT * (interval - avgInterval);
+      }
+    }
+    lastStart = now;
+  }
+
+  /**
+   *  @return achieved scans per second, or 0 if not yet known
+   */
+  double getAchievedRate () {
+    double interval = avgInterval;
+    return interval > 0 ? 1e9 / interval : 0;
+  }
+
+  /**
+   *  @return mean absolute deviation of the interval between scans in milliseconds
+   */
+  double getJitter () {
+    return avgJitter / 1e6;
+  }
+
+  /**
+   *  @return number of scheduled scans skipped because acquisition couldn't keep up
+   */
+  long getOverruns () {
+    return overruns;
+  }
+}
@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.prefs.Preferences;
+
+/**
+ *  Refits a device's third order wavelength calibration from a spectrum of a reference lamp.
+ *  Peaks are found, paired with the nearest reference line under the current calibration, then
+ *  fitted with a RANSAC style search: cubics are fitted to random sets of four pairs, the fit
+ *  that agrees with the most pairs wins, and the final coefficients are a least squares fit to
+ *  the pairs it agrees with.  Pairs it rejects are reported as outliers, as they're likely
+ *  mismatched or blended lines.
+ *
+ *  Refitted coefficients are saved per serial number in Preferences, and replace the EEPROM
+ *  coefficients whenever that device is opened, unless cleared.  They can also be written back
+ *  to the EEPROM.
+ */
+
+class Recalibration {
+  private static final Preferences  prefs = Preferences.userRoot().node("USB4000").node("calibration");
+  private static final int          ITERATIONS = 500;
+  private double                    matchTolerance = 2.0;     // nm between a peak and its reference line
+  private double                    inlierTolerance = 0.25;   // nm residual for a pair to agree with a fit
+
+  /**
+   *  Outcome of a refit
+   */
+  static class Result {
+    final double[]  coff;
+    final double[]  pixels;           // Peak position of each pair
+    final double[]  nm;               // Reference wavelength of each pair
+    final String[]  labels;
+    final double[]  residuals;        // Fitted less reference wavelength, in nm
+    final boolean[] outliers;
+    final double    rms;              // RMS residual of the pairs used, in nm
+
+    private Result (double[] coff, double[] pixels, double[] nm, String[] labels, double[] residuals,
+                    boolean[] outliers, double rms) {
+      this.coff = coff;
+      this.pixels = pixels;
+      this.nm = nm;
+      this.labels = labels;
+      this.residuals = residuals;
+      this.outliers = outliers;
+      this.rms = rms;
+    }
+
+    int getInliers () {
+      int count = 0;
+      for (boolean outlier : outliers) {
+        count += outlier ? 0 : 1;
+      }
+      return count;
+    }
+  }
+
+  void setTolerances (double matchTolerance, double inlierTolerance) {
+    this.matchTolerance = matchTolerance;
+    this.inlierTolerance = inlierTolerance;
+  }
+
+  /**
+   *  Find the peaks in a lamp spectrum and refit the calibration to them
+   *  @param values spectrum of the reference lamp, such as FrameRing.Frame.values
+   *  @param current calibration used to pair peaks with lines
+   *  @param lines reference lines emitted by the lamp
+   *  @throws IllegalStateException if too few peaks could be paired with lines
+   */
+  Result fit (float[] values, Calibration current, LineTable lines) {
+    double[] peaks = new double[PeakDetector.MAX_PEAKS];
+    int found = new PeakDetector().detect(values, current.getUsableStart(), Math.min(current.getUsableEnd(),
+                                          values.length), peaks);
+    // Pair each peak with the nearest line, keeping only the closest peak for each line
+    List<double[]> pairs = new ArrayList<>();
+    int[] pairFor = new int[lines.size()];
+    Arrays.fill(pairFor, -1);
+    for (int ii = 0; ii < found; ii++) {
+      double nm = current.pixelToNanometers(peaks[ii]);
+      int line = lines.nearest(nm, matchTolerance);
+      if (line >= 0) {
+        double err = Math.abs(nm - lines.getNanometers(line));
+        int prev = pairFor[line];
+        if (prev < 0) {
+          pairFor[line] = pairs.size();
+          pairs.add(new double[] {peaks[ii], line, err});
+        } else if (err < pairs.get(prev)[2]) {
+          pairs.set(prev, new double[] {peaks[ii], line, err});
+        }
+      }
+    }
+    int count = pairs.size();
+    if (count < 5) {
+      throw new IllegalStateException("Only " + count + " of " + found + " peaks matched " + lines.getName() +
+                                      " lines, 5 or more are needed");
+    }
+    double[] pixels = new double[count];
+    double[] nm = new double[count];
+    String[] labels = new String[count];
+    for (int ii = 0; ii < count; ii++) {
+      double[] pair = pairs.get(ii);
+      int line = (int) pair[1];
+      pixels[ii] = pair[0];
+      nm[ii] = lines.getNanometers(line);
+      labels[ii] = lines.getLabel(line);
+    }
+    // Build the Vandermonde matrix once, so each trial fit only selects rows
+    double[][] powers = PolynomialRegression.vandermonde(pixels, 3);
+    Random random = new Random(count);
+    int[] sample = new int[4];
+    int[] inliers = new int[count];
+    int[] best = new int[count];
+    int bestCount = 0;
+    double bestError = Double.MAX_VALUE;
+    for (int iter = 0; iter < ITERATIONS; iter++) {
+      // Pick four distinct pairs
+      for (int ii = 0; ii < 4; ii++) {
+        boolean dup;
+        do {
+          sample[ii] = random.nextInt(count);
+          dup = false;
+          for (int jj = 0; jj < ii; jj++) {
+            dup |= sample[jj] == sample[ii];
+          }
+        } while (dup);
+      }
+      double[] coff = PolynomialRegression.getCoefficients(powers, nm, sample, 4, 3);
+      int agree = 0;
+      double error = 0;
+      for (int ii = 0; ii < count; ii++) {
+        double err = Math.abs(evaluate(coff, powers[ii]) - nm[ii]);
+        if (err < inlierTolerance) {
+          inliers[agree++] = ii;
+          error += err * err;
+        }
+      }
+      if (agree > bestCount || (agree == bestCount && error < bestError)) {
+        System.arraycopy(inliers, 0, best, 0, agree);
+        bestCount = agree;
+        bestError = error;
+      }
+    }
+    if (bestCount < 4) {
+      throw new IllegalStateException("No fit agrees with more than " + bestCount + " of " + count + " lines");
+    }
+    double[] coff = PolynomialRegression.getCoefficients(powers, nm, best, bestCount, 3);
+    coff = Arrays.copyOf(coff, 4);
+    double[] residuals = new double[count];
+    boolean[] outliers = new boolean[count];
+    double sum = 0;
+    for (int ii = 0; ii < count; ii++) {
+      residuals[ii] = evaluate(coff, powers[ii]) - nm[ii];
+      outliers[ii] = true;
+    }
+    for (int ii = 0; ii < bestCount; ii++) {
+      outliers[best[ii]] = false;
+      sum += residuals[best[ii]] * residuals[best[ii]];
+    }
+    return new Result(coff, pixels, nm, labels, residuals, outliers, Math.sqrt(sum / bestCount));
+  }
+
+  private static double evaluate (double[] coff, double[] powers) {
+    double val = 0;
+    for (int ii = 0; ii < coff.length; ii++) {
+      val += coff[ii] * powers[ii];
+    }
+    return val;
+  }
+
+  /**
+   *  @return saved coefficients for the device with this serial number, or null if none
+   */
+  static double[] load (String serial) {
+    String val = prefs.get(serial, null);
+    if (val != null) {
+      String[] parts = val.split(",");
+      if (parts.length == 4) {
+        try {
+          double[] coff = new double[4];
+          for (int ii = 0; ii < 4; ii++) {
+            coff[ii] = Double.parseDouble(parts[ii]);
+          }
+          return coff;
+        } catch (NumberFormatException ex) {
+          // Ignore damaged entry
+        }
+      }
+    }
+    return null;
+  }
+
+  static void save (String serial, double[] coff) {
+    prefs.put(serial, coff[0] + "," + coff[1] + "," + coff[2] + "," + coff[3]);
+  }
+
+  static void clear (String serial) {
+    prefs.remove(serial);
+  }
+
+  /**
+   *  Format a coefficient in the 15 characters an EEPROM information slot holds, keeping as
+   *  many significant digits as fit
+   */
+  static String toEeprom (double val) {
+    String str = Double.toString(val);
+    if (str.length() > 15 && Math.abs(val) >= 0.01 && Math.abs(val) < 1e13) {
+      // Fixed point, with as many decimals as fit after the integer part
+      String whole = String.format("%.0f", val);
+      str = String.format("%." + Math.max(0, 14 - whole.length()) + "f", val);
+    }
+    for (int digits = 15; str.length() > 15 && digits > 0; digits--) {
+      // Drop the exponent's sign and leading zero where possible, to leave room for digits
+      str = String.format("%." + digits + "E", val).replace("E+", "E").replace("E-0", "E-").replace("E0", "E");
+    }
+    return str;
+  }
+
+  /**
+   *  Write coefficients to the EEPROM slots (1 - 4) they're read from when the device is opened
+   */
+  static void writeEeprom (DeviceSession session, double[] coff) {
+    for (int ii = 0; ii < 4; ii++) {
+      session.setInfo(ii + 1, toEeprom(coff[ii]));
+    }
+  }
+}
@@ -0,0 +1,107 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *  Decorates a USBTransport to capture every endpoint transfer, with its System.nanoTime()
+ *  offset from the start of the capture, so a session can be replayed later by ReplayTransport.
+ *
+ *  Capture format (big endian, as written by DataOutputStream):
+ *    "USB4KCAP" magic, int version
+ *    Records of:
+ *      byte  endpoint (0x01 for commands sent, otherwise the IN endpoint)
+ *      long  nanoseconds since the capture started
+ *      int   length, or a negative LibUsb error code for a failed read
+ *      byte  data[length]
+ */
+
+class RecordingTransport implements USBTransport {
+  static final byte[]             MAGIC = "USB4KCAP".getBytes(StandardCharsets.US_ASCII);
+  static final int                VERSION = 1;
+  private final USBTransport      usb;
+  private final DataOutputStream  out;
+  private final long              start = System.nanoTime();
+
+  RecordingTransport (USBTransport usb, File capture) throws IOException {
+    this.usb = usb;
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(capture)));
+    out.write(MAGIC);
+    out.writeInt(VERSION);
+  }
+
+  private synchronized void record (byte endpoint, byte[] data, int offset, int length) {
+    try {
+      out.writeByte(endpoint);
+      out.writeLong(System.nanoTime() - start);
+      out.writeInt(length);
+      if (length > 0) {
+        out.write(data, offset, length);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Unable to write capture", ex);
+    }
+  }
+
+  public void send (byte[] data) {
+    usb.send(data);
+    record((byte) 0x01, data, 0, data.length);
+  }
+
+  public byte[] receive () {
+    return receive((byte) 0x81, 64);
+  }
+
+  public byte[] receive (byte eIn, int bSize) {
+    byte[] data = usb.receive(eIn, bSize);
+    record(eIn, data, 0, data.length);
+    return data;
+  }
+
+  public BulkRead bulkRead (byte eIn, ByteBuffer buf) {
+    BulkRead read = usb.bulkRead(eIn, buf);
+    byte[] data = new byte[buf.capacity()];
+    return new BulkRead() {
+      public void submit () {
+        read.submit();
+      }
+
+      public int await (long timeout) {
+        int len = read.await(timeout);
+        if (len > 0) {
+          ByteBuffer dup = buf.duplicate();
+          dup.clear();
+          dup.get(data, 0, len);
+        }
+        record(eIn, data, 0, len);
+        return len;
+      }
+
+      public void cancel () {
+        read.cancel();
+      }
+
+      public ByteBuffer buffer () {
+        return buf;
+      }
+    };
+  }
+
+  public void close () {
+    try {
+      usb.close();
+    } finally {
+      synchronized (this) {
+        try {
+          out.close();
+        } catch (IOException ex) {
+          throw new UncheckedIOException("Unable to close capture", ex);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,120 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Plays back a capture made by RecordingTransport.  Rather than replaying transfers strictly in
+ *  order, which would break as soon as the replaying code sent a different sequence of commands,
+ *  the capture is indexed by command: each response on 0x81 is stored against the command that
+ *  preceded it, and the packets read after each 0x09 (Request Spectra) become one recorded scan.
+ *  Scans are returned in recorded order, looping back to the first when the capture runs out.
+ *
+ *  In real time mode each packet becomes available at the same offset from its command as it was
+ *  recorded, otherwise packets are available immediately so a capture replays as fast as possible.
+ */
+
+class ReplayTransport extends QueuedTransport {
+  private final Map<String,Response>  responses = new HashMap<>();
+  private final List<Response[]>      scans = new ArrayList<>();
+  private final boolean               realTime;
+  private int                         nextScan;
+
+  private static class Response {
+    final byte    endpoint;
+    final byte[]  data;
+    final long    delay;                            // Nanoseconds after the command was sent
+
+    Response (byte endpoint, byte[] data, long delay) {
+      this.endpoint = endpoint;
+      this.data = data;
+      this.delay = delay;
+    }
+  }
+
+  ReplayTransport (File capture, boolean realTime) throws IOException {
+    this.realTime = realTime;
+    if (!realTime) {
+      roundTripNanos = 0;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(capture)))) {
+      byte[] magic = new byte[RecordingTransport.MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, RecordingTransport.MAGIC) || in.readInt() != RecordingTransport.VERSION) {
+        throw new IOException(capture + " is not a USB4000 capture");
+      }
+      String command = null;
+      long sent = 0;
+      List<Response> scan = null;
+      while (true) {
+        byte endpoint;
+        try {
+          endpoint = in.readByte();
+        } catch (EOFException ex) {
+          break;
+        }
+        long nanos = in.readLong();
+        int length = in.readInt();
+        byte[] data = new byte[Math.max(length, 0)];
+        in.readFully(data);
+        if (endpoint == 0x01) {
+          if (scan != null && !scan.isEmpty()) {
+            scans.add(scan.toArray(new Response[0]));
+          }
+          scan = data.length > 0 && data[0] == 0x09 ? new ArrayList<>() : null;
+          command = key(data);
+          sent = nanos;
+        } else if (length >= 0) {
+          Response rsp = new Response(endpoint, data, nanos - sent);
+          if (scan != null) {
+            scan.add(rsp);
+          } else if (command != null) {
+            responses.put(command, rsp);
+          }
+        }
+      }
+      if (scan != null && !scan.isEmpty()) {
+        scans.add(scan.toArray(new Response[0]));
+      }
+    }
+  }
+
+  private static String key (byte[] data) {
+    StringBuilder buf = new StringBuilder();
+    for (byte val : data) {
+      buf.append(String.format("%02X", val & 0xFF));
+    }
+    return buf.toString();
+  }
+
+  /**
+   *  @return number of scans in the capture
+   */
+  int getScanCount () {
+    return scans.size();
+  }
+
+  public synchronized void send (byte[] data) {
+    long now = System.nanoTime();
+    if (data.length > 0 && data[0] == 0x09) {
+      if (!scans.isEmpty()) {
+        for (Response rsp : scans.get(nextScan)) {
+          queue(rsp.endpoint, rsp.data, realTime ? now + rsp.delay : now);
+        }
+        nextScan = (nextScan + 1) % scans.size();
+      }
+    } else {
+      Response rsp = responses.get(key(data));
+      if (rsp != null) {
+        queue(rsp.endpoint, rsp.data, realTime ? now + rsp.delay : now);
+      }
+    }
+  }
+}
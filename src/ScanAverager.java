@@ -0,0 +1,193 @@
+/**
+ *  Averages successive scans, then optionally applies boxcar smoothing across pixels, using
+ *  accumulators allocated once per pixel count so steady state averaging allocates nothing.
+ *
+ *  In BLOCK mode, scans are summed into a long[] per pixel and the mean is output once every
+ *  N scans.  In EMA mode, every scan updates an exponential moving average with a weight of 1/N,
+ *  and a result is output every scan.
+ *
+ *  Settings may be changed from another thread; the accumulators restart on the next scan.
+ */
+
+class ScanAverager {
+  enum Mode {BLOCK, EMA}
+
+  private volatile int      average = 1;
+  private volatile int      boxcar;
+  private volatile Mode     mode = Mode.BLOCK;
+  private volatile boolean  changed;
+  private long[]            sums = new long[0];
+  private double[]          ema = new double[0];
+  private double[]          prefix = new double[1];
+  private int               count;
+  private Mode              active = Mode.BLOCK;        // Mode of the result add() made ready
+
+  /**
+   *  @param average number of scans to average (1 disables averaging)
+   */
+  void setAverage (int average) {
+    this.average = Math.max(1, average);
+    changed = true;
+  }
+
+  int getAverage () {
+    return average;
+  }
+
+  /**
+   *  @param boxcar half width of the boxcar in pixels, so each pixel becomes the mean of
+   *                2 * boxcar + 1 pixels (0 disables smoothing)
+   */
+  void setBoxcar (int boxcar) {
+    this.boxcar = Math.max(0, boxcar);
+  }
+
+  int getBoxcar () {
+    return boxcar;
+  }
+
+  /**
+   *  Discard any partly averaged block, so the next scan starts a new one
+   */
+  void restart () {
+    changed = true;
+  }
+
+  void setMode (Mode mode) {
+    this.mode = mode;
+    changed = true;
+  }
+
+  Mode getMode () {
+    return mode;
+  }
+
+  /**
+   *  Add a scan
+   *  @return true if a new result is ready to be collected with get()
+   */
+  boolean add (int[] counts, int length) {
+    if (sums.length != length) {
+      sums = new long[length];
+      ema = new double[length];
+      prefix = new double[length + 1];
+      changed = true;
+    }
+    if (changed) {
+      changed = false;
+      count = 0;
+      for (int ii = 0; ii < length; ii++) {
+        sums[ii] = 0;
+      }
+    }
+    int average = this.average;
+    active = mode;
+    count++;
+    if (active == Mode.EMA) {
+      if (count == 1) {
+        for (int ii = 0; ii < length; ii++) {
+          ema[ii] = counts[ii];
+        }
+      } else {
+        // Weight ramps down to 1/N, so early results aren't dominated by the first scan
+        count = Math.min(count, average);
+        double alpha = 1.0 / count;
+        for (int ii = 0; ii < length; ii++) {
+          ema[ii] += alpha * (counts[ii] - ema[ii]);
+        }
+      }
+      return true;
+    }
+    for (int ii = 0; ii < length; ii++) {
+      sums[ii] += counts[ii];
+    }
+    return count >= average;
+  }
+
+  /**
+   *  Write the result made ready by the last call to add() to out, smoothed, and start the next block
+   */
+  void get (float[] out) {
+    int length = sums.length;
+    if (active == Mode.EMA) {
+      smooth(ema, length, out);
+      return;
+    }
+    double scale = 1.0 / Math.max(count, 1);
+    for (int ii = 0; ii < length; ii++) {
+      prefix[ii] = sums[ii] * scale;
+      sums[ii] = 0;
+    }
+    count = 0;
+    smooth(prefix, length, out);
+  }
+
+  /**
+   *  Boxcar smooth src into out using a running prefix sum, so cost doesn't depend on width.
+   *  src may be the prefix array itself.
+   */
+  private void smooth (double[] src, int length, float[] out) {
+    int half = Math.min(boxcar, length / 2);
+    if (half == 0) {
+      for (int ii = 0; ii < length; ii++) {
+        out[ii] = (float) src[ii];
+      }
+      return;
+    }
+    double sum = 0;
+    double last = 0;
+    for (int ii = 0; ii < length; ii++) {
+      // Shift as we go, so src can be the prefix array
+      double val = src[ii];
+      sum += last;
+      prefix[ii] = sum;
+      last = val;
+    }
+    prefix[length] = sum + last;
+    // Window is truncated at either end of the spectrum
+    for (int ii = 0; ii < length; ii++) {
+      int lo = Math.max(0, ii - half);
+      int hi = Math.min(length, ii + half + 1);
+      out[ii] = (float) ((prefix[hi] - prefix[lo]) / (hi - lo));
+    }
+  }
+
+  /*
+   *  Measures the cost per scan of averaging 100 scans, with and without smoothing, to compare
+   *  with the ~10 ms a scan takes over USB
+   */
+  public static void main (String[] args) {
+    int[] counts = new int[3840];
+    java.util.Random random = new java.util.Random(1);
+    for (int ii = 0; ii < counts.length; ii++) {
+      counts[ii] = 1500 + random.nextInt(1000);
+    }
+    float[] out = new float[counts.length];
+    ScanAverager averager = new ScanAverager();
+    averager.setAverage(100);
+    String[] names = {"Block", "Block, 21 px boxcar", "EMA", "EMA, 21 px boxcar"};
+    for (int pass = 0; pass < 2; pass++) {
+      for (int test = 0; test < names.length; test++) {
+        averager.setMode(test < 2 ? Mode.BLOCK : Mode.EMA);
+        averager.setBoxcar(test % 2 == 0 ? 0 : 10);
+        int iterations = 100000;
+        long ready = 0;
+        long bytes = ScanBuffer.allocated();
+        long start = System.nanoTime();
+        for (int ii = 0; ii < iterations; ii++) {
+          counts[ii % counts.length]++;
+          if (averager.add(counts, counts.length)) {
+            averager.get(out);
+            ready++;
+          }
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = ScanBuffer.allocated() - bytes;
+        if (pass > 0) {
+          System.out.println(String.format("%-20s %6.2f us/scan, %d results, %d bytes/scan allocated", names[test],
+                             elapsed / 1e3 / iterations, ready, bytes / iterations));
+        }
+      }
+    }
+  }
+}
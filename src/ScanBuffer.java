@@ -0,0 +1,204 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Reusable direct buffer that holds one scan exactly as it arrives from the USB4000.  Each packet
+ *  is read into its own slice of the buffer, so the pixel data, which is little endian uint16,
+ *  ends up contiguous and can be decoded through a ShortBuffer, or CharBuffer, view without
+ *  copying bytes or allocating.
+ */
+
+class ScanBuffer {
+  static final byte           SYNC = 0x69;                  // Single byte that ends every scan
+  private final ByteBuffer    raw;
+  private final ByteBuffer[]  packets;
+  private final int[]         lengths;
+  private final ShortBuffer   shorts;
+  private final CharBuffer    chars;
+  private final int           pktSize;
+  private boolean             valid;
+
+  ScanBuffer (int pktCount, int pktSize) {
+    this.pktSize = pktSize;
+    raw = ByteBuffer.allocateDirect(pktCount * pktSize).order(ByteOrder.LITTLE_ENDIAN);
+    packets = new ByteBuffer[pktCount];
+    lengths = new int[pktCount];
+    for (int ii = 0; ii < pktCount; ii++) {
+      raw.position(ii * pktSize);
+      raw.limit((ii + 1) * pktSize);
+      packets[ii] = raw.slice();
+    }
+    raw.clear();
+    shorts = raw.asShortBuffer();
+    chars = raw.asCharBuffer();
+  }
+
+  ByteBuffer packet (int index) {
+    return packets[index];
+  }
+
+  int packetCount () {
+    return packets.length;
+  }
+
+  /**
+   *  Record the number of bytes read into a packet, or a negative value if the read failed
+   */
+  void setLength (int index, int length) {
+    lengths[index] = length;
+  }
+
+  int getLength (int index) {
+    return lengths[index];
+  }
+
+  /**
+   *  Clear recorded lengths before the packets are read again
+   */
+  void reset () {
+    for (int ii = 0; ii < lengths.length; ii++) {
+      lengths[ii] = 0;
+    }
+    valid = false;
+  }
+
+  /**
+   *  Check that the scan holds exactly the expected number of pixels, in full packets, followed
+   *  by the sync byte.  A failed or short read, or packets shifted by one left over from an
+   *  earlier scan, will fail one of these checks.
+   *  @param pixels pixel count reported by the device's status
+   *  @return true if the scan is complete and aligned
+   */
+  boolean validate (int pixels) {
+    int dataPackets = pixels * 2 / pktSize;
+    valid = pixels * 2 % pktSize == 0 && dataPackets < lengths.length && pixelCount() == pixels &&
+            lengths[dataPackets] == 1 && packets[dataPackets].get(0) == SYNC;
+    return valid;
+  }
+
+  /**
+   *  @return result of the last call to validate()
+   */
+  boolean isValid () {
+    return valid;
+  }
+
+  /**
+   *  Number of pixels received contiguously from the start of the scan, which stops at the first
+   *  short, or failed, packet.  The trailing sync byte packet is not counted.
+   */
+  int pixelCount () {
+    int bytes = 0;
+    for (int ii = 0; ii < lengths.length; ii++) {
+      if (lengths[ii] != pktSize) {
+        break;
+      }
+      bytes += pktSize;
+    }
+    return bytes / 2;
+  }
+
+  /**
+   *  Decode the pixel data into dst
+   *  @return number of pixels decoded
+   */
+  int decode (int[] dst) {
+    int count = Math.min(pixelCount(), dst.length);
+    for (int ii = 0; ii < count; ii++) {
+      dst[ii] = shorts.get(ii) & 0xFFFF;
+    }
+    return count;
+  }
+
+  /**
+   *  Decode the pixel data into dst using a bulk copy, as char is Java's unsigned 16 bit type
+   *  @return number of pixels decoded
+   */
+  int decode (char[] dst) {
+    int count = Math.min(pixelCount(), dst.length);
+    chars.clear();
+    chars.get(dst, 0, count);
+    return count;
+  }
+
+  /**
+   *  Compares the decode loop Spectrum.run used with List<byte[]> packets, with decoding from
+   *  a ScanBuffer into int[] and char[], reporting time and bytes allocated per scan.
+   */
+
+  public static void main (String[] args) {
+    ScanBuffer scan = new ScanBuffer(16, 512);
+    for (int ii = 0; ii < 16; ii++) {
+      ByteBuffer pkt = scan.packet(ii);
+      for (int jj = 0; jj < 512; jj++) {
+        pkt.put(jj, (byte) (ii * 31 + jj));
+      }
+      scan.setLength(ii, ii < 15 ? 512 : 1);
+    }
+    int[] ints = new int[3840];
+    char[] chars = new char[3840];
+    String[] names = {"List<byte[]>", "ScanBuffer int[]", "ScanBuffer char[]"};
+    for (int pass = 0; pass < 2; pass++) {
+      for (int test = 0; test < names.length; test++) {
+        int iterations = 100000;
+        long sum = 0;
+        long bytes = allocated();
+        long start = System.nanoTime();
+        for (int ii = 0; ii < iterations; ii++) {
+          switch (test) {
+          case 0:
+            // Equivalent to ScanReader.readScan() and the decode loop from Spectrum.run
+            List<byte[]> list = new ArrayList<>();
+            int dataLength = 0;
+            for (int pkt = 0; pkt < 16; pkt++) {
+              ByteBuffer buf = scan.packet(pkt);
+              byte[] data = new byte[scan.getLength(pkt)];
+              buf.clear();
+              buf.get(data);
+              list.add(data);
+              dataLength += data.length;
+            }
+            int[] spectrum = new int[dataLength / 2];
+            int idx = 0;
+            for (byte[] seg : list) {
+              if (seg.length != 1) {
+                for (int jj = 0; jj < seg.length; jj += 2) {
+                  spectrum[idx++] = (seg[jj] & 0xFF) + ((seg[jj + 1] & 0xFF) << 8);
+                }
+              }
+            }
+            sum += spectrum[ii % spectrum.length];
+            break;
+          case 1:
+            scan.decode(ints);
+            sum += ints[ii % ints.length];
+            break;
+          case 2:
+            scan.decode(chars);
+            sum += chars[ii % chars.length];
+            break;
+          }
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = allocated() - bytes;
+        if (pass > 0) {
+          System.out.println(String.format("%-18s %7.2f us/scan, %7d bytes/scan allocated (%d)", names[test],
+                             elapsed / 1e3 / iterations, bytes / iterations, sum));
+        }
+      }
+    }
+  }
+
+  static long allocated () {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,281 @@
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+
+import java.nio.ByteBuffer;
+
+/**
+ *  Reads the packets that make up one USB4000 scan into a ScanBuffer.  In async mode every read
+ *  for a scan is queued before the 0x09 (Request Spectra) command is sent and, as soon as a scan
+ *  completes, the reads for the next scan are queued again, so no packet waits on a host round trip.
+ *
+ *  High speed (480 Mbps) scans arrive as 4 packets from 0x86, then 12 from 0x82, the last of
+ *  which is a single sync byte.  Full speed (12 Mbps) scans arrive as 121 64 byte packets from 0x82.
+ *
+ *  Every scan is checked for the expected number of pixels and the trailing sync byte.  If a read
+ *  fails, or returns too little, the rest of that scan is still on its way, and would otherwise
+ *  be read as the start of the next one, so instead the endpoints are drained until the device
+ *  goes quiet and the scan is requested again.  The session stays open throughout.
+ */
+
+class ScanReader {
+  private static final int      TIMEOUT = 500;
+  private static final int      PACKET_TIMEOUT = 100;         // Later packets follow the first within milliseconds
+  private static final int      DRAIN_TIMEOUT = 20;           // Quiet time on an endpoint that ends a resync
+  private static final int      ATTEMPTS = 2;                 // Tries at reading each scan
+  private static final byte     eIn2 = (byte) 0x82;
+  private static final byte     eIn6 = (byte) 0x86;
+  private static final byte[]   requestSpectra = new byte[] {0x09};
+  private final USBTransport    usb;
+  private final boolean         async;
+  private final byte[]          endpoints;
+  private final int             pktSize;
+  private final int             pixels;
+  private final ScanBuffer[]    slots = new ScanBuffer[2];
+  private USBTransport.BulkRead[][] reads;
+  private USBTransport.BulkRead[] drains;                     // One per endpoint, allocated on first resync
+  private int                   slot;
+  private boolean               queued;
+  private int                   firstTimeout = TIMEOUT;       // Allows for the integration time
+  private AcquisitionMetrics    metrics;
+
+  /**
+   *  @param pixels pixel count from the device's status, which each scan is checked against
+   */
+  ScanReader (USBTransport usb, boolean hsUsb, int pixels, boolean async) {
+    this.usb = usb;
+    this.async = async;
+    this.pixels = pixels;
+    if (hsUsb) {
+      pktSize = 512;
+      endpoints = new byte[16];
+      for (int ii = 0; ii < endpoints.length; ii++) {
+        endpoints[ii] = ii < 4 ? eIn6 : eIn2;
+      }
+    } else {
+      pktSize = 64;
+      endpoints = new byte[121];
+      for (int ii = 0; ii < endpoints.length; ii++) {
+        endpoints[ii] = eIn2;
+      }
+    }
+    // Two slots, so reads for the next scan can be queued while the last one is decoded
+    for (int ii = 0; ii < slots.length; ii++) {
+      slots[ii] = new ScanBuffer(endpoints.length, pktSize);
+    }
+    if (async) {
+      reads = new USBTransport.BulkRead[slots.length][endpoints.length];
+      for (int ii = 0; ii < slots.length; ii++) {
+        for (int jj = 0; jj < endpoints.length; jj++) {
+          reads[ii][jj] = usb.bulkRead(endpoints[jj], slots[ii].packet(jj));
+        }
+      }
+    }
+  }
+
+  /**
+   *  Request and read one scan, resyncing and trying again if it's incomplete or misaligned.
+   *  The returned buffer stays valid until the next call.
+   *  @return buffer holding the packets in the order received.  isValid() is false if every
+   *  attempt failed.
+   */
+  ScanBuffer readScan () {
+    ScanBuffer scan = null;
+    for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+      scan = slots[slot];
+      scan.reset();
+      if (async) {
+        readAsync(scan);
+      } else {
+        readSync(scan);
+      }
+      if (scan.validate(pixels)) {
+        break;
+      }
+      resync();
+    }
+    return scan;
+  }
+
+  private void readAsync (ScanBuffer scan) {
+    if (!queued) {
+      queueReads(slot);
+    }
+    long time = System.nanoTime();
+    usb.send(requestSpectra);
+    time = record(AcquisitionMetrics.Phase.SEND, time);
+    queued = false;
+    USBTransport.BulkRead[] slotReads = reads[slot];
+    for (int ii = 0; ii < slotReads.length; ii++) {
+      int len = slotReads[ii].await(ii == 0 ? firstTimeout : PACKET_TIMEOUT);
+      time = record(phase(ii), time);
+      count(ii, len);
+      if (len == LibUsb.ERROR_NO_DEVICE) {
+        throw new LibUsbException("Device disconnected", len);
+      }
+      scan.setLength(ii, len);
+      if (len < 0) {
+        // Abandon this scan, rather than wait on reads that will only time out
+        for (int jj = ii + 1; jj < slotReads.length; jj++) {
+          slotReads[jj].cancel();
+        }
+        return;
+      }
+    }
+    if (scan.validate(pixels)) {
+      // Queue reads for the next scan into the other slot while this one is decoded
+      slot ^= 1;
+      queueReads(slot);
+    }
+  }
+
+  private void readSync (ScanBuffer scan) {
+    long time = System.nanoTime();
+    usb.send(requestSpectra);
+    time = record(AcquisitionMetrics.Phase.SEND, time);
+    for (int ii = 0; ii < endpoints.length; ii++) {
+      byte[] data = usb.receive(endpoints[ii], pktSize);
+      time = record(phase(ii), time);
+      // A failed receive() returns no data
+      count(ii, data.length > 0 ? data.length : -1);
+      ByteBuffer pkt = scan.packet(ii);
+      pkt.clear();
+      pkt.put(data);
+      scan.setLength(ii, data.length);
+      if (data.length == 0) {
+        return;
+      }
+    }
+    slot ^= 1;
+  }
+
+  /**
+   *  Discard whatever the device is still sending on each endpoint, until it has been quiet for
+   *  DRAIN_TIMEOUT, so the next scan starts on a packet boundary.  A device that never goes quiet
+   *  is left after a scan's worth of packets, and the next scan's check will catch it.
+   */
+  private void resync () {
+    if (drains == null) {
+      drains = new USBTransport.BulkRead[endpoints[0] == eIn6 ? 2 : 1];
+      drains[0] = usb.bulkRead(eIn2, ByteBuffer.allocateDirect(pktSize));
+      if (drains.length > 1) {
+        drains[1] = usb.bulkRead(eIn6, ByteBuffer.allocateDirect(pktSize));
+      }
+    }
+    // Cancel any reads queued for the next scan, so the drain reads get the packets
+    cancel();
+    for (USBTransport.BulkRead drain : drains) {
+      int len;
+      int count = 0;
+      do {
+        drain.submit();
+        len = drain.await(DRAIN_TIMEOUT);
+      } while (len >= 0 && ++count < endpoints.length);
+      if (len == LibUsb.ERROR_NO_DEVICE) {
+        throw new LibUsbException("Device disconnected", len);
+      }
+    }
+    if (metrics != null) {
+      metrics.resynced();
+    }
+  }
+
+  /**
+   *  @param metrics receives the time taken by each transfer, and counts of failed or short reads
+   */
+  void setMetrics (AcquisitionMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  private AcquisitionMetrics.Phase phase (int packet) {
+    return packet == 0 ? AcquisitionMetrics.Phase.WAIT : endpoints[packet] == eIn6 ? AcquisitionMetrics.Phase.READ_86
+                                                                                   : AcquisitionMetrics.Phase.READ_82;
+  }
+
+  /**
+   *  Record the time since start to phase
+   *  @return current time
+   */
+  private long record (AcquisitionMetrics.Phase phase, long start) {
+    long now = System.nanoTime();
+    if (metrics != null) {
+      metrics.record(phase, now - start);
+    }
+    return now;
+  }
+
+  /**
+   *  Count a failed read, or one shorter than a full packet (the last, a single sync byte, excepted)
+   */
+  private void count (int packet, int len) {
+    if (metrics != null) {
+      if (len < 0) {
+        metrics.droppedRead();
+      } else if (len < (packet == endpoints.length - 1 ? 1 : pktSize)) {
+        metrics.shortRead();
+      }
+    }
+  }
+
+  /**
+   *  @param micros integration time, which delays the first packet of each scan
+   */
+  void setIntegrationTime (int micros) {
+    firstTimeout = TIMEOUT + micros / 1000;
+  }
+
+  private void queueReads (int slot) {
+    for (USBTransport.BulkRead read : reads[slot]) {
+      read.submit();
+    }
+    queued = true;
+  }
+
+  /**
+   *  Cancel any reads queued for the next scan.  Must be called before the transport is closed.
+   */
+  void cancel () {
+    if (queued) {
+      for (USBTransport.BulkRead read : reads[slot]) {
+        read.cancel();
+      }
+      queued = false;
+    }
+  }
+
+  /**
+   *  Compares sync and async scan throughput.  Uses the FakeUSB4000 unless the first argument
+   *  is "usb", or replays a CSV file saved by "Save Scan" if one is given as the first argument.
+   */
+
+  public static void main (String[] args) throws Exception {
+    int scans = 200;
+    for (boolean async : new boolean[] {false, true}) {
+      USBTransport usb;
+      if (args.length > 0 && "usb".equals(args[0])) {
+        usb = new USBIO((short) 0x2457, (short) 0x1022, (byte) 0x00, (byte) 0x01, (byte) 0x81);
+      } else {
+        usb = new FakeUSB4000(args.length > 0 ? args[0] : null, true);
+      }
+      usb.send(new byte[] {0x01});
+      usb.send(new byte[] {(byte) 0xFE});
+      byte[] status = usb.receive();
+      int pixels = (status[0] & 0xFF) + ((status[1] & 0xFF) << 8);
+      ScanReader reader = new ScanReader(usb, status[14] == (byte) 0x80, pixels, async);
+      reader.readScan();
+      long maxLatency = 0, totalLatency = 0;
+      long start = System.nanoTime();
+      for (int ii = 0; ii < scans; ii++) {
+        long scanStart = System.nanoTime();
+        reader.readScan();
+        long latency = System.nanoTime() - scanStart;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+      }
+      long elapsed = System.nanoTime() - start;
+      reader.cancel();
+      usb.close();
+      System.out.println((async ? "async: " : "sync:  ") + String.format("%6.1f scans/sec, latency avg %6.3f ms, max %6.3f ms",
+                         scans * 1e9 / elapsed, totalLatency / 1e6 / scans, maxLatency / 1e6));
+    }
+  }
+}
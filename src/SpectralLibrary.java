@@ -0,0 +1,828 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  A library of reference spectra that live frames are matched against, by cosine similarity or
+ *  correlation.  References are resampled onto a uniform wavelength grid covering the range the
+ *  device and every reference share, scaled to unit length, and stored as rows of one contiguous
+ *  off-heap float matrix, so large libraries don't weigh on the garbage collector.
+ *
+ *  Searches are exact, but most rows are ruled out without reading them.  When loaded, the
+ *  library's leading principal components (uncentered, as matching is by angle) are found by
+ *  randomized subspace iteration over a sample of up to SAMPLE_ROWS rows, and each row is reduced
+ *  to its coordinates on them.  A query scores every row from those coordinates alone, in parallel
+ *  on the fork-join pool, which also bounds each row's true score by the length of the parts of
+ *  the query and the row that the components miss.  The best of those approximate scores are then
+ *  scored exactly, and after them only the rows whose bound still beats the Nth best exact score.
+ *
+ *  Libraries are loaded from a CSV file whose first row is a label followed by the wavelength of
+ *  each column, and each later row is a reference's name followed by its values, or from a
+ *  directory of CSV files each holding one reference as "nm,value" rows, named after the file.
+ *
+ *  Run main() to time searches of a synthetic library of 50,000 spectra.
+ */
+
+class SpectralLibrary {
+  private static final int      COMPONENTS = 32;
+  private static final int      ITERATIONS = 2;               // Subspace iterations when finding the components
+  private static final int      SAMPLE_ROWS = 8192;           // Most rows the components are found from
+  private static final int      CANDIDATES = 64;              // Rows scored exactly, besides the number of hits
+  private static final int      ROWS_PER_TASK = 2048;
+  final double                  startNm, stepNm;
+  final int                     points;
+  private final String[]        names;
+  private final int             rows;
+  private final FloatBuffer     matrix;                       // Off heap, rows of unit length
+  private final FloatBuffer     rowReader;                    // View of matrix used by exact scoring
+  private final float[]         means;                        // Mean of each row
+  private final float[]         centered;                     // Length of each row, less its mean
+  private final int             components;
+  private final double[][]      basis;                        // Orthonormal components, each of points values
+  private final float[]         projected;                    // Each row's coordinates on the components
+  private final float[]         residual;                     // Length of each row the components miss
+  // Search workspaces, reused as searches are synchronized
+  private final float[]         approx, upper;
+  private final int[]           scored;                       // Search number that scored each row exactly
+  private final double[]        query;
+  private final float[]         row;
+  private int                   searches;
+
+  enum Metric {COSINE, CORRELATION}
+
+  /**
+   *  A match for a query
+   */
+  static class Hit {
+    final String  name;
+    final int     index;
+    final double  score;                    // Cosine similarity or correlation, -1 to 1
+
+    Hit (String name, int index, double score) {
+      this.name = name;
+      this.index = index;
+      this.score = score;
+    }
+  }
+
+  /**
+   *  Best scores seen, as a min heap so the worst of them is replaced first
+   */
+  private static class TopN {
+    final int[]   index;
+    final float[] score;
+    int           size;
+
+    TopN (int capacity) {
+      index = new int[capacity];
+      score = new float[capacity];
+    }
+
+    /**
+     *  @return lowest score kept, or -infinity until full
+     */
+    float threshold () {
+      return size < index.length ? Float.NEGATIVE_INFINITY : score[0];
+    }
+
+    void offer (int idx, float val) {
+      if (size < index.length) {
+        int ii = size++;
+        // Sift up
+        while (ii > 0 && score[(ii - 1) / 2] > val) {
+          index[ii] = index[(ii - 1) / 2];
+          score[ii] = score[(ii - 1) / 2];
+          ii = (ii - 1) / 2;
+        }
+        index[ii] = idx;
+        score[ii] = val;
+      } else if (val > score[0]) {
+        // Replace the lowest, then sift down
+        int ii = 0;
+        while (true) {
+          int child = 2 * ii + 1;
+          if (child >= size) {
+            break;
+          }
+          if (child + 1 < size && score[child + 1] < score[child]) {
+            child++;
+          }
+          if (score[child] >= val) {
+            break;
+          }
+          index[ii] = index[child];
+          score[ii] = score[child];
+          ii = child;
+        }
+        index[ii] = idx;
+        score[ii] = val;
+      }
+    }
+  }
+
+  private SpectralLibrary (String[] names, FloatBuffer matrix, double startNm, double stepNm, int points) {
+    this.names = names;
+    this.matrix = matrix;
+    this.startNm = startNm;
+    this.stepNm = stepNm;
+    this.points = points;
+    rows = names.length;
+    rowReader = matrix.duplicate();
+    row = new float[points];
+    means = new float[rows];
+    centered = new float[rows];
+    // Scale each row to unit length
+    FloatBuffer buf = matrix.duplicate();
+    for (int ii = 0; ii < rows; ii++) {
+      buf.position(ii * points);
+      buf.get(row);
+      double sum = 0, sumSq = 0;
+      for (float val : row) {
+        sum += val;
+        sumSq += (double) val * val;
+      }
+      double len = Math.sqrt(sumSq);
+      double scale = len > 0 ? 1 / len : 0;
+      for (int jj = 0; jj < points; jj++) {
+        row[jj] *= scale;
+      }
+      buf.position(ii * points);
+      buf.put(row);
+      double mean = sum * scale / points;
+      means[ii] = (float) mean;
+      centered[ii] = (float) Math.sqrt(Math.max(0, sumSq * scale * scale - points * mean * mean));
+    }
+    components = Math.min(COMPONENTS, Math.min(points, rows));
+    basis = findComponents();
+    projected = new float[rows * components];
+    residual = new float[rows];
+    ForkJoinPool.commonPool().invoke(new Project(0, rows));
+    approx = new float[rows];
+    upper = new float[rows];
+    scored = new int[rows];
+    query = new double[points];
+  }
+
+  int size () {
+    return rows;
+  }
+
+  String getName (int index) {
+    return names[index];
+  }
+
+  /**
+   *  Load a library, resampled onto a grid of stepNm that covers the wavelengths the device and
+   *  every reference share
+   *  @param file CSV file of references, one per row, or directory of CSV files, one per reference
+   */
+  static SpectralLibrary load (File file, Calibration cal, double stepNm) throws IOException {
+    double devStart = cal.pixelToNanometers(cal.getUsableStart());
+    double devEnd = cal.pixelToNanometers(cal.getUsableEnd() - 1);
+    if (file.isDirectory()) {
+      File[] files = file.listFiles((dir, name) -> name.toLowerCase().endsWith(".csv"));
+      if (files == null || files.length == 0) {
+        throw new IOException("No CSV files in " + file);
+      }
+      Arrays.sort(files);
+      List<double[][]> refs = new ArrayList<>();
+      double start = devStart, end = devEnd;
+      for (File ref : files) {
+        double[][] data = readPairs(ref);
+        start = Math.max(start, data[0][0]);
+        end = Math.min(end, data[0][data[0].length - 1]);
+        refs.add(data);
+      }
+      int points = gridPoints(file, start, end, stepNm);
+      FloatBuffer matrix = allocate(files.length, points);
+      String[] names = new String[files.length];
+      float[] dst = new float[points];
+      for (int ii = 0; ii < files.length; ii++) {
+        names[ii] = files[ii].getName().replaceAll("(?i)\\.csv$", "");
+        double[][] data = refs.get(ii);
+        resample(data[0], data[1], start, stepNm, dst);
+        matrix.put(dst);
+      }
+      return new SpectralLibrary(names, matrix, start, stepNm, points);
+    }
+    // Count the references first, so the matrix can be allocated once
+    int count = -1;
+    try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (!line.trim().isEmpty() && !line.startsWith("#")) {
+          count++;
+        }
+      }
+    }
+    if (count < 1) {
+      throw new IOException("No spectra in " + file);
+    }
+    try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+      String line;
+      double[] nm = null;
+      double[] vals = null;
+      FloatBuffer matrix = null;
+      String[] names = new String[count];
+      float[] dst = null;
+      double start = 0;
+      int idx = 0;
+      while ((line = in.readLine()) != null) {
+        if (line.trim().isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] parts = line.split(",");
+        try {
+          if (nm == null) {
+            nm = new double[parts.length - 1];
+            for (int ii = 0; ii < nm.length; ii++) {
+              nm[ii] = Double.parseDouble(parts[ii + 1].trim());
+            }
+            checkIncreasing(file, nm);
+            start = Math.max(devStart, nm[0]);
+            int points = gridPoints(file, start, Math.min(devEnd, nm[nm.length - 1]), stepNm);
+            matrix = allocate(count, points);
+            dst = new float[points];
+            vals = new double[nm.length];
+            continue;
+          }
+          if (parts.length != nm.length + 1) {
+            throw new IOException("Expected " + (nm.length + 1) + " columns in \"" + parts[0] + "\" in " + file);
+          }
+          names[idx++] = parts[0].trim();
+          for (int ii = 0; ii < vals.length; ii++) {
+            vals[ii] = Double.parseDouble(parts[ii + 1].trim());
+          }
+        } catch (NumberFormatException ex) {
+          throw new IOException("Invalid number in \"" + parts[0] + "\" in " + file);
+        }
+        resample(nm, vals, start, stepNm, dst);
+        matrix.put(dst);
+      }
+      return new SpectralLibrary(names, matrix, start, stepNm, dst.length);
+    }
+  }
+
+  /**
+   *  @return wavelengths and values, read from "nm,value" rows, skipping any that aren't numbers
+   */
+  private static double[][] readPairs (File file) throws IOException {
+    List<double[]> pairs = new ArrayList<>();
+    try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] parts = line.split(",");
+        if (parts.length >= 2) {
+          try {
+            pairs.add(new double[] {Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim())});
+          } catch (NumberFormatException ex) {
+            // Header, or comment
+          }
+        }
+      }
+    }
+    if (pairs.size() < 2) {
+      throw new IOException("No spectrum in " + file);
+    }
+    double[][] data = new double[2][pairs.size()];
+    for (int ii = 0; ii < pairs.size(); ii++) {
+      data[0][ii] = pairs.get(ii)[0];
+      data[1][ii] = pairs.get(ii)[1];
+    }
+    checkIncreasing(file, data[0]);
+    return data;
+  }
+
+  private static void checkIncreasing (File file, double[] nm) throws IOException {
+    for (int ii = 1; ii < nm.length; ii++) {
+      if (nm[ii] <= nm[ii - 1]) {
+        throw new IOException("Wavelengths must increase in " + file);
+      }
+    }
+    if (nm.length < 2) {
+      throw new IOException("Too few wavelengths in " + file);
+    }
+  }
+
+  private static int gridPoints (File file, double start, double end, double stepNm) throws IOException {
+    int points = (int) Math.floor((end - start) / stepNm) + 1;
+    if (points < 2) {
+      throw new IOException("The spectra in " + file + " don't overlap each other and the device's range");
+    }
+    return points;
+  }
+
+  /**
+   *  Allocate the matrix, after checking it and the per row arrays fit in the memory that's left,
+   *  as running out part way through loading could leave any thread short of memory
+   */
+  private static FloatBuffer allocate (int rows, int points) throws IOException {
+    long bytes = (long) rows * points * 4;
+    if (bytes > Integer.MAX_VALUE) {
+      throw new IOException("Library too large, " + rows + " spectra of " + points + " points");
+    }
+    long direct = maxDirectMemory();
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if ("direct".equals(pool.getName())) {
+        direct -= pool.getMemoryUsed();
+      }
+    }
+    if (bytes > direct) {
+      throw new IOException(String.format("Library too large, %d spectra of %d points need %.0f MB, but only %.0f MB of " +
+                                          "direct memory is free (see -XX:MaxDirectMemorySize)", rows, points, bytes / 1e6,
+                                          Math.max(0, direct) / 1e6));
+    }
+    // Coordinates on the components, plus the lengths, means, bounds and scores kept for each row
+    long heap = (long) rows * (COMPONENTS + 7) * 4;
+    Runtime runtime = Runtime.getRuntime();
+    long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    if (heap > free) {
+      throw new IOException(String.format("Library too large, %d spectra need %.0f MB of heap, but only %.0f MB is free " +
+                                          "(see -Xmx)", rows, heap / 1e6, free / 1e6));
+    }
+    return ByteBuffer.allocateDirect(rows * points * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+  }
+
+  /**
+   *  @return most bytes of direct buffers this JVM allows, set by -XX:MaxDirectMemorySize, which
+   *  defaults to the maximum heap size
+   */
+  private static long maxDirectMemory () {
+    for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (arg.startsWith("-XX:MaxDirectMemorySize=")) {
+        String size = arg.substring(arg.indexOf('=') + 1).trim().toLowerCase();
+        int shift = size.endsWith("k") ? 10 : size.endsWith("m") ? 20 : size.endsWith("g") ? 30 : 0;
+        try {
+          long val = Long.parseLong(shift > 0 ? size.substring(0, size.length() - 1) : size) << shift;
+          if (val > 0) {
+            return val;
+          }
+        } catch (NumberFormatException ex) {
+          // Let the JVM's default apply
+        }
+      }
+    }
+    return Runtime.getRuntime().maxMemory();
+  }
+
+  /**
+   *  Interpolate vals, at increasing wavelengths nm, onto a grid
+   */
+  private static void resample (double[] nm, double[] vals, double startNm, double stepNm, float[] dst) {
+    int idx = 0;
+    for (int ii = 0; ii < dst.length; ii++) {
+      double target = startNm + ii * stepNm;
+      while (idx < nm.length - 2 && nm[idx + 1] < target) {
+        idx++;
+      }
+      double frac = Math.max(0, Math.min(1, (target - nm[idx]) / (nm[idx + 1] - nm[idx])));
+      dst[ii] = (float) (vals[idx] + frac * (vals[idx + 1] - vals[idx]));
+    }
+  }
+
+  /**
+   *  Find the leading right singular vectors of the matrix by randomized subspace iteration:
+   *  start from random vectors, then repeatedly multiply by A' A and orthonormalize.  A evenly
+   *  spaced sample of the rows is enough, as searches stay exact however well the components fit.
+   */
+  private double[][] findComponents () {
+    double[][] vecs = new double[components][points];
+    Random rand = new Random(1);
+    for (double[] vec : vecs) {
+      for (int jj = 0; jj < points; jj++) {
+        vec[jj] = rand.nextGaussian();
+      }
+    }
+    orthonormalize(vecs);
+    int stride = Math.max(1, rows / SAMPLE_ROWS);
+    for (int iter = 0; iter < ITERATIONS; iter++) {
+      double[] sum = ForkJoinPool.commonPool().invoke(new Power(vecs, stride, 0, (rows - 1) / stride + 1));
+      for (int cc = 0; cc < components; cc++) {
+        System.arraycopy(sum, cc * points, vecs[cc], 0, points);
+      }
+      orthonormalize(vecs);
+    }
+    return vecs;
+  }
+
+  /**
+   *  Modified Gram-Schmidt, replacing any vector that collapses with a unit vector
+   */
+  private static void orthonormalize (double[][] vecs) {
+    for (int cc = 0; cc < vecs.length; cc++) {
+      double[] vec = vecs[cc];
+      for (int pp = 0; pp < cc; pp++) {
+        double dot = 0;
+        for (int jj = 0; jj < vec.length; jj++) {
+          dot += vec[jj] * vecs[pp][jj];
+        }
+        for (int jj = 0; jj < vec.length; jj++) {
+          vec[jj] -= dot * vecs[pp][jj];
+        }
+      }
+      double len = 0;
+      for (double val : vec) {
+        len += val * val;
+      }
+      len = Math.sqrt(len);
+      if (len < 1e-12) {
+        Arrays.fill(vec, 0);
+        vec[cc % vec.length] = 1;
+        cc--;
+        continue;
+      }
+      for (int jj = 0; jj < vec.length; jj++) {
+        vec[jj] /= len;
+      }
+    }
+  }
+
+  /**
+   *  Computes A' (A V) over a range of sampled rows, every stride'th row, as the values of each
+   *  component in turn
+   */
+  private class Power extends RecursiveTask<double[]> {
+    private final double[][]  vecs;
+    private final int         stride, from, to;
+
+    Power (double[][] vecs, int stride, int from, int to) {
+      this.vecs = vecs;
+      this.stride = stride;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected double[] compute () {
+      if (to - from > ROWS_PER_TASK) {
+        int mid = (from + to) >>> 1;
+        Power left = new Power(vecs, stride, from, mid);
+        left.fork();
+        double[] sum = new Power(vecs, stride, mid, to).compute();
+        double[] other = left.join();
+        for (int ii = 0; ii < sum.length; ii++) {
+          sum[ii] += other[ii];
+        }
+        return sum;
+      }
+      double[] sum = new double[components * points];
+      float[] vals = new float[points];
+      FloatBuffer buf = matrix.duplicate();
+      for (int ii = from; ii < to; ii++) {
+        buf.position(ii * stride * points);
+        buf.get(vals);
+        for (int cc = 0; cc < components; cc++) {
+          double[] vec = vecs[cc];
+          double dot = 0;
+          for (int jj = 0; jj < points; jj++) {
+            dot += vals[jj] * vec[jj];
+          }
+          int base = cc * points;
+          for (int jj = 0; jj < points; jj++) {
+            sum[base + jj] += dot * vals[jj];
+          }
+        }
+      }
+      return sum;
+    }
+  }
+
+  /**
+   *  Reduces a range of rows to their coordinates on the components
+   */
+  private class Project extends RecursiveAction {
+    private final int from, to;
+
+    Project (int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute () {
+      if (to - from > ROWS_PER_TASK) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Project(from, mid), new Project(mid, to));
+        return;
+      }
+      float[] vals = new float[points];
+      FloatBuffer buf = matrix.duplicate();
+      for (int ii = from; ii < to; ii++) {
+        buf.position(ii * points);
+        buf.get(vals);
+        double captured = 0;
+        for (int cc = 0; cc < components; cc++) {
+          double[] vec = basis[cc];
+          double dot = 0;
+          for (int jj = 0; jj < points; jj++) {
+            dot += vals[jj] * vec[jj];
+          }
+          projected[ii * components + cc] = (float) dot;
+          captured += dot * dot;
+        }
+        // Rows have unit length, so what the components miss is what's left of it
+        residual[ii] = (float) Math.sqrt(Math.max(0, 1 - captured));
+      }
+    }
+  }
+
+  /**
+   *  Scores a range of rows from their coordinates, with an upper bound on each exact score
+   */
+  private class Approximate extends RecursiveAction {
+    private final double[]  coords;
+    private final double    queryResidual, queryMean, queryCentered;
+    private final boolean   correlation;
+    private final int       from, to;
+
+    Approximate (double[] coords, double queryResidual, double queryMean, double queryCentered, boolean correlation,
+                 int from, int to) {
+      this.coords = coords;
+      this.queryResidual = queryResidual;
+      this.queryMean = queryMean;
+      this.queryCentered = queryCentered;
+      this.correlation = correlation;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute () {
+      if (to - from > ROWS_PER_TASK) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Approximate(coords, queryResidual, queryMean, queryCentered, correlation, from, mid),
+                  new Approximate(coords, queryResidual, queryMean, queryCentered, correlation, mid, to));
+        return;
+      }
+      int comps = components;
+      for (int ii = from; ii < to; ii++) {
+        int base = ii * comps;
+        double dot = 0;
+        for (int cc = 0; cc < comps; cc++) {
+          dot += coords[cc] * projected[base + cc];
+        }
+        // By Cauchy-Schwarz, the parts the components miss add at most the product of their lengths
+        double bound = dot + queryResidual * residual[ii];
+        approx[ii] = (float) score(dot, ii, queryMean, queryCentered, correlation);
+        upper[ii] = (float) score(bound, ii, queryMean, queryCentered, correlation) + 1e-5f;
+      }
+    }
+  }
+
+  /**
+   *  Convert a query's dot product with a row into a score
+   */
+  private double score (double dot, int row, double queryMean, double queryCentered, boolean correlation) {
+    if (!correlation) {
+      return dot;
+    }
+    double den = queryCentered * centered[row];
+    return den > 0 ? (dot - points * queryMean * means[row]) / den : -1;
+  }
+
+  private double exactDot (int idx) {
+    rowReader.position(idx * points);
+    rowReader.get(row);
+    double dot = 0;
+    for (int jj = 0; jj < points; jj++) {
+      dot += row[jj] * query[jj];
+    }
+    return dot;
+  }
+
+  /**
+   *  Find the references that best match a spectrum
+   *  @param spectrum values on this library's grid, from startNm in steps of stepNm.  NaNs, as
+   *  Calibration.resample() sets outside the device's range, count as 0.
+   *  @param count number of hits wanted
+   *  @return best hits, best first
+   */
+  synchronized Hit[] search (float[] spectrum, Metric metric, int count) {
+    count = Math.min(count, rows);
+    double sumSq = 0;
+    int len = Math.min(points, spectrum.length);
+    for (int jj = 0; jj < points; jj++) {
+      double val = jj < len && !Float.isNaN(spectrum[jj]) ? spectrum[jj] : 0;
+      query[jj] = val;
+      sumSq += val * val;
+    }
+    if (sumSq <= 0 || count < 1) {
+      return new Hit[0];
+    }
+    double scale = 1 / Math.sqrt(sumSq);
+    double sum = 0;
+    for (int jj = 0; jj < points; jj++) {
+      query[jj] *= scale;
+      sum += query[jj];
+    }
+    double mean = sum / points;
+    double queryCentered = Math.sqrt(Math.max(0, 1 - points * mean * mean));
+    double[] coords = new double[components];
+    double captured = 0;
+    for (int cc = 0; cc < components; cc++) {
+      double[] vec = basis[cc];
+      double dot = 0;
+      for (int jj = 0; jj < points; jj++) {
+        dot += query[jj] * vec[jj];
+      }
+      coords[cc] = dot;
+      captured += dot * dot;
+    }
+    boolean correlation = metric == Metric.CORRELATION;
+    ForkJoinPool.commonPool().invoke(new Approximate(coords, Math.sqrt(Math.max(0, 1 - captured)), mean, queryCentered,
+                                                     correlation, 0, rows));
+    // Score the best approximate matches exactly
+    if (++searches == 0) {
+      Arrays.fill(scored, 0);
+      searches = 1;
+    }
+    int stamp = searches;
+    TopN candidates = new TopN(Math.min(rows, count + CANDIDATES));
+    for (int ii = 0; ii < rows; ii++) {
+      candidates.offer(ii, approx[ii]);
+    }
+    TopN best = new TopN(count);
+    for (int ii = 0; ii < candidates.size; ii++) {
+      int idx = candidates.index[ii];
+      scored[idx] = stamp;
+      best.offer(idx, (float) score(exactDot(idx), idx, mean, queryCentered, correlation));
+    }
+    // Then any other row whose bound says it could still make the list
+    for (int ii = 0; ii < rows; ii++) {
+      if (scored[ii] != stamp && upper[ii] > best.threshold()) {
+        best.offer(ii, (float) score(exactDot(ii), ii, mean, queryCentered, correlation));
+      }
+    }
+    Hit[] hits = new Hit[best.size];
+    for (int ii = 0; ii < hits.length; ii++) {
+      hits[ii] = new Hit(names[best.index[ii]], best.index[ii], best.score[ii]);
+    }
+    Arrays.sort(hits, (a, b) -> Double.compare(b.score, a.score));
+    return hits;
+  }
+
+  /**
+   *  Matches each new frame from an Acquisition against a library, on its own thread, skipping
+   *  frames that arrive while a search is running
+   */
+  static class Search implements Runnable {
+    private final Acquisition             acquisition;
+    private final SpectralLibrary         library;
+    private final FrameRing.Reader        reader;
+    private final FrameRing.Frame         frame = new FrameRing.Frame(0);
+    private final Acquisition.FrameListener listener;
+    private final Thread                  thread;
+    private final float[]                 grid;
+    private final Metric                  metric;
+    private final int                     count;
+    private volatile Hit[]                hits = new Hit[0];
+    private volatile long                 latency;
+    private volatile boolean              closed;
+    private final Runnable                onHits;
+
+    /**
+     *  @param onHits called on the search thread after each search, such as to repaint
+     */
+    Search (Acquisition acquisition, SpectralLibrary library, Metric metric, int count, Runnable onHits) {
+      this.acquisition = acquisition;
+      this.library = library;
+      this.metric = metric;
+      this.count = count;
+      this.onHits = onHits;
+      grid = new float[library.points];
+      reader = acquisition.getFrameRing().newReader();
+      thread = new Thread(this, "LibrarySearch");
+      thread.setDaemon(true);
+      listener = frame -> LockSupport.unpark(thread);
+      acquisition.addFrameListener(listener);
+      thread.start();
+    }
+
+    SpectralLibrary getLibrary () {
+      return library;
+    }
+
+    /**
+     *  @return best matches for the latest frame searched, best first
+     */
+    Hit[] getHits () {
+      return hits;
+    }
+
+    /**
+     *  @return nanoseconds the latest search took, including resampling the frame
+     */
+    long getLatency () {
+      return latency;
+    }
+
+    void close () {
+      closed = true;
+      acquisition.removeFrameListener(listener);
+      LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run () {
+      while (!closed) {
+        LockSupport.park(this);
+        Calibration cal = acquisition.getCalibration();
+        if (closed || cal == null || !reader.latest(frame)) {
+          continue;
+        }
+        long start = System.nanoTime();
+        cal.resample(frame.values, library.startNm, library.stepNm, grid);
+        hits = library.search(grid, metric, count);
+        latency = System.nanoTime() - start;
+        onHits.run();
+      }
+    }
+  }
+
+  /**
+   *  Times searches of a synthetic library of 50,000 spectra, each a random mix of broad bands
+   *  plus a few narrow lines, on a 1 nm grid over the FakeUSB4000's range.  Queries are scaled,
+   *  noisy copies of library members, offset too when matching by correlation, which should come
+   *  back as the top hit.
+   */
+  public static void main (String[] args) {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+    double[] coff = {190.3772211113, 0.3631595112307, -1.246344904E-5, -2.247514764E-9};
+    Calibration cal = new Calibration(coff, 3840, Acquisition.usableStart, Acquisition.usableEnd, "fake");
+    double start = Math.ceil(cal.pixelToNanometers(Acquisition.usableStart));
+    int points = (int) Math.floor(cal.pixelToNanometers(Acquisition.usableEnd - 1) - start) + 1;
+    Random rand = new Random(2);
+    double[][] bands = new double[24][points];
+    for (double[] band : bands) {
+      double center = rand.nextDouble() * points, width = 20 + rand.nextDouble() * 150;
+      for (int jj = 0; jj < points; jj++) {
+        band[jj] = Math.exp(-Math.pow((jj - center) / width, 2));
+      }
+    }
+    FloatBuffer matrix = ByteBuffer.allocateDirect(rows * points * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    String[] names = new String[rows];
+    float[] vals = new float[points];
+    for (int ii = 0; ii < rows; ii++) {
+      names[ii] = "Ref " + ii;
+      Arrays.fill(vals, 0);
+      for (double[] band : bands) {
+        double weight = rand.nextDouble() < 0.3 ? rand.nextDouble() : 0;
+        for (int jj = 0; jj < points; jj++) {
+          vals[jj] += (float) (weight * band[jj]);
+        }
+      }
+      for (int line = 0; line < 3; line++) {
+        int center = rand.nextInt(points);
+        for (int jj = Math.max(0, center - 6); jj < Math.min(points, center + 7); jj++) {
+          vals[jj] += (float) (0.5 * Math.exp(-Math.pow((jj - center) / 2.0, 2)));
+        }
+      }
+      matrix.put(vals);
+    }
+    long begin = System.nanoTime();
+    SpectralLibrary library = new SpectralLibrary(names, matrix, start, 1, points);
+    System.out.println(String.format("%d spectra of %d points, %.1f MB off heap, components found in %.1f s, %d threads",
+                                     rows, points, rows * points * 4 / 1e6, (System.nanoTime() - begin) / 1e9,
+                                     ForkJoinPool.commonPool().getParallelism()));
+    float[] query = new float[points];
+    FloatBuffer buf = library.matrix.duplicate();
+    for (Metric metric : Metric.values()) {
+      int queries = 200, correct = 0;
+      long total = 0, worst = 0;
+      for (int qq = 0; qq < queries; qq++) {
+        int target = rand.nextInt(rows);
+        buf.position(target * points);
+        buf.get(query);
+        for (int jj = 0; jj < points; jj++) {
+          query[jj] = (float) (query[jj] * 1000 + (metric == Metric.CORRELATION ? 200 : 0) + rand.nextGaussian() * 5);
+        }
+        long time = System.nanoTime();
+        Hit[] hits = library.search(query, metric, 10);
+        time = System.nanoTime() - time;
+        if (qq >= 20) {
+          total += time;
+          worst = Math.max(worst, time);
+        }
+        if (hits.length > 0 && hits[0].index == target) {
+          correct++;
+        }
+      }
+      System.out.println(String.format("%-12s %.2f ms mean, %.2f ms worst, top hit correct %d of %d", metric,
+                                       total / 1e6 / (queries - 20), worst / 1e6, correct, queries));
+    }
+  }
+}
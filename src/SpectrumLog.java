@@ -0,0 +1,396 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Append-only binary log of spectrum frames, written and read through memory mapped windows so
+ *  long captures can be recorded at full scan rate and any frame read back in O(1).
+ *
+ *  Layout (little endian):
+ *    Header (256 bytes)
+ *      0   "USB4KLOG" magic
+ *      8   int     version
+ *      12  int     pixels per frame
+ *      16  int     usableStart
+ *      20  int     usableEnd
+ *      24  double  calibration coefficients coff0 - coff3
+ *      56  long    frame count, updated as each frame is appended
+ *      64  32 byte serial number, ASCII, zero padded
+ *    Frames, each 8 + pixels * 2 bytes
+ *      long    System.nanoTime() when acquired
+ *      uint16  count for each pixel
+ */
+
+class SpectrumLog {
+  private static final byte[] MAGIC = "USB4KLOG".getBytes(StandardCharsets.US_ASCII);
+  private static final int    VERSION = 1;
+  private static final int    HEADER_SIZE = 256;
+  private static final int    COUNT_OFFSET = 56;
+  private static final int    WINDOW_SIZE = 16 * 1024 * 1024;     // Bytes mapped at a time
+
+  /**
+   *  Frames per mapped window, so a frame never straddles two windows
+   */
+  private static int windowFrames (int frameSize) {
+    return Math.max(1, WINDOW_SIZE / frameSize);
+  }
+
+  static class Writer implements AutoCloseable {
+    private final RandomAccessFile  file;
+    private final FileChannel       channel;
+    private final MappedByteBuffer  header;
+    private final int               pixels, frameSize, windowFrames;
+    private MappedByteBuffer        window;
+    private long                    frames;
+
+    Writer (File out, int pixels, int usableStart, int usableEnd, double[] coff, String serial) throws IOException {
+      this.pixels = pixels;
+      frameSize = 8 + pixels * 2;
+      windowFrames = windowFrames(frameSize);
+      file = new RandomAccessFile(out, "rw");
+      file.setLength(0);
+      channel = file.getChannel();
+      header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      header.order(ByteOrder.LITTLE_ENDIAN);
+      header.put(MAGIC);
+      header.putInt(VERSION);
+      header.putInt(pixels);
+      header.putInt(usableStart);
+      header.putInt(usableEnd);
+      for (int ii = 0; ii < 4; ii++) {
+        header.putDouble(coff[ii]);
+      }
+      header.putLong(0);
+      byte[] sn = (serial != null ? serial : "").getBytes(StandardCharsets.US_ASCII);
+      header.put(sn, 0, Math.min(sn.length, 32));
+    }
+
+    /**
+     *  Append a frame.  Counts beyond length are written as zero, and counts are clamped to uint16.
+     */
+    void append (long nanos, int[] counts, int length) throws IOException {
+      int slot = (int) (frames % windowFrames);
+      if (slot == 0) {
+        long base = HEADER_SIZE + frames * frameSize;
+        window = channel.map(FileChannel.MapMode.READ_WRITE, base, (long) windowFrames * frameSize);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+      }
+      int pos = slot * frameSize;
+      window.putLong(pos, nanos);
+      pos += 8;
+      int count = Math.min(length, pixels);
+      for (int ii = 0; ii < count; ii++) {
+        window.putShort(pos + ii * 2, (short) Math.min(Math.max(counts[ii], 0), 0xFFFF));
+      }
+      for (int ii = count; ii < pixels; ii++) {
+        window.putShort(pos + ii * 2, (short) 0);
+      }
+      frames++;
+      // Frame count is only updated once the frame is complete, so a reader never sees a partial frame
+      header.putLong(COUNT_OFFSET, frames);
+    }
+
+    long getFrameCount () {
+      return frames;
+    }
+
+    public void close () throws IOException {
+      try {
+        header.force();
+        if (window != null) {
+          window.force();
+        }
+        // Trim the unused part of the last window.  Fails on platforms that don't allow a mapped
+        // file to be truncated, which is harmless as readers use the frame count in the header.
+        try {
+          channel.truncate(HEADER_SIZE + frames * frameSize);
+        } catch (IOException ex) {
+          // Leave the file padded
+        }
+      } finally {
+        file.close();
+      }
+    }
+  }
+
+  static class Reader implements AutoCloseable {
+    private final RandomAccessFile    file;
+    private final FileChannel         channel;
+    private final MappedByteBuffer    header;
+    private final MappedByteBuffer[]  windows;
+    private final int                 pixels, usableStart, usableEnd, frameSize, windowFrames;
+    private final double[]            coff = new double[4];
+    private final String              serial;
+    private final Calibration         calibration;
+
+    Reader (File in) throws IOException {
+      file = new RandomAccessFile(in, "r");
+      channel = file.getChannel();
+      header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      header.order(ByteOrder.LITTLE_ENDIAN);
+      for (byte magic : MAGIC) {
+        if (header.get() != magic) {
+          file.close();
+          throw new IOException(in + " is not a spectrum log");
+        }
+      }
+      if (header.getInt() != VERSION) {
+        file.close();
+        throw new IOException(in + " has an unsupported version");
+      }
+      pixels = header.getInt();
+      usableStart = header.getInt();
+      usableEnd = header.getInt();
+      for (int ii = 0; ii < 4; ii++) {
+        coff[ii] = header.getDouble();
+      }
+      header.getLong();
+      byte[] sn = new byte[32];
+      header.get(sn);
+      int len = 0;
+      while (len < sn.length && sn[len] != 0) {
+        len++;
+      }
+      serial = new String(sn, 0, len, StandardCharsets.US_ASCII);
+      calibration = new Calibration(coff, pixels, usableStart, usableEnd, serial);
+      frameSize = 8 + pixels * 2;
+      windowFrames = windowFrames(frameSize);
+      windows = new MappedByteBuffer[(int) ((getFrameCount() + windowFrames - 1) / windowFrames)];
+    }
+
+    /**
+     *  @return number of complete frames, which can grow if the log is still being written
+     */
+    long getFrameCount () {
+      long frames = header.getLong(COUNT_OFFSET);
+      // Don't trust more frames than the file holds
+      try {
+        frames = Math.min(frames, (channel.size() - HEADER_SIZE) / frameSize);
+      } catch (IOException ex) {
+        // Use the header's count
+      }
+      return frames;
+    }
+
+    int getPixels () {
+      return pixels;
+    }
+
+    int getUsableStart () {
+      return usableStart;
+    }
+
+    int getUsableEnd () {
+      return usableEnd;
+    }
+
+    double[] getCoefficients () {
+      return coff.clone();
+    }
+
+    String getSerial () {
+      return serial;
+    }
+
+    Calibration getCalibration () {
+      return calibration;
+    }
+
+    double pixelToNanometers (int px) {
+      return calibration.pixelToNanometers(px);
+    }
+
+    private MappedByteBuffer window (long frame) throws IOException {
+      if (frame < 0 || frame >= getFrameCount()) {
+        throw new IndexOutOfBoundsException("Frame " + frame);
+      }
+      int idx = (int) (frame / windowFrames);
+      if (idx >= windows.length || windows[idx] == null) {
+        long base = HEADER_SIZE + (long) idx * windowFrames * frameSize;
+        long size = Math.min((long) windowFrames * frameSize, channel.size() - base);
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, base, size);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        if (idx < windows.length) {
+          // Only cache full windows, as the last one may still be growing
+          if (size == (long) windowFrames * frameSize) {
+            windows[idx] = window;
+          }
+        }
+        return window;
+      }
+      return windows[idx];
+    }
+
+    long getNanos (long frame) throws IOException {
+      return window(frame).getLong((int) (frame % windowFrames) * frameSize);
+    }
+
+    /**
+     *  Read frame into dst
+     *  @return number of pixels read
+     */
+    int read (long frame, int[] dst) throws IOException {
+      MappedByteBuffer window = window(frame);
+      int pos = (int) (frame % windowFrames) * frameSize + 8;
+      int count = Math.min(pixels, dst.length);
+      for (int ii = 0; ii < count; ii++) {
+        dst[ii] = window.getShort(pos + ii * 2) & 0xFFFF;
+      }
+      return count;
+    }
+
+    /**
+     *  Stream every frame to out as CSV.  The first row holds the wavelength of each usable pixel,
+     *  then each row is the frame number, nanoseconds since the first frame, and the pixel counts.
+     */
+    void exportCsv (java.io.Writer out) throws IOException {
+      exportCsv(out, 0);
+    }
+
+    /**
+     *  Stream every frame to out as CSV, as exportCsv(out), but if stepNm is greater than 0 each
+     *  frame is first resampled onto a uniform grid starting at the first whole multiple of stepNm
+     *  in the usable range, and the first row holds the wavelength of each grid point.
+     */
+    void exportCsv (java.io.Writer out, double stepNm) throws IOException {
+      StringBuilder buf = new StringBuilder();
+      buf.append("frame,nanos");
+      double startNm = 0;
+      float[] values = null, grid = null;
+      if (stepNm > 0) {
+        startNm = Math.ceil(pixelToNanometers(usableStart) / stepNm) * stepNm;
+        values = new float[pixels];
+        grid = new float[calibration.gridPoints(startNm, stepNm)];
+        for (int ii = 0; ii < grid.length; ii++) {
+          buf.append(',');
+          buf.append(String.format("%.3f", startNm + ii * stepNm));
+        }
+      } else {
+        for (int ii = usableStart; ii < usableEnd; ii++) {
+          buf.append(',');
+          buf.append(String.format("%.3f", pixelToNanometers(ii)));
+        }
+      }
+      buf.append('\n');
+      out.append(buf);
+      long frames = getFrameCount();
+      long start = frames > 0 ? getNanos(0) : 0;
+      int[] counts = new int[pixels];
+      for (long frame = 0; frame < frames; frame++) {
+        buf.setLength(0);
+        read(frame, counts);
+        buf.append(frame);
+        buf.append(',');
+        buf.append(getNanos(frame) - start);
+        if (grid != null) {
+          for (int ii = 0; ii < pixels; ii++) {
+            values[ii] = counts[ii];
+          }
+          calibration.resample(values, startNm, stepNm, grid);
+          for (float val : grid) {
+            buf.append(',');
+            buf.append(String.format("%.1f", val));
+          }
+        } else {
+          for (int ii = usableStart; ii < usableEnd; ii++) {
+            buf.append(',');
+            buf.append(counts[ii]);
+          }
+        }
+        buf.append('\n');
+        out.append(buf);
+      }
+    }
+
+    public void close () throws IOException {
+      file.close();
+    }
+  }
+
+  /**
+   *  Records every frame Acquisition publishes to a log on its own thread, so disk writes never
+   *  delay acquisition.  Frames the recorder falls too far behind to copy are counted as dropped.
+   */
+  static class Recorder implements Runnable {
+    private final Acquisition       acquisition;
+    private final File              out;
+    private final FrameRing.Reader  reader;
+    private final Thread            thread = new Thread(this, "log recorder");
+    private final Acquisition.FrameListener wake = frame -> LockSupport.unpark(thread);
+    private volatile boolean        recording = true;
+    private volatile long           frames;
+    private IOException             error;
+
+    Recorder (Acquisition acquisition, File out) {
+      this.acquisition = acquisition;
+      this.out = out;
+      reader = acquisition.getFrameRing().newReader();
+      // Skip the frame already on screen, so only frames acquired from now on are recorded
+      reader.latest(new FrameRing.Frame(0));
+      acquisition.addFrameListener(wake);
+      thread.start();
+    }
+
+    public void run () {
+      FrameRing.Frame frame = new FrameRing.Frame(0);
+      Writer log = null;
+      try {
+        while (true) {
+          if (reader.next(frame)) {
+            if (log == null) {
+              log = new Writer(out, frame.length, Acquisition.usableStart, Acquisition.usableEnd,
+                               acquisition.getCoefficients(), acquisition.getCalSerial());
+            }
+            log.append(frame.nanos, frame.counts, frame.length);
+            frames = log.getFrameCount();
+          } else if (recording) {
+            LockSupport.parkNanos(100000000L);
+          } else {
+            break;
+          }
+        }
+      } catch (IOException ex) {
+        error = ex;
+      } finally {
+        if (log != null) {
+          try {
+            log.close();
+          } catch (IOException ex) {
+            error = ex;
+          }
+        }
+      }
+    }
+
+    /**
+     *  Stop recording, once frames already published have been written, and close the log
+     *  @throws IOException if a write failed
+     */
+    void stop () throws IOException {
+      acquisition.removeFrameListener(wake);
+      recording = false;
+      LockSupport.unpark(thread);
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      if (error != null) {
+        throw error;
+      }
+    }
+
+    long getFrameCount () {
+      return frames;
+    }
+
+    long getDropped () {
+      return reader.getDropped();
+    }
+  }
+}
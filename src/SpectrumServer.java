@@ -0,0 +1,444 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Streams live spectra from an Acquisition to other processes on the same host over TCP.  One
+ *  NIO thread serves every client from its own FrameRing.Reader, so acquisition never waits on
+ *  the server, and the server never waits on a client: a client that hasn't taken the last frame
+ *  sent to it skips newer ones (counted as dropped) until it catches up.
+ *
+ *  After connecting, a client sends one line of options:
+ *
+ *    binary|json [step=nm] [from=nm] [to=nm] [decimate=n]
+ *
+ *    step      resample onto a uniform grid of this spacing, in nanometers (default 0, each pixel)
+ *    from, to  wavelength range to send, in nanometers (default all usable pixels)
+ *    decimate  send every n'th frame (default 1)
+ *
+ *  The server replies "ERROR message" and closes the connection if the line can't be parsed.
+ *  Otherwise each frame is sent in the requested encoding.  Binary frames are little endian:
+ *
+ *    int32   length of the rest of the frame, in bytes
+ *    int64   sequence number (gaps show frames that were dropped, or decimated)
+ *    int64   time acquired, in nanoseconds since the epoch
+ *    int32   mode: 0 scope (counts), 1 % transmission, 2 absorbance, 3 irradiance
+ *    int32   points
+ *    float64 wavelength of the first point, in nanometers
+ *    float64 step, in nanometers, or 0 if the points are pixels
+ *    float32 wavelength of each point, only if step is 0
+ *    float32 value of each point
+ *
+ *  JSON frames are one object per line, with the same fields:
+ *
+ *    {"sequence":1,"time":...,"mode":"SCOPE","start":400.0,"step":0.5,"values":[...]}
+ *
+ *  plus an "nm" array if step is 0.
+ */
+
+class SpectrumServer implements Runnable {
+  private static final int              MAX_REQUEST = 256;
+  private final Acquisition             acquisition;
+  private final Selector                selector;
+  private final ServerSocketChannel     server;
+  private final FrameRing.Reader        reader;
+  private final FrameRing.Frame         frame = new FrameRing.Frame(0);
+  private final Acquisition.FrameListener listener;
+  private final List<Client>            clients = new ArrayList<>();
+  private final long                    epochNanos;               // Epoch time less System.nanoTime()
+  private final Thread                  thread;
+  private volatile boolean              running = true;
+  private volatile long                 framesSent, framesDropped;
+
+  /**
+   *  Per client options, the frame being sent and the resampling grid
+   */
+  private static class Client {
+    final SocketChannel channel;
+    final ByteBuffer    request = ByteBuffer.allocate(MAX_REQUEST);
+    final StringBuilder text = new StringBuilder();
+    ByteBuffer          out = ByteBuffer.allocate(0);
+    boolean             subscribed, json;
+    int                 decimate = 1;
+    double              step, from, to = Double.MAX_VALUE;
+    long                count;
+    Calibration         cal;                                      // Calibration the grid was built for
+    int                 first, points;                            // First pixel and count, or grid points
+    double              startNm;
+    float[]             grid = new float[0];
+
+    Client (SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  /**
+   *  Open a server on the loopback interface, and start serving frames from acquisition
+   *  @param port TCP port, or 0 to use any free port
+   */
+  SpectrumServer (Acquisition acquisition, int port) throws IOException {
+    this.acquisition = acquisition;
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    try {
+      server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException ex) {
+      server.close();
+      selector.close();
+      throw ex;
+    }
+    epochNanos = System.currentTimeMillis() * 1000000L - System.nanoTime();
+    reader = acquisition.getFrameRing().newReader();
+    listener = frame -> selector.wakeup();
+    acquisition.addFrameListener(listener);
+    thread = new Thread(this, "SpectrumServer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  int getPort () {
+    return server.socket().getLocalPort();
+  }
+
+  /**
+   *  @return number of connected clients
+   */
+  synchronized int getClientCount () {
+    return clients.size();
+  }
+
+  long getFramesSent () {
+    return framesSent;
+  }
+
+  /**
+   *  @return frames not sent to a client because it hadn't finished reading the one before
+   */
+  long getFramesDropped () {
+    return framesDropped;
+  }
+
+  public void run () {
+    try {
+      while (running) {
+        selector.select(1000);
+        for (SelectionKey key : selector.selectedKeys()) {
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            Client client = (Client) key.attachment();
+            try {
+              if (key.isReadable()) {
+                read(key, client);
+              }
+              if (key.isValid() && key.isWritable()) {
+                write(key, client);
+              }
+            } catch (IOException ex) {
+              disconnect(key, client);
+            }
+          }
+        }
+        selector.selectedKeys().clear();
+        // Take every frame in order, so clients that keep up miss none
+        while (reader.next(frame)) {
+          send();
+        }
+      }
+    } catch (IOException ex) {
+      // Selector failed, so stop serving
+    } finally {
+      shutdown();
+    }
+  }
+
+  private void accept () throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      Client client = new Client(channel);
+      channel.register(selector, SelectionKey.OP_READ, client);
+      synchronized (this) {
+        clients.add(client);
+      }
+    }
+  }
+
+  /**
+   *  Read the client's options line.  Anything sent after it is ignored.
+   */
+  private void read (SelectionKey key, Client client) throws IOException {
+    ByteBuffer buf = client.request;
+    if (client.channel.read(buf) < 0) {
+      disconnect(key, client);
+      return;
+    }
+    if (client.subscribed) {
+      buf.clear();
+      return;
+    }
+    for (int ii = 0; ii < buf.position(); ii++) {
+      if (buf.get(ii) == '\n') {
+        String line = new String(buf.array(), 0, ii, StandardCharsets.US_ASCII).trim();
+        buf.clear();
+        String error = parse(client, line);
+        if (error != null) {
+          client.channel.write(ByteBuffer.wrap(("ERROR " + error + "\n").getBytes(StandardCharsets.US_ASCII)));
+          disconnect(key, client);
+        } else {
+          client.subscribed = true;
+        }
+        return;
+      }
+    }
+    if (!buf.hasRemaining()) {
+      disconnect(key, client);
+    }
+  }
+
+  /**
+   *  @return error message, or null if the options were valid
+   */
+  private static String parse (Client client, String line) {
+    String[] parts = line.split("\\s+");
+    if ("json".equalsIgnoreCase(parts[0])) {
+      client.json = true;
+    } else if (!"binary".equalsIgnoreCase(parts[0])) {
+      return "expected binary or json";
+    }
+    try {
+      for (int ii = 1; ii < parts.length; ii++) {
+        int eq = parts[ii].indexOf('=');
+        String name = eq > 0 ? parts[ii].substring(0, eq) : parts[ii];
+        String val = eq > 0 ? parts[ii].substring(eq + 1) : "";
+        switch (name) {
+        case "step":
+          client.step = Double.parseDouble(val);
+          break;
+        case "from":
+          client.from = Double.parseDouble(val);
+          break;
+        case "to":
+          client.to = Double.parseDouble(val);
+          break;
+        case "decimate":
+          client.decimate = Integer.parseInt(val);
+          break;
+        default:
+          return "unknown option " + name;
+        }
+      }
+    } catch (NumberFormatException ex) {
+      return "bad number " + ex.getMessage();
+    }
+    if (client.step < 0 || client.decimate < 1 || client.from >= client.to) {
+      return "step must be 0 or more, decimate 1 or more, and from less than to";
+    }
+    return null;
+  }
+
+  private void write (SelectionKey key, Client client) throws IOException {
+    client.channel.write(client.out);
+    if (!client.out.hasRemaining()) {
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  /**
+   *  Send the current frame to each subscribed client that's due one, and has taken the last
+   */
+  private void send () {
+    Calibration cal = acquisition.getCalibration();
+    if (cal == null || frame.length == 0) {
+      return;
+    }
+    for (SelectionKey key : selector.keys()) {
+      Client client = (Client) key.attachment();
+      if (client == null || !key.isValid() || !client.subscribed || client.count++ % client.decimate != 0) {
+        continue;
+      }
+      if (client.out.hasRemaining()) {
+        framesDropped++;
+        continue;
+      }
+      encode(client, cal);
+      try {
+        client.channel.write(client.out);
+        if (client.out.hasRemaining()) {
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        framesSent++;
+      } catch (IOException ex) {
+        disconnect(key, client);
+      }
+    }
+  }
+
+  /**
+   *  Choose the pixels, or grid points, to send the client, if the calibration has changed
+   */
+  private static void layout (Client client, Calibration cal, int length) {
+    int start = cal.getUsableStart();
+    int end = Math.min(cal.getUsableEnd(), length);
+    double lo = Math.max(client.from, cal.pixelToNanometers(start));
+    double hi = Math.min(client.to, cal.pixelToNanometers(end - 1));
+    if (client.step > 0) {
+      client.startNm = Math.ceil(lo / client.step) * client.step;
+      client.points = Math.max(0, (int) Math.floor((hi - client.startNm) / client.step) + 1);
+      if (client.grid.length != client.points) {
+        client.grid = new float[client.points];
+      }
+    } else {
+      int first = start;
+      while (first < end && cal.pixelToNanometers(first) < lo) {
+        first++;
+      }
+      int last = first;
+      while (last < end && cal.pixelToNanometers(last) <= hi) {
+        last++;
+      }
+      client.first = first;
+      client.points = last - first;
+      client.startNm = client.points > 0 ? cal.pixelToNanometers(first) : lo;
+    }
+    client.cal = cal;
+  }
+
+  private void encode (Client client, Calibration cal) {
+    if (client.cal != cal || (client.step == 0 && client.first + client.points > frame.length)) {
+      layout(client, cal, frame.length);
+    }
+    float[] values = frame.values;
+    int offset = client.first;
+    if (client.step > 0) {
+      float[] grid = client.grid;
+      cal.resample(values, client.startNm, client.step, grid);
+      values = grid;
+      offset = 0;
+    }
+    int points = client.points;
+    double[] nm = cal.getWavelengths();
+    long time = frame.nanos + epochNanos;
+    if (client.json) {
+      StringBuilder buf = client.text;
+      buf.setLength(0);
+      buf.append("{\"sequence\":").append(frame.sequence);
+      buf.append(",\"time\":").append(time);
+      buf.append(",\"mode\":\"").append(frame.mode).append('"');
+      buf.append(",\"start\":").append(client.startNm);
+      buf.append(",\"step\":").append(client.step);
+      if (client.step == 0) {
+        buf.append(",\"nm\":[");
+        for (int ii = 0; ii < points; ii++) {
+          buf.append(ii > 0 ? "," : "").append((float) nm[offset + ii]);
+        }
+        buf.append(']');
+      }
+      buf.append(",\"values\":[");
+      for (int ii = 0; ii < points; ii++) {
+        float val = values[offset + ii];
+        buf.append(ii > 0 ? "," : "");
+        if (Float.isNaN(val) || Float.isInfinite(val)) {
+          buf.append("null");
+        } else {
+          buf.append(val);
+        }
+      }
+      buf.append("]}\n");
+      ByteBuffer out = buffer(client, buf.length());
+      for (int ii = 0; ii < buf.length(); ii++) {
+        out.put((byte) buf.charAt(ii));
+      }
+      out.flip();
+    } else {
+      int length = 40 + points * (client.step == 0 ? 8 : 4);
+      ByteBuffer out = buffer(client, 4 + length);
+      out.putInt(length);
+      out.putLong(frame.sequence);
+      out.putLong(time);
+      out.putInt(frame.mode.ordinal());
+      out.putInt(points);
+      out.putDouble(client.startNm);
+      out.putDouble(client.step);
+      if (client.step == 0) {
+        for (int ii = 0; ii < points; ii++) {
+          out.putFloat((float) nm[offset + ii]);
+        }
+      }
+      for (int ii = 0; ii < points; ii++) {
+        out.putFloat(values[offset + ii]);
+      }
+      out.flip();
+    }
+  }
+
+  /**
+   *  @return client's output buffer, cleared and grown to hold at least size bytes
+   */
+  private static ByteBuffer buffer (Client client, int size) {
+    if (client.out.capacity() < size) {
+      client.out = ByteBuffer.allocateDirect(size + size / 4).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    client.out.clear();
+    return client.out;
+  }
+
+  private void disconnect (SelectionKey key, Client client) {
+    key.cancel();
+    try {
+      client.channel.close();
+    } catch (IOException ex) {
+      // Already closed
+    }
+    synchronized (this) {
+      clients.remove(client);
+    }
+  }
+
+  /**
+   *  Stop serving, and close every client connection
+   */
+  void close () {
+    running = false;
+    selector.wakeup();
+    try {
+      thread.join(1000);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void shutdown () {
+    acquisition.removeFrameListener(listener);
+    for (SelectionKey key : selector.keys()) {
+      try {
+        key.channel().close();
+      } catch (IOException ex) {
+        // Nothing more can be done
+      }
+    }
+    try {
+      selector.close();
+    } catch (IOException ex) {
+      // Nothing more can be done
+    }
+    synchronized (this) {
+      clients.clear();
+    }
+  }
+}
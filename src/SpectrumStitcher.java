@@ -0,0 +1,169 @@
+import java.util.List;
+
+/**
+ *  Merges frames from several spectrometers, each running its own Acquisition, into one spectrum
+ *  on a uniform wavelength grid covering all of them.  A stitched frame is made once every device
+ *  has published a frame since the last one, so each set of frames is no further apart in time
+ *  than the slowest device's frame period, and the spread is reported with each stitched frame.
+ *
+ *  Where device ranges overlap, each device is weighted by its distance from the nearer edge of
+ *  its range, which crossfades linearly from one device to the next across the overlap, so
+ *  there's no step where a device's range ends.  Grid points in a gap between ranges are 0.
+ */
+
+class SpectrumStitcher {
+  private final Acquisition[]       devices;
+  private final FrameRing.Reader[]  readers;
+  private final FrameRing.Frame[]   frames;
+  private final long[]              used;                     // Sequence of each device's frame last stitched
+  private final Calibration[]       cals;                     // Calibrations the grid was built for
+  private final double              stepNm;
+  private double                    startNm;
+  private int                       points;
+  private float[][]                 resampled = new float[0][];
+  private float[][]                 weights = new float[0][]; // Per device and grid point, summing to 1
+
+  /**
+   *  A stitched spectrum
+   */
+  static class Stitched {
+    float[]   values = new float[0];
+    int       points;
+    double    startNm;                // Wavelength of values[0]
+    double    stepNm;
+    long      nanos;                  // Acquisition time of the newest frame used
+    long      skewNanos;              // Newest less oldest acquisition time of the frames used
+
+    double nanometers (int idx) {
+      return startNm + idx * stepNm;
+    }
+  }
+
+  /**
+   *  @param devices acquisitions to merge, which may be running already
+   *  @param stepNm spacing of the stitched grid, in nanometers
+   */
+  SpectrumStitcher (List<Acquisition> devices, double stepNm) {
+    if (stepNm <= 0) {
+      throw new IllegalArgumentException("Step must be more than 0 nm");
+    }
+    int count = devices.size();
+    this.devices = devices.toArray(new Acquisition[count]);
+    this.stepNm = stepNm;
+    readers = new FrameRing.Reader[count];
+    frames = new FrameRing.Frame[count];
+    used = new long[count];
+    cals = new Calibration[count];
+    for (int ii = 0; ii < count; ii++) {
+      readers[ii] = this.devices[ii].getFrameRing().newReader();
+      frames[ii] = new FrameRing.Frame(0);
+      used[ii] = -1;
+    }
+  }
+
+  /**
+   *  Stitch the newest frame from each device, if every device has published one since the last call
+   *  @return true if out holds a new stitched frame
+   */
+  boolean stitch (Stitched out) {
+    long newest = Long.MIN_VALUE, oldest = Long.MAX_VALUE;
+    for (int ii = 0; ii < devices.length; ii++) {
+      // Keep each device's newest frame, so a set is as close together in time as it can be
+      FrameRing.Frame frame = frames[ii];
+      readers[ii].latest(frame);
+      if (frame.sequence == used[ii] || frame.length == 0) {
+        return false;
+      }
+      newest = Math.max(newest, frame.nanos);
+      oldest = Math.min(oldest, frame.nanos);
+    }
+    if (!buildGrid()) {
+      return false;
+    }
+    for (int ii = 0; ii < devices.length; ii++) {
+      cals[ii].resample(frames[ii].values, startNm, stepNm, resampled[ii]);
+      used[ii] = frames[ii].sequence;
+    }
+    if (out.values.length < points) {
+      out.values = new float[points];
+    }
+    float[] dst = out.values;
+    for (int jj = 0; jj < points; jj++) {
+      float sum = 0;
+      for (int ii = 0; ii < devices.length; ii++) {
+        float weight = weights[ii][jj];
+        if (weight != 0) {
+          sum += weight * resampled[ii][jj];
+        }
+      }
+      dst[jj] = sum;
+    }
+    out.points = points;
+    out.startNm = startNm;
+    out.stepNm = stepNm;
+    out.nanos = newest;
+    out.skewNanos = newest - oldest;
+    return true;
+  }
+
+  /**
+   *  Build the grid and crossfade weights, if any device's calibration has changed since they
+   *  were last built
+   *  @return false if a device's calibration hasn't been loaded yet
+   */
+  private boolean buildGrid () {
+    boolean changed = false;
+    for (int ii = 0; ii < devices.length; ii++) {
+      Calibration cal = devices[ii].getCalibration();
+      if (cal == null) {
+        return false;
+      }
+      changed |= cal != cals[ii];
+      cals[ii] = cal;
+    }
+    if (!changed) {
+      return true;
+    }
+    double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE;
+    for (Calibration cal : cals) {
+      lo = Math.min(lo, cal.pixelToNanometers(cal.getUsableStart()));
+      hi = Math.max(hi, cal.pixelToNanometers(cal.getUsableEnd() - 1));
+    }
+    startNm = Math.ceil(lo / stepNm) * stepNm;
+    points = Math.max(0, (int) Math.floor((hi - startNm) / stepNm) + 1);
+    resampled = new float[devices.length][points];
+    weights = new float[devices.length][points];
+    for (int jj = 0; jj < points; jj++) {
+      double nm = startNm + jj * stepNm;
+      double total = 0;
+      for (int ii = 0; ii < devices.length; ii++) {
+        Calibration cal = cals[ii];
+        double dist = Math.min(nm - cal.pixelToNanometers(cal.getUsableStart()),
+                               cal.pixelToNanometers(cal.getUsableEnd() - 1) - nm);
+        // Grid points exactly on an edge still count, so no point is left without a device
+        double weight = dist >= 0 ? dist + stepNm * 1e-3 : 0;
+        weights[ii][jj] = (float) weight;
+        total += weight;
+      }
+      for (int ii = 0; ii < devices.length; ii++) {
+        weights[ii][jj] = total > 0 ? (float) (weights[ii][jj] / total) : 0;
+      }
+    }
+    return true;
+  }
+
+  /**
+   *  @return number of points in the stitched grid, or 0 until the first frame is stitched
+   */
+  int getPoints () {
+    return points;
+  }
+
+  double getStartNm () {
+    return startNm;
+  }
+
+  double getStepNm () {
+    return stepNm;
+  }
+}
@@ -1,17 +1,22 @@
+import org.usb4java.LibUsbException;
+
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.prefs.Preferences;
 
 import static javax.swing.JOptionPane.showMessageDialog;
-import static javax.swing.ScrollPaneConstants.VERTICAL_SCROLLBAR_NEVER;
 
 /*
  *  Test Program to communicate with and control an Ocean Optics USB4000
@@ -46,56 +51,86 @@ import static javax.swing.ScrollPaneConstants.VERTICAL_SCROLLBAR_NEVER;
 
 public class USB4000 extends JFrame {
   private transient Preferences prefs = Preferences.userRoot().node(this.getClass().getName());
-  private static final short    vendId = 0x2457;
-  private static final short    prodId = 0x1022;
-  private static final byte     iFace  = 0x00;
-  private static final byte     eOut1 = 0x01;
-  private static final byte     eIn1 = (byte) 0x81;
-  private static final byte     eIn2 = (byte) 0x82;
-  private static final byte     eIn6 = (byte) 0x86;
-  private static final byte[]   init = new byte[] {(byte) 0x01};
-  private static final byte[]   queryStatus = new byte[] {(byte) 0xFE};
-
-  enum state {SCAN, INFO, STOP}
-
-  static class Spectrum extends JPanel implements Runnable {
-    private static int        usableStart = 22;
-    private static int        usableEnd = 3670;
+  private final DeviceSession   session = new DeviceSession();
+  private SpectrumLog.Recorder  recorder;
+  private SpectrumServer        server;
+  private BatchScheduler        batch;
+  private SpectralLibrary       library;
+  private SpectralLibrary.Search librarySearch;
+
+  static class Spectrum extends JPanel {
+    private static int        usableStart = Acquisition.usableStart;
+    private static int        usableEnd = Acquisition.usableEnd;
     private static int        xAxisSize = 60;
-    private int[]             spectrum;
-    private int               xScale = 2;
-    private int               yScale = 32;
-    private int               mseX;
+    private final Acquisition acquisition;
+    private final FrameRing.Reader displayReader;
+    private final FrameRing.Frame display = new FrameRing.Frame(0);
+    private static final double maxZoom = 1.0 / 16;         // Minimum pixels per screen column
+    private final MinMaxPyramid pyramid = new MinMaxPyramid();
+    private double            viewStart = usableStart;      // Pixel at the left edge
+    private double            viewScale = 2;                // Pixels per screen column
+    private int               yScale;                       // Counts per screen pixel, or 0 to autoscale
+    private double            autoTop;                      // Value at the top of the plot when autoscaling
+    private double            autoBottom;                   // Value at the bottom, which is below 0 only when
+                                                            // values go negative
+    private SpectrumProcessor.Mode traceMode = SpectrumProcessor.Mode.SCOPE;
+    private int               mseX, dragX;
+    private double            dragStart;
     private boolean           tracking;
-    private double            coff0, coff1, coff2, coff3;
-    private boolean           calLoaded;
-    private List<Point>       xAxis;
-    private List<RunState>    listeners = new ArrayList<>();
-    private transient boolean running;
-    private transient state   runState = state.SCAN;
-    private transient int     scanRate;
-
-    interface RunState {
-      void isRunning (boolean running);
-    }
+    private boolean           viewChanged = true;
+    private BufferedImage     background;                   // Plot area and x axis legend
+    private Calibration       backgroundCal;
+    private int[]             xPoints = new int[0], yPoints = new int[0];
+    private int[]             xClip = new int[0], yClip = new int[0];
+    private int               points;
+    private int               traceYScale;
+    private double            traceYMul;                    // Screen pixels per unit of value
+    private double            traceBottom;                  // Value at the bottom of the plot
+    private LineTable         lineTable = LineTable.hgAr();
+    private final int[]       peakOrder = new int[PeakDetector.MAX_PEAKS];
+    private final int[][]     labelBoxes = new int[PeakDetector.MAX_PEAKS][3];  // Left, right and baseline
+    private boolean           showStats;
+    private boolean           showColor;
+    private WaterfallPanel    waterfall;
+    private SpectralLibrary.Search librarySearch;
 
-    Spectrum () {
+    Spectrum (Acquisition acquisition) {
+      this.acquisition = acquisition;
+      displayReader = acquisition.getFrameRing().newReader();
+      acquisition.addFrameListener(frame -> repaint());
+      acquisition.setInfoHandler(this::showInfo);
       setPreferredSize(new Dimension((usableEnd - usableStart) / 2, 512 + xAxisSize));
       addMouseMotionListener(new MouseMotionAdapter() {
         @Override
         public void mouseMoved (MouseEvent ev) {
+          int lastX = mseX;
           mseX = ev.getX();
           if (tracking) {
-            repaint();
+            repaintCursor(lastX);
+            repaintCursor(mseX);
           }
         }
+
+        @Override
+        public void mouseDragged (MouseEvent ev) {
+          // Pan, keeping the pixel that was grabbed under the mouse
+          mseX = ev.getX();
+          setView(dragStart - (mseX - dragX) * viewScale, viewScale);
+        }
       });
       addMouseListener(new MouseListener() {
         @Override
-        public void mouseClicked (MouseEvent e) { }
+        public void mouseClicked (MouseEvent ev) {
+          if (ev.getClickCount() == 2) {
+            setView(usableStart, Double.MAX_VALUE);
+          }
+        }
 
         @Override
-        public void mousePressed (MouseEvent e) { }
+        public void mousePressed (MouseEvent ev) {
+          dragX = ev.getX();
+          dragStart = viewStart;
+        }
 
         @Override
         public void mouseReleased (MouseEvent e) { }
@@ -108,49 +143,128 @@ public class USB4000 extends JFrame {
         @Override
         public void mouseExited (MouseEvent e) {
           if (tracking) {
-            repaint();
+            repaintCursor(mseX);
           }
           tracking = false;
         }
       });
+      addMouseWheelListener(ev -> {
+        // Zoom about the pixel under the mouse
+        double px = viewStart + ev.getX() * viewScale;
+        double scale = viewScale * Math.pow(1.25, ev.getPreciseWheelRotation());
+        scale = Math.max(maxZoom, Math.min(scale, fullScale()));
+        setView(px - ev.getX() * scale, scale);
+      });
+    }
+
+    private int plotWidth () {
+      int width = getWidth();
+      return width > 0 ? width : getPreferredSize().width;
+    }
+
+    /**
+     *  @return pixels per screen column when zoomed all the way out
+     */
+    private double fullScale () {
+      return (double) (usableEnd - usableStart) / plotWidth();
+    }
+
+    /**
+     *  Set the visible range, limited to the usable pixels
+     *  @param start pixel at the left edge
+     *  @param scale pixels per screen column
+     */
+    private void setView (double start, double scale) {
+      fitView(start, scale);
+      repaint();
+    }
+
+    private void fitView (double start, double scale) {
+      viewScale = Math.max(maxZoom, Math.min(scale, fullScale()));
+      viewStart = Math.max(usableStart, Math.min(start, usableEnd - viewScale * plotWidth()));
+      viewChanged = true;
+      if (waterfall != null) {
+        waterfall.setView(viewStart, viewScale);
+      }
+    }
+
+    /**
+     *  @param waterfall panel to keep lined up with this one's horizontal view
+     */
+    void setWaterfall (WaterfallPanel waterfall) {
+      this.waterfall = waterfall;
+      waterfall.setView(viewStart, viewScale);
+    }
+
+    /**
+     *  Repaint just the strip covered by the cursor line, its readout and color swatch
+     */
+    private void repaintCursor (int x) {
+      repaint(x - 80, 0, 200, getHeight());
     }
 
     @Override
     public void paint (Graphics g) {
+      long start = System.nanoTime();
       Dimension dim = getSize();
       Graphics2D g2 = (Graphics2D) g;
-      g2.setColor(Color.white);
-      g2.fillRect(0, 0, dim.width, 512);
-      g2.setColor(new Color(230, 230, 230));
-      g2.fillRect(0, 512, dim.width, dim.height);
-      g2.setColor(Color.black);
-      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-      g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-      if (spectrum != null && spectrum.length > 0) {
-        if (xScale == 1) {
-          for (int ii = 0; ii < usableEnd - usableStart; ii++) {
-            Point p1 = new Point(ii, 512 - spectrum[ii + usableStart] / yScale);
-            Point p2 = new Point(ii + 1, 512 - spectrum[ii + usableStart + 1] / yScale);
-            g2.drawLine(p1.x, p1.y, p2.x, p2.y);
-          }
-        } else {
-          for (int ii = 0; ii < usableEnd - usableStart; ii += 2) {
-            int avg1 = (int) ((long) spectrum[ii + usableStart] + (long) spectrum[ii + usableStart + 1]) / 2;
-            int avg2 = (int) ((long) spectrum[ii + usableStart + 2] + (long) spectrum[ii + usableStart + 3]) / 2;
-            Point p1 = new Point(ii / 2, 512 - avg1 / yScale);
-            Point p2 = new Point(ii / 2 + 1, 512 - avg2 / yScale);
-            g2.drawLine(p1.x, p1.y, p2.x, p2.y);
-          }
+      Rectangle clip = g2.getClipBounds();
+      if (clip == null) {
+        clip = new Rectangle(0, 0, dim.width, dim.height);
+      }
+      Calibration cal = acquisition.getCalibration();
+      boolean rebuild = viewChanged;
+      if (background == null || background.getWidth() != dim.width || background.getHeight() != dim.height) {
+        background = new BufferedImage(Math.max(1, dim.width), Math.max(1, dim.height), BufferedImage.TYPE_INT_RGB);
+        // Width may have changed, so refit the view
+        fitView(viewStart, viewScale);
+        rebuild = true;
+      }
+      if (rebuild || cal != backgroundCal) {
+        renderBackground(dim, cal);
+        backgroundCal = cal;
+      }
+      g2.drawImage(background, 0, 0, null);
+      // Copy out the newest frame, so acquisition never waits on painting
+      boolean fresh = displayReader.latest(display);
+      float[] spectrum = display.values;
+      if (display.length > 0) {
+        if (fresh) {
+          pyramid.build(spectrum, usableStart, Math.min(usableEnd, display.length));
         }
-        if (tracking) {
+        if (fresh || rebuild || traceYScale != yScale || traceMode != display.mode) {
+          buildTrace(dim.width);
+        }
+        viewChanged = false;
+        // Only draw the part of the trace inside the clip, as a single polyline
+        int from = Math.max(0, firstPoint(clip.x) - 1);
+        int to = Math.min(points, firstPoint(clip.x + clip.width + 1) + 1);
+        if (to - from > 1) {
+          System.arraycopy(xPoints, from, xClip, 0, to - from);
+          System.arraycopy(yPoints, from, yClip, 0, to - from);
+          g2.setColor(Color.black);
+          g2.drawPolyline(xClip, yClip, to - from);
+        }
+        g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        if (display.mode != SpectrumProcessor.Mode.SCOPE && clip.x < 200) {
+          // Label the units, and the values at the top and bottom of the plot
+          g2.setColor(Color.gray);
+          g2.drawString(units(display.mode) + ", " + format(display.mode, traceBottom + 512 / traceYMul) + " top, " +
+                        format(display.mode, traceBottom) + " bottom", 5, 15);
+        }
+        if (display.peakCount > 0 && cal != null) {
+          drawPeaks(g2, cal, clip);
+        }
+        if (tracking && cal != null) {
           g2.setColor(Color.blue);
           g2.drawLine(mseX, 0, mseX, dim.height);
-          int pixel = mseX  * xScale + usableStart;
-          double nanometers = pixelToNanometers(pixel);
+          int pixel = (int) (viewStart + mseX * viewScale);
+          double nanometers = cal.pixelToNanometers(pixel);
           String val = String.format("%3.1f", nanometers) + " nm";
           if (mseX < dim.width - 70) {
             g2.drawString(val, mseX + 10, 20);
-            g2.drawString("" + pixel + " = " + spectrum[pixel], mseX + 10, 40);
+            g2.drawString("" + pixel + " = " + (pixel < display.length ? format(display.mode, spectrum[pixel]) : ""),
+                          mseX + 10, 40);
           } else {
             g2.drawString(val, mseX - 70, 20);
             g2.drawString("" + pixel, mseX - 70, 40);
@@ -159,138 +273,406 @@ public class USB4000 extends JFrame {
           g2.setColor(WavelengthToRGB.getRBG(nanometers));
           g2.fillRect(mseX + 20, 50, 20, 20);
         }
-        if (xAxis != null) {
-          // Draw X Axis legend
-          g2.setColor(Color.black);
-          for (Point val : xAxis) {
-            int x = val.x / xScale;
-            g2.drawLine(x, 512 + 5, x, 512 + 15);
-            g2.drawString(val.y + " nm", x - 20, 512 + 30);
-          }
+      }
+      if (showColor && display.color.valid) {
+        drawColor(g2, display.color);
+      }
+      SpectralLibrary.Search search = librarySearch;
+      if (search != null) {
+        drawHits(g2, search, dim);
+      }
+      AcquisitionMetrics metrics = acquisition.getMetrics();
+      if (showStats) {
+        drawStats(g2, metrics, dim);
+      }
+      metrics.record(AcquisitionMetrics.Phase.PAINT, System.nanoTime() - start);
+    }
+
+    /**
+     *  Draw the scan rate, the median and 99th percentile time of each phase of a scan, error
+     *  counts and PCB temperature in a box at the top right
+     */
+    private void drawStats (Graphics2D g2, AcquisitionMetrics metrics, Dimension dim) {
+      List<String> lines = new ArrayList<>();
+      lines.add(String.format("%.1f scans/s, %d scans", metrics.getScanRate(), metrics.getScans()));
+      for (AcquisitionMetrics.Phase phase : AcquisitionMetrics.Phase.values()) {
+        LatencyHistogram hist = metrics.getLatency(phase);
+        if (hist.getCount() > 0) {
+          lines.add(String.format("%s: %s p50, %s p99", phase.label, micros(hist.getPercentile(50)),
+                                  micros(hist.getPercentile(99))));
+        }
+      }
+      lines.add(String.format("Dropped %d, short %d, resyncs %d, USB errors %d", metrics.getDroppedReads(),
+                              metrics.getShortReads(), metrics.getResyncs(), metrics.getUsbErrors()));
+      double temp = metrics.getPcbTemperature();
+      if (!Double.isNaN(temp)) {
+        lines.add(String.format("PCB %.2f° C, %+.2f° C/min", temp, metrics.getPcbTemperatureTrend()));
+      }
+      FontMetrics fm = g2.getFontMetrics();
+      int width = 0;
+      for (String line : lines) {
+        width = Math.max(width, fm.stringWidth(line));
+      }
+      int lineHeight = fm.getHeight();
+      int left = dim.width - width - 15;
+      int top = 5;
+      g2.setColor(new Color(255, 255, 255, 220));
+      g2.fillRect(left - 5, top, width + 10, lines.size() * lineHeight + 6);
+      g2.setColor(Color.gray);
+      g2.drawRect(left - 5, top, width + 10, lines.size() * lineHeight + 6);
+      g2.setColor(Color.darkGray);
+      for (int ii = 0; ii < lines.size(); ii++) {
+        g2.drawString(lines.get(ii), left, top + 3 + fm.getAscent() + ii * lineHeight);
+      }
+    }
+
+    /**
+     *  Draw a swatch of the frame's color with its chromaticity, CCT and, if computed, CRI in a box
+     *  at the top left
+     */
+    private void drawColor (Graphics2D g2, Colorimetry.Result color) {
+      List<String> lines = new ArrayList<>();
+      lines.add(String.format("x %.4f, y %.4f", color.x, color.y));
+      lines.add(String.format("u' %.4f, v' %.4f", color.u, color.v));
+      lines.add(Double.isNaN(color.cct) ? "CCT off locus" : String.format("CCT %.0f K, Duv %+.4f", color.cct, color.duv));
+      if (!Double.isNaN(color.ra)) {
+        lines.add(Double.isNaN(color.r9) ? String.format("Ra %.1f", color.ra) : String.format("Ra %.1f, R9 %.1f", color.ra, color.r9));
+      }
+      FontMetrics fm = g2.getFontMetrics();
+      int width = 0;
+      for (String line : lines) {
+        width = Math.max(width, fm.stringWidth(line));
+      }
+      int lineHeight = fm.getHeight();
+      int swatch = Math.max(30, lines.size() * lineHeight);
+      int left = 10;
+      int top = 25;
+      g2.setColor(new Color(255, 255, 255, 220));
+      g2.fillRect(left - 5, top, swatch + width + 20, swatch + 6);
+      g2.setColor(Color.gray);
+      g2.drawRect(left - 5, top, swatch + width + 20, swatch + 6);
+      g2.setColor(new Color(color.toRgb()));
+      g2.fillRect(left, top + 3, swatch, swatch);
+      g2.setColor(Color.darkGray);
+      for (int ii = 0; ii < lines.size(); ii++) {
+        g2.drawString(lines.get(ii), left + swatch + 10, top + 3 + fm.getAscent() + ii * lineHeight);
+      }
+    }
+
+    /**
+     *  Draw the best library matches for the latest frame searched in a box at the bottom right
+     */
+    private void drawHits (Graphics2D g2, SpectralLibrary.Search search, Dimension dim) {
+      SpectralLibrary.Hit[] hits = search.getHits();
+      List<String> lines = new ArrayList<>();
+      lines.add(String.format("Library: %d spectra, %s", search.getLibrary().size(), micros(search.getLatency())));
+      for (int ii = 0; ii < hits.length; ii++) {
+        lines.add(String.format("%d. %s  %.4f", ii + 1, hits[ii].name, hits[ii].score));
+      }
+      FontMetrics fm = g2.getFontMetrics();
+      int width = 0;
+      for (String line : lines) {
+        width = Math.max(width, fm.stringWidth(line));
+      }
+      int lineHeight = fm.getHeight();
+      int left = dim.width - width - 15;
+      int top = dim.height - xAxisSize - lines.size() * lineHeight - 11;
+      g2.setColor(new Color(255, 255, 255, 220));
+      g2.fillRect(left - 5, top, width + 10, lines.size() * lineHeight + 6);
+      g2.setColor(Color.gray);
+      g2.drawRect(left - 5, top, width + 10, lines.size() * lineHeight + 6);
+      g2.setColor(Color.darkGray);
+      for (int ii = 0; ii < lines.size(); ii++) {
+        g2.drawString(lines.get(ii), left, top + 3 + fm.getAscent() + ii * lineHeight);
+      }
+    }
+
+    /**
+     *  @param search library search whose hits to show, or null for none
+     */
+    void setLibrarySearch (SpectralLibrary.Search search) {
+      librarySearch = search;
+      repaint();
+    }
+
+    private static String micros (double nanos) {
+      return nanos >= 1e6 ? String.format("%.1f ms", nanos / 1e6) : String.format("%.0f µs", nanos / 1e3);
+    }
+
+    /**
+     *  @param show true to draw the scan statistics overlay
+     */
+    void setShowStats (boolean show) {
+      showStats = show;
+      repaint();
+    }
+
+    /**
+     *  @param show true to draw the color of each frame, which must also be measured
+     */
+    void setShowColor (boolean show) {
+      showColor = show;
+      repaint();
+    }
+
+    /**
+     *  Mark each peak in the display frame and label it with its wavelength, or the reference line
+     *  it matches.  Labels are placed tallest peak first, and any that would overlap one already
+     *  placed are left off.
+     */
+    private void drawPeaks (Graphics2D g2, Calibration cal, Rectangle clip) {
+      FontMetrics fm = g2.getFontMetrics();
+      LineTable lines = lineTable;
+      int count = display.peakCount;
+      // Order peaks by height with an insertion sort, as there are never more than MAX_PEAKS
+      for (int ii = 0; ii < count; ii++) {
+        float height = display.values[(int) Math.round(display.peaks[ii])];
+        int jj = ii - 1;
+        while (jj >= 0 && display.values[(int) Math.round(display.peaks[peakOrder[jj]])] < height) {
+          peakOrder[jj + 1] = peakOrder[jj];
+          jj--;
+        }
+        peakOrder[jj + 1] = ii;
+      }
+      int placed = 0;
+      for (int ii = 0; ii < count; ii++) {
+        double pos = display.peaks[peakOrder[ii]];
+        int x = (int) Math.round((pos - viewStart) / viewScale);
+        if (x < clip.x - 100 || x > clip.x + clip.width + 100) {
+          continue;
+        }
+        int y = Math.max(40, toY(display.values[(int) Math.round(pos)], traceBottom, traceYMul));
+        double nm = cal.pixelToNanometers(pos);
+        int line = lines != null ? lines.nearest(nm, 1.0) : -1;
+        g2.setColor(line >= 0 ? new Color(192, 0, 0) : Color.gray);
+        g2.drawLine(x, y - 4, x, y - 12);
+        String label = line >= 0 ? lines.getLabel(line) + " " + String.format("%.2f", lines.getNanometers(line))
+                                 : String.format("%.1f", nm);
+        int left = x - fm.stringWidth(label) / 2;
+        int right = left + fm.stringWidth(label);
+        int base = y - 16;
+        boolean clear = true;
+        for (int jj = 0; jj < placed && clear; jj++) {
+          int[] box = labelBoxes[jj];
+          clear = right + 4 < box[0] || left > box[1] + 4 || base + fm.getHeight() < box[2] || base > box[2] + fm.getHeight();
+        }
+        if (clear) {
+          g2.drawString(label, left, base);
+          int[] box = labelBoxes[placed++];
+          box[0] = left;
+          box[1] = right;
+          box[2] = base;
         }
       }
     }
 
-    double pixelToNanometers (int px) {
-      return coff0 + coff1 * px + coff2 * (px * px) + coff3 * (px * px * px);
+    /**
+     *  @param lineTable reference lines to label matching peaks with, or null for none
+     */
+    void setLineTable (LineTable lineTable) {
+      this.lineTable = lineTable;
+      repaint();
     }
 
-    void addRunStateListener (RunState listener) {
-      listeners.add(listener);
+    LineTable getLineTable () {
+      return lineTable;
     }
 
-    public void run () {
-      // Note: run time for a scan < 20 ms
-      if (!running) {
-        running = true;
-        for (RunState listener : listeners) {
-          listener.isRunning(running);
+    /**
+     *  @return index of the first trace point at or right of screen column x
+     */
+    private int firstPoint (int x) {
+      int lo = 0, hi = points;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (xPoints[mid] < x) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
         }
-        USBIO usb = new USBIO(vendId, prodId, iFace, eOut1, eIn1);
-        byte[] data;
-        usb.send(init);
-        if (!calLoaded) {
-          coff0 = Double.parseDouble(getInfo(usb, 1));
-          coff1 = Double.parseDouble(getInfo(usb, 2));
-          coff2 = Double.parseDouble(getInfo(usb, 3));
-          coff3 = Double.parseDouble(getInfo(usb, 4));
-          // Compute values for X Axis legend
-          xAxis = new ArrayList<>();
-          double base = pixelToNanometers(usableStart);
-          int mult = 25;
-          int next = mult * (((int) base - 1) / mult + 1);
-          for (int ii = 0; ii < usableEnd - usableStart; ii++) {
-            int px = ii + usableStart;
-            double val = pixelToNanometers(px);
-            if (val > next) {
-              xAxis.add(new Point(ii, next));
-              next += mult;
-            }
+      }
+      return lo;
+    }
+
+    /**
+     *  Render the parts of the plot that only change with the view, size or calibration
+     */
+    private void renderBackground (Dimension dim, Calibration cal) {
+      Graphics2D g2 = background.createGraphics();
+      g2.setColor(Color.white);
+      g2.fillRect(0, 0, dim.width, 512);
+      g2.setColor(new Color(230, 230, 230));
+      g2.fillRect(0, 512, dim.width, dim.height);
+      if (cal != null) {
+        // Draw X Axis legend, with the finest tick spacing that leaves room for the labels
+        g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g2.setColor(Color.black);
+        double left = cal.pixelToNanometers(viewStart);
+        double right = cal.pixelToNanometers(viewStart + dim.width * viewScale);
+        double nmPerColumn = (right - left) / Math.max(1, dim.width);
+        double step = 100;
+        for (double mult : new double[] {0.1, 0.2, 0.5, 1, 2, 5, 10, 25, 50, 100}) {
+          if (mult / nmPerColumn >= 70) {
+            step = mult;
+            break;
           }
-          calLoaded = true;
-        }
-        usb.send(queryStatus);
-        data = usb.receive();
-        boolean hsUsb = data[14] == (byte) 0x80;
-        int pixels = (data[0] & 0xFF) + ((data[1] & 0xFF) << 8);
-        switch (runState) {
-        case SCAN:
-          do {
-            long scanStart = System.currentTimeMillis();
-            List<byte[]> list = new ArrayList<>();
-            int dataLength = 0;
-            if (hsUsb) {
-              // Read spectrum data via High Speed USB (480Mbps)
-              usb.send(new byte[] {0x09});
-              for (int ii = 0; ii < 4; ii++) {
-                data = usb.receive(eIn6, 512);
-                list.add(data);
-                dataLength += data.length;
-              }
-              for (int ii = 0; ii < 12; ii++) {
-                data = usb.receive(eIn2, 512);
-                list.add(data);
-                dataLength += data.length;
-              }
-            } else {
-              // Read spectrum data via Full Speed USB (12Mbps) Note: Untested
-              for (int ii = 0; ii < 121; ii++) {
-                data = usb.receive(eIn2, 64);
-                list.add(data);
-                dataLength += data.length;
-              }
-            }
-            spectrum = new int[dataLength / 2];
-            int idx = 0;
-            for (byte[] seg : list) {
-              if (seg.length != 1) {
-                for (int ii = 0; ii < seg.length; ii += 2) {
-                  spectrum[idx++] = (seg[ii] & 0xFF) + ((seg[ii + 1] & 0xFF) << 8);
-                }
-              }
-            }
-            repaint();
-            if (scanRate > 0) {
-              long time = System.currentTimeMillis() - scanStart;
-              long delay = 1000 / scanRate;
-              try {
-                Thread.sleep(delay - time);
-              } catch (InterruptedException ex) {
-                ex.printStackTrace();
-              }
-            }
-          } while (scanRate > 0 && runState == state.SCAN);
-          break;
-        case INFO:
-          InfoPane infoPane = new InfoPane();
-          infoPane.addItem("Serial Num:", getInfo(usb, 0));
-          String bench = getInfo(usb, 15);
-          String[] parts = bench.split(" ");
-          infoPane.addItem("Grating:", parts[0]);
-          infoPane.addItem("Filter:", parts[1]);
-          infoPane.addItem("Slit size:", parts[2] + " \u00B5m");
-          infoPane.addItem("Pixel Count:", "" + pixels);
-          infoPane.addItem("", "");
-          infoPane.addItem("USB4000 cfg:", getInfo(usb, 16));
-          infoPane.addItem("USB Speed:", hsUsb ? "480 Mbps" : "12 Mbs");
-          infoPane.addItem("PCB Temp:", getPcbTemp(usb));
-          infoPane.addItem("", "");
-          infoPane.addItem("Cal Coff 0:", "" + coff0);
-          infoPane.addItem("Cal Coff 1:", "" + coff1);
-          infoPane.addItem("Cal Coff 2:", "" + coff2);
-          infoPane.addItem("Cal Coff 3:", "" + coff3);
-          showMessageDialog(this.getParent(), infoPane, "USB4000 Info", JOptionPane.PLAIN_MESSAGE, null);
-          break;
-        }
-        usb.close();
-        running = false;
-        for (RunState listener : listeners) {
-          listener.isRunning(running);
         }
+        for (double next = Math.ceil(left / step) * step; next < right; next += step) {
+          int x = (int) Math.round((cal.nanometersToPixel(next) - viewStart) / viewScale);
+          g2.drawLine(x, 512 + 5, x, 512 + 15);
+          String label = step < 1 ? String.format("%.1f nm", next) : Math.round(next) + " nm";
+          g2.drawString(label, x - 20, 512 + 30);
+        }
+      }
+      g2.dispose();
+    }
+
+    /**
+     *  Convert the visible part of the display frame to polyline points, reusing the point arrays.
+     *  Zoomed out, each screen column is drawn as the min/max envelope of the pixels it covers, so
+     *  narrow lines are never averaged away and the cost depends only on the width of the plot.
+     */
+    private void buildTrace (int width) {
+      int start = pyramid.getStart(), end = pyramid.getEnd();
+      if (xPoints.length < 2 * width + 4) {
+        xPoints = new int[2 * width + 4];
+        yPoints = new int[2 * width + 4];
+        xClip = new int[2 * width + 4];
+        yClip = new int[2 * width + 4];
+      }
+      int first = Math.max(start, (int) viewStart);
+      int last = Math.min(end, (int) Math.ceil(viewStart + width * viewScale) + 1);
+      if (last <= first) {
+        points = 0;
+        return;
+      }
+      SpectrumProcessor.Mode mode = display.mode;
+      if (mode != traceMode) {
+        // Units changed, so start the autoscale over
+        autoTop = autoBottom = 0;
+        traceMode = mode;
+      }
+      double top, bottom;
+      if (yScale > 0 && mode == SpectrumProcessor.Mode.SCOPE) {
+        top = 512.0 * yScale;
+        bottom = 0;
+      } else {
+        // Grow to fit immediately, but shrink gradually so noise doesn't make the scale jump
+        double span = minSpan(mode);
+        double max = pyramid.max(first, last), min = Math.min(0, pyramid.min(first, last));
+        double target = Math.max(span, max + (max - min) * 0.05);
+        autoTop = target > autoTop ? target : autoTop + (target - autoTop) * 0.1;
+        target = min < 0 ? min - (max - min) * 0.05 : 0;
+        autoBottom = target < autoBottom ? target : autoBottom + (target - autoBottom) * 0.1;
+        top = autoTop;
+        bottom = autoBottom;
+      }
+      double yMul = 512.0 / (top - bottom);
+      traceYMul = yMul;
+      traceBottom = bottom;
+      int count = 0;
+      if (viewScale >= 1) {
+        int lastY = 512;
+        for (int col = 0; col < width; col++) {
+          int from = (int) (viewStart + col * viewScale);
+          int to = Math.min(end, Math.max(from + 1, (int) (viewStart + (col + 1) * viewScale)));
+          if (from >= to) {
+            break;
+          }
+          int yMax = toY(pyramid.max(from, to), bottom, yMul);
+          int yMin = toY(pyramid.min(from, to), bottom, yMul);
+          // Start each column at the end nearest the last, so the envelope joins up
+          boolean maxFirst = Math.abs(yMax - lastY) < Math.abs(yMin - lastY);
+          xPoints[count] = col;
+          yPoints[count++] = maxFirst ? yMax : yMin;
+          xPoints[count] = col;
+          yPoints[count++] = lastY = maxFirst ? yMin : yMax;
+        }
+      } else {
+        float[] spectrum = display.values;
+        for (int px = first; px < last; px++) {
+          xPoints[count] = (int) Math.round((px - viewStart) / viewScale);
+          yPoints[count++] = toY(spectrum[px], bottom, yMul);
+        }
+      }
+      points = count;
+      traceYScale = yScale;
+    }
+
+    /**
+     *  @return screen y of a value, limited to a little beyond the plot so it can't overflow
+     */
+    private static int toY (double value, double bottom, double yMul) {
+      return 512 - (int) Math.max(-1024, Math.min(2048, (value - bottom) * yMul));
+    }
+
+    /**
+     *  @return smallest range of values the autoscale will zoom in to, in the mode's units
+     */
+    private static double minSpan (SpectrumProcessor.Mode mode) {
+      switch (mode) {
+      case TRANSMISSION:
+        return 10;
+      case ABSORBANCE:
+      case IRRADIANCE:
+        return 0.1;
+      default:
+        return 256;
       }
     }
 
+    private static String units (SpectrumProcessor.Mode mode) {
+      switch (mode) {
+      case TRANSMISSION:
+        return "Transmission %";
+      case ABSORBANCE:
+        return "Absorbance";
+      case IRRADIANCE:
+        return "Relative irradiance";
+      default:
+        return "Counts";
+      }
+    }
+
+    private static String format (SpectrumProcessor.Mode mode, double value) {
+      switch (mode) {
+      case TRANSMISSION:
+        return String.format("%.1f%%", value);
+      case ABSORBANCE:
+      case IRRADIANCE:
+        return String.format("%.3f", value);
+      default:
+        return String.format("%.0f", value);
+      }
+    }
+
+    private void showInfo (Acquisition acquisition) {
+      DeviceSession session = acquisition.getSession();
+      double[] coff = acquisition.getCoefficients();
+      InfoPane infoPane = new InfoPane();
+      infoPane.addItem("Serial Num:", session.getInfo(0));
+      String bench = session.getInfo(15);
+      String[] parts = bench.split(" ");
+      infoPane.addItem("Grating:", parts[0]);
+      infoPane.addItem("Filter:", parts[1]);
+      infoPane.addItem("Slit size:", parts[2] + " \u00B5m");
+      infoPane.addItem("Pixel Count:", "" + session.getPixels());
+      infoPane.addItem("", "");
+      infoPane.addItem("USB4000 cfg:", session.getInfo(16));
+      infoPane.addItem("USB Speed:", session.isHighSpeed() ? "480 Mbps" : "12 Mbs");
+      infoPane.addItem("PCB Temp:", session.getPcbTemp());
+      infoPane.addItem("", "");
+      infoPane.addItem("Cal Coff 0:", "" + coff[0]);
+      infoPane.addItem("Cal Coff 1:", "" + coff[1]);
+      infoPane.addItem("Cal Coff 2:", "" + coff[2]);
+      infoPane.addItem("Cal Coff 3:", "" + coff[3]);
+      showMessageDialog(this.getParent(), infoPane, "USB4000 Info", JOptionPane.PLAIN_MESSAGE, null);
+    }
+
     String getCsvData () {
+      FrameRing.Frame frame = new FrameRing.Frame(0);
+      acquisition.getFrameRing().newReader().latest(frame);
+      int[] spectrum = frame.counts;
       StringBuilder buf = new StringBuilder();
       for (int ii = usableStart; ii < usableEnd; ii++) {
         buf.append(ii - usableStart);
@@ -325,61 +707,20 @@ public class USB4000 extends JFrame {
       }
     }
 
-    private static String getPcbTemp (USBIO usb) {
-      usb.send(new byte[] {(byte) 0x6C});
-      byte[] data = usb.receive();
-      return String.format("%2.2f", ((data[1] & 0xFF) + ((data[1 + 1] & 0xFF) << 8)) * .003906) + "° C";
-    }
-
-    private static String getInfo (USBIO usb, int index) {
-      byte[] cmd = new byte[] {0x05, (byte) index};
-      usb.send(cmd);
-      byte[] data = usb.receive();
-      return getString(data);
-    }
-
-    private static String getString (byte[] data) {
-      StringBuilder buf = new StringBuilder();
-      for (int ii = 2; ii < data.length; ii++) {
-        if (data[ii] == 0) {
-          break;
-        }
-        buf.append((char) data[ii]);
-      }
-      return buf.toString();
-    }
-
-    void doScan (state action) {
-      runState = action;
-      new Thread(this).start();
-    }
-
-    void stopScan () {
-      runState = state.STOP;
-    }
-
-    void setXScale (int xScale) {
-      setPreferredSize(new Dimension((usableEnd - usableStart) / xScale, 512 + xAxisSize));
-      this.xScale = xScale;
-      revalidate();
-      repaint();
-    }
-
+    /**
+     *  @param yScale counts per screen pixel, or 0 to autoscale to the visible part of the spectrum.
+     *  Values in the processed modes are always autoscaled.
+     */
     void setYScale (int yScale) {
       this.yScale = yScale;
       repaint();
     }
 
-    void setRate (int scanRate) {
-      this.scanRate = scanRate;
-    }
-
-    boolean isRunning () {
-      return running;
-    }
-
-    boolean hasScan () {
-      return spectrum != null;
+    /**
+     *  @return number of frames acquired, but never painted because painting fell behind
+     */
+    long getDroppedFrames () {
+      return displayReader.getDropped();
     }
   }
 
@@ -417,10 +758,14 @@ public class USB4000 extends JFrame {
   private USB4000 () {
     setTitle("USB4000 Spectrum Viewer");
     setLayout(new BorderLayout());
-    Spectrum spectrum = new Spectrum();
-    JScrollPane scroll = new JScrollPane(spectrum);
-    scroll.setVerticalScrollBarPolicy(VERTICAL_SCROLLBAR_NEVER);
-    add(scroll, BorderLayout.CENTER);
+    Acquisition acquisition = new Acquisition(session);
+    Spectrum spectrum = new Spectrum(acquisition);
+    // Keep the device open between scans, but release it on exit
+    Runtime.getRuntime().addShutdownHook(new Thread(session::close));
+    add(spectrum, BorderLayout.CENTER);
+    WaterfallPanel waterfall = new WaterfallPanel(acquisition, prefs.getInt("waterfall.depth", 2048));
+    spectrum.setWaterfall(waterfall);
+    add(waterfall, BorderLayout.SOUTH);
     // Add MenuBar
     JMenuBar menuBar = new JMenuBar();
     // Add "Info" menu
@@ -428,7 +773,34 @@ public class USB4000 extends JFrame {
     menuBar.add(fileMenu);
     JMenuItem getInfo = new JMenuItem("Get Info");
     fileMenu.add(getInfo);
-    getInfo.addActionListener(ev -> spectrum.doScan(state.INFO));
+    getInfo.addActionListener(ev -> acquisition.doScan(Acquisition.state.INFO));
+    // Add "Select Device" menu item, to choose between several attached USB4000s by serial number
+    session.setSerial(prefs.get("device.serial", null));
+    JMenuItem selectDevice = new JMenuItem("Select Device...");
+    selectDevice.addActionListener(ev -> {
+      session.close();
+      java.util.List<String> serials;
+      try {
+        serials = DeviceSession.listSerials();
+      } catch (RuntimeException ex) {
+        showMessageDialog(this, ex.getMessage(), "USB4000 Error", JOptionPane.ERROR_MESSAGE, null);
+        return;
+      }
+      if (serials.isEmpty()) {
+        showMessageDialog(this, "No USB4000 found", "Select Device", JOptionPane.PLAIN_MESSAGE, null);
+        return;
+      }
+      String current = prefs.get("device.serial", serials.get(0));
+      Object choice = JOptionPane.showInputDialog(this, "Serial number:", "Select Device", JOptionPane.PLAIN_MESSAGE,
+                                                  null, serials.toArray(), current);
+      if (choice != null) {
+        session.setSerial((String) choice);
+        prefs.put("device.serial", (String) choice);
+        // Dark and reference spectra belong to the last device
+        acquisition.getProcessor().clear();
+      }
+    });
+    fileMenu.add(selectDevice);
     fileMenu.addSeparator();
     // Add "Save Data" menu item
     JMenuItem save = new JMenuItem("Save Scan");
@@ -457,58 +829,457 @@ public class USB4000 extends JFrame {
       }
     });
     fileMenu.add(save);
+    fileMenu.addSeparator();
+    // Add "Record Log" menu item, which records every scan to a binary SpectrumLog until stopped
+    JMenuItem record = new JMenuItem("Record Log...");
+    record.addActionListener(e -> {
+      if (recorder != null) {
+        try {
+          recorder.stop();
+          showMessageDialog(this, "Recorded " + recorder.getFrameCount() + " scans (" + recorder.getDropped() +
+                            " dropped)", "Record Log", JOptionPane.PLAIN_MESSAGE, null);
+        } catch (IOException ex) {
+          showMessageDialog(this, ex.getMessage(), "Record Log Error", JOptionPane.ERROR_MESSAGE, null);
+        }
+        recorder = null;
+        record.setText("Record Log...");
+      } else {
+        File file = chooseFile("Record Scans to Log File", "Spectrum logs (*.usb4k)", "usb4k", "spectra.usb4k", true);
+        if (file != null) {
+          recorder = new SpectrumLog.Recorder(acquisition, file);
+          record.setText("Stop Recording");
+        }
+      }
+    });
+    fileMenu.add(record);
+    // Add "Export Log" menu item, which streams a SpectrumLog to a CSV file
+    JMenuItem export = new JMenuItem("Export Log to CSV...");
+    export.addActionListener(e -> {
+      File in = chooseFile("Select Log File to Export", "Spectrum logs (*.usb4k)", "usb4k", "spectra.usb4k", false);
+      if (in != null) {
+        String name = in.getName().replaceAll("\\.usb4k$", "") + ".csv";
+        File out = chooseFile("Export Log to CSV File", "CSV files (*.csv)", "csv",
+                              new File(in.getParentFile(), name).getAbsolutePath(), true);
+        if (out != null) {
+          try (SpectrumLog.Reader log = new SpectrumLog.Reader(in);
+               Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8))) {
+            log.exportCsv(writer);
+          } catch (IOException ex) {
+            showMessageDialog(this, ex.getMessage(), "Export Error", JOptionPane.ERROR_MESSAGE, null);
+          }
+        }
+      }
+    });
+    fileMenu.add(export);
+    // Add "Run Batch Job" menu item, which runs the steps described in a job file unattended
+    JMenuItem runBatch = new JMenuItem("Run Batch Job...");
+    runBatch.addActionListener(e -> {
+      if (batch != null) {
+        batch.cancel();
+        return;
+      }
+      File in = chooseFile("Select Batch Job", "Batch jobs (*.properties)", "properties", "job.properties", false);
+      if (in != null) {
+        try {
+          BatchScheduler job = new BatchScheduler(acquisition, BatchScheduler.Job.load(in));
+          job.setStepListener((step, steps) -> SwingUtilities.invokeLater(() ->
+              runBatch.setText("Cancel Batch Job (step " + step + " of " + steps + ")")));
+          job.start();
+          batch = job;
+          runBatch.setText("Cancel Batch Job");
+          // Wait for the job on a thread of its own, then report
+          BatchScheduler.startThread("BatchReport", () -> {
+            try {
+              job.await();
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+            }
+            SwingUtilities.invokeLater(() -> {
+              batch = null;
+              runBatch.setText("Run Batch Job...");
+              showMessageDialog(this, job.getReport(), "Batch Job", job.getError() != null ? JOptionPane.ERROR_MESSAGE
+                                                                                          : JOptionPane.PLAIN_MESSAGE, null);
+            });
+          });
+        } catch (IOException | IllegalStateException ex) {
+          showMessageDialog(this, ex.getMessage(), "Batch Job Error", JOptionPane.ERROR_MESSAGE, null);
+        }
+      }
+    });
+    fileMenu.add(runBatch);
+    fileMenu.addSeparator();
+    // Add "Load Line Table" menu item, which replaces the built in Hg-Ar lines used to label peaks
+    JMenuItem loadLines = new JMenuItem("Load Line Table...");
+    loadLines.addActionListener(e -> {
+      File in = chooseFile("Select Line Table", "Line tables (*.csv)", "csv", "lines.csv", false);
+      if (in != null) {
+        try {
+          spectrum.setLineTable(LineTable.load(in));
+        } catch (IOException ex) {
+          showMessageDialog(this, ex.getMessage(), "Line Table Error", JOptionPane.ERROR_MESSAGE, null);
+        }
+      }
+    });
+    fileMenu.add(loadLines);
+    // Add "Load CRI Tables" menu item, as the CIE test color samples needed for the CRI aren't included
+    JMenuItem loadCri = new JMenuItem("Load CRI Tables...");
+    loadCri.addActionListener(e -> {
+      File in = chooseFile("Select CRI Tables", "CRI tables (*.csv)", "csv", "cri.csv", false);
+      if (in != null) {
+        try {
+          acquisition.getColorimetry().setCriTables(Colorimetry.CriTables.load(in));
+        } catch (IOException ex) {
+          showMessageDialog(this, ex.getMessage(), "CRI Tables Error", JOptionPane.ERROR_MESSAGE, null);
+        }
+      }
+    });
+    fileMenu.add(loadCri);
+    // Add "Load Spectral Library" menu item, to match each frame against reference spectra
+    JMenuItem loadLibrary = new JMenuItem("Load Spectral Library...");
+    fileMenu.add(loadLibrary);
+    // Add "Recalibrate" menu item, which refits the wavelength calibration to a reference lamp scan
+    JMenuItem recalibrate = new JMenuItem("Recalibrate...");
+    recalibrate.addActionListener(e -> recalibrate(acquisition, spectrum));
+    fileMenu.add(recalibrate);
+    fileMenu.addSeparator();
+    // Add dark and reference items, which store the next frame for the "View" modes to process with
+    SpectrumProcessor processor = acquisition.getProcessor();
+    JMenuItem storeDark = new JMenuItem("Store Dark");
+    storeDark.addActionListener(e -> processor.captureDark());
+    fileMenu.add(storeDark);
+    JMenuItem storeReference = new JMenuItem("Store Reference");
+    storeReference.addActionListener(e -> processor.captureReference());
+    fileMenu.add(storeReference);
+    JMenuItem clearReference = new JMenuItem("Clear Dark and Reference");
+    clearReference.addActionListener(e -> processor.clear());
+    fileMenu.add(clearReference);
+    JCheckBoxMenuItem edc = new JCheckBoxMenuItem("Electric Dark Correction", prefs.getBoolean("process.edc", false));
+    processor.setElectricDark(edc.isSelected());
+    edc.addActionListener(e -> {
+      processor.setElectricDark(edc.isSelected());
+      prefs.putBoolean("process.edc", edc.isSelected());
+    });
+    fileMenu.add(edc);
+    JCheckBoxMenuItem stats = new JCheckBoxMenuItem("Show Stats", prefs.getBoolean("display.stats", false));
+    spectrum.setShowStats(stats.isSelected());
+    stats.addActionListener(e -> {
+      spectrum.setShowStats(stats.isSelected());
+      prefs.putBoolean("display.stats", stats.isSelected());
+    });
+    fileMenu.add(stats);
+    JCheckBoxMenuItem color = new JCheckBoxMenuItem("Show Color", prefs.getBoolean("display.color", false));
+    acquisition.setMeasureColor(color.isSelected());
+    spectrum.setShowColor(color.isSelected());
+    color.addActionListener(e -> {
+      acquisition.setMeasureColor(color.isSelected());
+      spectrum.setShowColor(color.isSelected());
+      prefs.putBoolean("display.color", color.isSelected());
+    });
+    fileMenu.add(color);
+    // Add "Waterfall History" menu item, to set how many rows the waterfall keeps
+    JMenuItem history = new JMenuItem("Waterfall History...");
+    history.addActionListener(e -> {
+      int max = WaterfallPanel.maxDepth();
+      String prompt = String.format("Rows of history, 1 to %d (%d rows use %.1f MB):", max, waterfall.getDepth(),
+                                    WaterfallPanel.bytes(waterfall.getDepth()) / 1e6);
+      Object rows = JOptionPane.showInputDialog(this, prompt, "Waterfall History", JOptionPane.PLAIN_MESSAGE, null,
+                                                null, waterfall.getDepth());
+      if (rows != null) {
+        try {
+          int depth = Integer.parseInt(rows.toString().trim());
+          if (depth < 1 || depth > max) {
+            throw new NumberFormatException();
+          }
+          waterfall.setDepth(depth);
+          prefs.putInt("waterfall.depth", depth);
+        } catch (NumberFormatException ex) {
+          showMessageDialog(this, String.format("Rows must be 1 to %d (%.1f MB)", max, WaterfallPanel.bytes(max) / 1e6),
+                            "Waterfall History", JOptionPane.ERROR_MESSAGE, null);
+        }
+      }
+    });
+    fileMenu.add(history);
+    // Add "Baseline Settings" menu item, to tune the methods in the Baseline menu
+    JMenuItem baselineSettings = new JMenuItem("Baseline Settings...");
+    baselineSettings.addActionListener(e -> editBaselineSettings(acquisition.getBaselineRemoval()));
+    fileMenu.add(baselineSettings);
+    // Add "Stream Spectra" to serve live frames to other processes on this host
+    JCheckBoxMenuItem stream = new JCheckBoxMenuItem("Stream Spectra...");
+    stream.addActionListener(e -> {
+      if (stream.isSelected()) {
+        Object port = JOptionPane.showInputDialog(this, "TCP port (local connections only):", "Stream Spectra",
+                                                  JOptionPane.PLAIN_MESSAGE, null, null, prefs.getInt("server.port", 4000));
+        try {
+          if (port == null || !startServer(acquisition, Integer.parseInt(port.toString().trim()))) {
+            stream.setSelected(false);
+          }
+        } catch (NumberFormatException ex) {
+          showMessageDialog(this, "Invalid port: " + port, "Stream Spectra", JOptionPane.ERROR_MESSAGE, null);
+          stream.setSelected(false);
+        }
+      } else {
+        server.close();
+        server = null;
+      }
+      prefs.putBoolean("server.enabled", stream.isSelected());
+    });
+    if (prefs.getBoolean("server.enabled", false)) {
+      stream.setSelected(startServer(acquisition, prefs.getInt("server.port", 4000)));
+    }
+    fileMenu.add(stream);
+    fileMenu.addSeparator();
+    // Add device settings, which are sent before the next scan
+    JMenu trigger = new JMenu("Trigger Mode");
+    ButtonGroup triggerGroup = new ButtonGroup();
+    int currentTrigger = prefs.getInt("device.trigger", 0);
+    session.setTriggerMode(DeviceSession.TriggerMode.values()[currentTrigger]);
+    String[] triggerNames = {"Normal", "Software", "External Level", "External Sync", "External Edge"};
+    for (int ii = 0; ii < triggerNames.length; ii++) {
+      JRadioButtonMenuItem item = new JRadioButtonMenuItem(triggerNames[ii], ii == currentTrigger);
+      int mode = ii;
+      item.addActionListener(e -> {
+        session.setTriggerMode(DeviceSession.TriggerMode.values()[mode]);
+        prefs.putInt("device.trigger", mode);
+      });
+      triggerGroup.add(item);
+      trigger.add(item);
+    }
+    fileMenu.add(trigger);
+    JCheckBoxMenuItem strobe = new JCheckBoxMenuItem("Strobe/Lamp Enable", prefs.getBoolean("device.strobe", false));
+    session.setStrobe(strobe.isSelected());
+    strobe.addActionListener(e -> {
+      session.setStrobe(strobe.isSelected());
+      prefs.putBoolean("device.strobe", strobe.isSelected());
+    });
+    fileMenu.add(strobe);
+    JCheckBoxMenuItem lowPower = new JCheckBoxMenuItem("Low Power When Idle", prefs.getBoolean("device.lowpower", false));
+    session.setLowPower(lowPower.isSelected());
+    lowPower.addActionListener(e -> {
+      session.setLowPower(lowPower.isSelected());
+      prefs.putBoolean("device.lowpower", lowPower.isSelected());
+    });
+    fileMenu.add(lowPower);
     // Add "Scan" button
     JButton scan = new JButton("Scan");
     menuBar.add(scan);
     scan.addActionListener(ev -> {
-      if (spectrum.isRunning()) {
-        spectrum.stopScan();
+      if (acquisition.isRunning()) {
+        acquisition.stopScan();
       } else {
-        spectrum.doScan(state.SCAN);
+        acquisition.doScan(Acquisition.state.SCAN);
       }
     });
     // Add RunState Listener to update GUI state
-    spectrum.addRunStateListener(running -> {
+    acquisition.addRunStateListener(running -> {
       scan.setText(running ? "Stop" : "Scan");
-      fileMenu.setEnabled(!running);
-      if (!running && spectrum.hasScan()) {
+      getInfo.setEnabled(!running);
+      selectDevice.setEnabled(!running);
+      if (!running && acquisition.hasScan()) {
         save.setEnabled(true);
       }
+      LibUsbException error = acquisition.getError();
+      if (!running && error != null) {
+        showMessageDialog(this, error.getMessage(), "USB4000 Error", JOptionPane.ERROR_MESSAGE, null);
+      }
     });
     // Add "Rate" menu
     int currentRate = prefs.getInt("scale.rate", 0);
-    spectrum.setRate(currentRate);
-    ComboMenu rate = new ComboMenu("Rate: ", new int[]{0, 1, 5, 10},
-                                   new String[]{"Once ", "1 Hz ", "5 Hz ", "10 Hz"}, currentRate);
+    acquisition.setRate(currentRate);
+    ComboMenu rate = new ComboMenu("Rate: ", new int[]{0, 1, 5, 10, 20, 50, 100, -1},
+                                   new String[]{"Once ", "1 Hz ", "5 Hz ", "10 Hz", "20 Hz", "50 Hz", "100 Hz", "Max "},
+                                   currentRate);
     rate.addActionListener(ev -> {
       int value = rate.getValue();
-      spectrum.setRate(value);
+      acquisition.setRate(value);
       prefs.putInt("scale.rate", value);
     });
     menuBar.add(rate);
-    // Add X Scale Menu
-    int currentXScale = prefs.getInt("scale.x", 2);
-    ComboMenu xScale = new ComboMenu("X: ", new int[]{1, 2},
-                                     new String[]{"1/1", "1/2"}, currentXScale);
-    xScale.addActionListener(ev -> {
-      int value = xScale.getValue();
-      spectrum.setXScale(value);
-      prefs.putInt("scale.x", value);
+    // Add "Integration" menu, which trades exposure for scan rate
+    int currentIntegration = prefs.getInt("device.integration", 10000);
+    session.setIntegrationTime(currentIntegration);
+    ComboMenu integration = new ComboMenu("Int: ", new int[]{3800, 5000, 10000, 20000, 50000, 100000, 200000, 500000,
+                                                             1000000, 2000000, 5000000, 10000000},
+                                          new String[]{"3.8 ms", "5 ms", "10 ms", "20 ms", "50 ms", "100 ms", "200 ms",
+                                                       "500 ms", "1 s", "2 s", "5 s", "10 s"}, currentIntegration);
+    integration.addActionListener(ev -> {
+      int value = integration.getValue();
+      session.setIntegrationTime(value);
+      prefs.putInt("device.integration", value);
+    });
+    menuBar.add(integration);
+    // Add "Average" menu, for scans averaged per frame
+    ScanAverager averager = acquisition.getAverager();
+    int currentAverage = prefs.getInt("process.average", 1);
+    averager.setAverage(currentAverage);
+    ComboMenu average = new ComboMenu("Avg: ", new int[]{1, 2, 5, 10, 25, 50, 100},
+                                      new String[]{"Off", "2", "5", "10", "25", "50", "100"}, currentAverage);
+    average.addActionListener(ev -> {
+      int value = average.getValue();
+      averager.setAverage(value);
+      prefs.putInt("process.average", value);
+    });
+    menuBar.add(average);
+    // Add "Mode" menu, to switch between block averages and a moving average
+    int currentMode = prefs.getInt("process.mode", 0);
+    averager.setMode(ScanAverager.Mode.values()[currentMode]);
+    ComboMenu mode = new ComboMenu("Mode: ", new int[]{0, 1}, new String[]{"Block", "EMA"}, currentMode);
+    mode.addActionListener(ev -> {
+      int value = mode.getValue();
+      averager.setMode(ScanAverager.Mode.values()[value]);
+      prefs.putInt("process.mode", value);
+    });
+    menuBar.add(mode);
+    // Add "Smooth" menu, for boxcar half width in pixels
+    int currentBoxcar = prefs.getInt("process.boxcar", 0);
+    averager.setBoxcar(currentBoxcar);
+    ComboMenu smooth = new ComboMenu("Smooth: ", new int[]{0, 1, 2, 3, 5, 10},
+                                     new String[]{"Off", "3 px", "5 px", "7 px", "11 px", "21 px"}, currentBoxcar);
+    smooth.addActionListener(ev -> {
+      int value = smooth.getValue();
+      averager.setBoxcar(value);
+      prefs.putInt("process.boxcar", value);
+    });
+    menuBar.add(smooth);
+    // Add "Baseline" menu, to remove fluorescence backgrounds and drift from each frame
+    BaselineRemoval baseline = acquisition.getBaselineRemoval();
+    int currentBaseline = prefs.getInt("process.baseline", 0);
+    baseline.setMethod(BaselineRemoval.Method.values()[currentBaseline]);
+    baseline.setAls(prefs.getDouble("baseline.lambda", baseline.getLambda()),
+                    prefs.getDouble("baseline.asymmetry", baseline.getAsymmetry()),
+                    prefs.getInt("baseline.alsIterations", baseline.getAlsIterations()));
+    baseline.setRadius(prefs.getInt("baseline.radius", baseline.getRadius()));
+    baseline.setPolynomial(prefs.getInt("baseline.degree", baseline.getDegree()),
+                           prefs.getInt("baseline.polyIterations", baseline.getPolyIterations()));
+    ComboMenu baselineMenu = new ComboMenu("Baseline: ", new int[]{0, 1, 2, 3},
+                                           new String[]{"Off", "ALS", "Rolling Ball", "Polynomial"}, currentBaseline);
+    baselineMenu.addActionListener(ev -> {
+      int value = baselineMenu.getValue();
+      baseline.setMethod(BaselineRemoval.Method.values()[value]);
+      prefs.putInt("process.baseline", value);
+    });
+    menuBar.add(baselineMenu);
+    // Add "Match" menu, to rank the references in the loaded spectral library against each frame
+    ComboMenu match = new ComboMenu("Match: ", new int[]{0, 1, 2}, new String[]{"Off", "Cosine", "Correlation"},
+                                    prefs.getInt("library.match", 1));
+    match.addActionListener(ev -> {
+      prefs.putInt("library.match", match.getValue());
+      startLibrarySearch(acquisition, spectrum, match.getValue());
+    });
+    menuBar.add(match);
+    loadLibrary.addActionListener(e -> {
+      Calibration cal = acquisition.getCalibration();
+      if (cal == null) {
+        showMessageDialog(this, "Scan once first, so the device's wavelength range is known", "Spectral Library",
+                          JOptionPane.PLAIN_MESSAGE, null);
+        return;
+      }
+      // Either a CSV file of spectra, or a directory of CSV files of one spectrum each
+      JFileChooser fileChooser = new JFileChooser();
+      fileChooser.setDialogTitle("Select Spectral Library");
+      fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+      fileChooser.setFileFilter(new FileNameExtensionFilter("Spectral libraries (*.csv)", "csv"));
+      String dir = prefs.get("library.dir", prefs.get("default.dir", null));
+      if (dir != null) {
+        fileChooser.setCurrentDirectory(new File(dir).getParentFile());
+      }
+      if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+        return;
+      }
+      File in = fileChooser.getSelectedFile();
+      prefs.put("library.dir", in.getAbsolutePath());
+      loadLibrary.setEnabled(false);
+      loadLibrary.setText("Loading Spectral Library...");
+      // Finding the library's principal components takes seconds for large libraries
+      Thread loader = new Thread(() -> {
+        try {
+          SpectralLibrary lib = SpectralLibrary.load(in, cal, prefs.getDouble("library.step", 1));
+          SwingUtilities.invokeLater(() -> {
+            library = lib;
+            startLibrarySearch(acquisition, spectrum, match.getValue());
+          });
+        } catch (IOException ex) {
+          SwingUtilities.invokeLater(() -> showMessageDialog(this, ex.getMessage(), "Spectral Library Error",
+                                                             JOptionPane.ERROR_MESSAGE, null));
+        } finally {
+          SwingUtilities.invokeLater(() -> {
+            loadLibrary.setEnabled(true);
+            loadLibrary.setText("Load Spectral Library...");
+          });
+        }
+      }, "LibraryLoad");
+      loader.setDaemon(true);
+      loader.start();
+    });
+    // Add "Peaks" menu, to find and label peaks in each frame
+    int currentPeaks = prefs.getInt("process.peaks", 0);
+    acquisition.setFindPeaks(currentPeaks != 0);
+    ComboMenu peaks = new ComboMenu("Peaks: ", new int[]{0, 1}, new String[]{"Off", "On"}, currentPeaks);
+    peaks.addActionListener(ev -> {
+      int value = peaks.getValue();
+      acquisition.setFindPeaks(value != 0);
+      prefs.putInt("process.peaks", value);
+    });
+    menuBar.add(peaks);
+    // Add "Waterfall" menu, to show recent frames as a scrolling waterfall below the spectrum
+    int currentWaterfall = prefs.getInt("waterfall.frames", 0);
+    waterfall.setFramesPerRow(currentWaterfall);
+    waterfall.setShowing(currentWaterfall != 0);
+    ComboMenu waterfallMenu = new ComboMenu("Waterfall: ", new int[]{0, 1, 4, 16, 64},
+                                            new String[]{"Off", "1 frame/row", "4 frames/row", "16 frames/row",
+                                                         "64 frames/row"}, currentWaterfall);
+    waterfallMenu.addActionListener(ev -> {
+      int value = waterfallMenu.getValue();
+      waterfall.setFramesPerRow(value);
+      waterfall.setShowing(value != 0);
+      prefs.putInt("waterfall.frames", value);
+      // The window isn't resizable, so pack it to grow or shrink with the waterfall
+      pack();
+    });
+    menuBar.add(waterfallMenu);
+    // Add "View" menu, to show counts or values relative to the stored reference
+    int currentView = prefs.getInt("process.view", 0);
+    processor.setMode(SpectrumProcessor.Mode.values()[currentView]);
+    ComboMenu view = new ComboMenu("View: ", new int[]{0, 1, 2, 3}, new String[]{"Scope", "%T", "Abs", "Irrad"},
+                                   currentView);
+    view.addActionListener(ev -> {
+      int value = view.getValue();
+      processor.setMode(SpectrumProcessor.Mode.values()[value]);
+      prefs.putInt("process.view", value);
+      if (value != 0 && !processor.hasReference()) {
+        showMessageDialog(this, "Store a reference to view values relative to it", "View", JOptionPane.PLAIN_MESSAGE, null);
+      }
     });
-    menuBar.add(xScale);
+    menuBar.add(view);
     // Add Y Scale Menu
-    int currentYScale = prefs.getInt("scale.y", 16);
-    ComboMenu yScale = new ComboMenu("Y: ", new int[] {1, 2, 4, 8, 16, 32, 64},
-                                     new String[]{"1/1", "1/2", "1/4", "1/8", "1/16", "1/32", "1/64"}, currentYScale);
+    int currentYScale = prefs.getInt("scale.y", 0);
+    ComboMenu yScale = new ComboMenu("Y: ", new int[] {0, 1, 2, 4, 8, 16, 32, 64},
+                                     new String[]{"Auto", "1/1", "1/2", "1/4", "1/8", "1/16", "1/32", "1/64"},
+                                     currentYScale);
     yScale.addActionListener(ev -> {
       int value = yScale.getValue();
       spectrum.setYScale(value);
       prefs.putInt("scale.y", value);
     });
     menuBar.add(yScale);
+    // Add achieved rate, jitter and dropped frame display, updated while scanning, and the highest
+    // rate the integration time allows
+    menuBar.add(Box.createHorizontalGlue());
+    JLabel rateInfo = new JLabel();
+    menuBar.add(rateInfo);
+    menuBar.add(Box.createHorizontalStrut(8));
+    new Timer(500, ev -> {
+      RateScheduler scheduler = acquisition.getScheduler();
+      String max = String.format("max %.1f Hz", session.getMaxScanRate());
+      if (acquisition.isRunning() && scheduler.getAchievedRate() > 0) {
+        rateInfo.setText(String.format("%.1f Hz (%s), jitter %.2f ms, dropped %d", scheduler.getAchievedRate(), max,
+                         scheduler.getJitter(), spectrum.getDroppedFrames()));
+      } else {
+        rateInfo.setText(max);
+      }
+    }).start();
     setJMenuBar(menuBar);
     pack();
-    spectrum.setXScale(currentXScale);
+    spectrum.setYScale(currentYScale);
     setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
     setResizable(false);
     setLocation(prefs.getInt("window.x", 10), prefs.getInt("window.y", 10));
@@ -523,6 +1294,190 @@ public class USB4000 extends JFrame {
     setVisible(true);
   }
 
+  /**
+   *  @return true if the SpectrumServer started, otherwise the error has been shown
+   */
+  private boolean startServer (Acquisition acquisition, int port) {
+    try {
+      server = new SpectrumServer(acquisition, port);
+      prefs.putInt("server.port", port);
+      return true;
+    } catch (IOException | IllegalArgumentException ex) {
+      showMessageDialog(this, "Unable to stream on port " + port + ": " + ex.getMessage(), "Stream Spectra",
+                        JOptionPane.ERROR_MESSAGE, null);
+      return false;
+    }
+  }
+
+  /**
+   *  Refit the calibration to the peaks in the latest scan, which should be of a lamp emitting the
+   *  lines in the Spectrum's line table, then show the fit and let the user choose whether to use it
+   */
+  private void recalibrate (Acquisition acquisition, Spectrum spectrum) {
+    Calibration cal = acquisition.getCalibration();
+    LineTable lines = spectrum.getLineTable();
+    if (cal == null || !acquisition.hasScan() || lines == null) {
+      showMessageDialog(this, "Scan a reference lamp first", "Recalibrate", JOptionPane.PLAIN_MESSAGE, null);
+      return;
+    }
+    FrameRing.Frame frame = new FrameRing.Frame(0);
+    acquisition.getFrameRing().newReader().latest(frame);
+    float[] values = frame.values;
+    if (frame.mode != SpectrumProcessor.Mode.SCOPE) {
+      // Fit to counts, as peaks in ratioed values don't mark the lamp's lines
+      values = new float[frame.length];
+      for (int ii = 0; ii < values.length; ii++) {
+        values[ii] = frame.counts[ii];
+      }
+    }
+    Recalibration.Result fit;
+    try {
+      fit = new Recalibration().fit(values, cal, lines);
+    } catch (IllegalStateException ex) {
+      showMessageDialog(this, ex.getMessage(), "Recalibrate", JOptionPane.ERROR_MESSAGE, null);
+      return;
+    }
+    StringBuilder buf = new StringBuilder();
+    buf.append(String.format("%-6s %10s %10s %10s%n", "Line", "nm", "Pixel", "Residual"));
+    for (int ii = 0; ii < fit.nm.length; ii++) {
+      buf.append(String.format("%-6s %10.3f %10.2f %+10.3f%s%n", fit.labels[ii], fit.nm[ii], fit.pixels[ii],
+                               fit.residuals[ii], fit.outliers[ii] ? "  outlier" : ""));
+    }
+    buf.append(String.format("%nUsed %d of %d lines, RMS residual %.3f nm%n%n", fit.getInliers(), fit.nm.length, fit.rms));
+    double[] old = cal.getCoefficients();
+    for (int ii = 0; ii < 4; ii++) {
+      buf.append(String.format("Cal Coff %d: %-24s was %s%n", ii, fit.coff[ii], old[ii]));
+    }
+    JTextArea report = new JTextArea(buf.toString());
+    report.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+    report.setEditable(false);
+    String serial = cal.getSerial();
+    boolean saved = Recalibration.load(serial) != null;
+    String[] options = saved ? new String[] {"Use", "Use and Write EEPROM", "Revert to EEPROM", "Cancel"}
+                             : new String[] {"Use", "Use and Write EEPROM", "Cancel"};
+    int choice = JOptionPane.showOptionDialog(this, new JScrollPane(report), "Recalibrate " + serial,
+                                              JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options,
+                                              options[options.length - 1]);
+    if (choice < 0 || options[choice].equals("Cancel")) {
+      return;
+    }
+    if (options[choice].equals("Revert to EEPROM")) {
+      Recalibration.clear(serial);
+      acquisition.setCalibration(null);
+      showMessageDialog(this, "EEPROM calibration will be used from the next scan", "Recalibrate",
+                        JOptionPane.PLAIN_MESSAGE, null);
+      return;
+    }
+    if (options[choice].equals("Use and Write EEPROM")) {
+      if (JOptionPane.showConfirmDialog(this, "Overwrite the calibration stored in the USB4000?", "Warning",
+                                        JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE, null) != JOptionPane.OK_OPTION) {
+        return;
+      }
+      try {
+        Recalibration.writeEeprom(acquisition.getSession(), fit.coff);
+      } catch (RuntimeException ex) {
+        showMessageDialog(this, ex.getMessage(), "USB4000 Error", JOptionPane.ERROR_MESSAGE, null);
+        return;
+      }
+    }
+    Recalibration.save(serial, fit.coff);
+    acquisition.setCalibration(fit.coff);
+    spectrum.repaint();
+  }
+
+  /**
+   *  Replace any running library search with one using the loaded library
+   *  @param metric 0 for none, 1 for cosine similarity or 2 for correlation
+   */
+  private void startLibrarySearch (Acquisition acquisition, Spectrum spectrum, int metric) {
+    if (librarySearch != null) {
+      librarySearch.close();
+      librarySearch = null;
+    }
+    if (library != null && metric > 0) {
+      librarySearch = new SpectralLibrary.Search(acquisition, library, SpectralLibrary.Metric.values()[metric - 1], 5,
+                                                 spectrum::repaint);
+    }
+    spectrum.setLibrarySearch(librarySearch);
+  }
+
+  /**
+   *  Show the baseline removal settings and, if accepted, apply and save them
+   */
+  private void editBaselineSettings (BaselineRemoval baseline) {
+    JTextField lambda = new JTextField(Double.toString(baseline.getLambda()));
+    JTextField asymmetry = new JTextField(Double.toString(baseline.getAsymmetry()));
+    JTextField alsIterations = new JTextField(Integer.toString(baseline.getAlsIterations()));
+    JTextField radius = new JTextField(Integer.toString(baseline.getRadius()));
+    JTextField degree = new JTextField(Integer.toString(baseline.getDegree()));
+    JTextField polyIterations = new JTextField(Integer.toString(baseline.getPolyIterations()));
+    JPanel panel = new JPanel(new GridLayout(0, 2, 8, 2));
+    panel.add(new JLabel("ALS smoothness (lambda):"));
+    panel.add(lambda);
+    panel.add(new JLabel("ALS asymmetry (0.001 - 0.1):"));
+    panel.add(asymmetry);
+    panel.add(new JLabel("ALS iterations:"));
+    panel.add(alsIterations);
+    panel.add(new JLabel("Rolling ball radius (pixels):"));
+    panel.add(radius);
+    panel.add(new JLabel("Polynomial degree (1 - 10):"));
+    panel.add(degree);
+    panel.add(new JLabel("Polynomial iterations:"));
+    panel.add(polyIterations);
+    if (JOptionPane.showConfirmDialog(this, panel, "Baseline Settings", JOptionPane.OK_CANCEL_OPTION,
+                                      JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION) {
+      try {
+        // Parse everything before applying anything, so a bad value changes nothing
+        double lam = Double.parseDouble(lambda.getText().trim());
+        double asym = Double.parseDouble(asymmetry.getText().trim());
+        int alsIter = Integer.parseInt(alsIterations.getText().trim());
+        int rad = Integer.parseInt(radius.getText().trim());
+        int deg = Integer.parseInt(degree.getText().trim());
+        int polyIter = Integer.parseInt(polyIterations.getText().trim());
+        baseline.setAls(lam, asym, alsIter);
+        baseline.setRadius(rad);
+        baseline.setPolynomial(deg, polyIter);
+      } catch (NumberFormatException ex) {
+        showMessageDialog(this, "Invalid number: " + ex.getMessage(), "Baseline Settings", JOptionPane.ERROR_MESSAGE,
+                          null);
+        return;
+      }
+      // Save the values as limited by BaselineRemoval
+      prefs.putDouble("baseline.lambda", baseline.getLambda());
+      prefs.putDouble("baseline.asymmetry", baseline.getAsymmetry());
+      prefs.putInt("baseline.alsIterations", baseline.getAlsIterations());
+      prefs.putInt("baseline.radius", baseline.getRadius());
+      prefs.putInt("baseline.degree", baseline.getDegree());
+      prefs.putInt("baseline.polyIterations", baseline.getPolyIterations());
+    }
+  }
+
+  /**
+   *  Show a file chooser and, when saving, confirm before overwriting an existing file
+   *  @return selected file, or null if cancelled
+   */
+  private File chooseFile (String title, String description, String ext, String defaultName, boolean save) {
+    JFileChooser fileChooser = new JFileChooser();
+    fileChooser.setDialogTitle(title);
+    FileNameExtensionFilter nameFilter = new FileNameExtensionFilter(description, ext);
+    fileChooser.addChoosableFileFilter(nameFilter);
+    fileChooser.setFileFilter(nameFilter);
+    String dir = prefs.get("default.dir", null);
+    File file = new File(defaultName);
+    fileChooser.setSelectedFile(dir != null && !file.isAbsolute() ? new File(new File(dir).getParentFile(), defaultName) : file);
+    if ((save ? fileChooser.showSaveDialog(this) : fileChooser.showOpenDialog(this)) == JFileChooser.APPROVE_OPTION) {
+      file = fileChooser.getSelectedFile();
+      if (save && file.exists() && JOptionPane
+          .showConfirmDialog(this, "Overwrite Existing file?", "Warning", JOptionPane.YES_NO_OPTION,
+                             JOptionPane.WARNING_MESSAGE, null) != JOptionPane.OK_OPTION) {
+        return null;
+      }
+      prefs.put("default.dir", file.getAbsolutePath());
+      return file;
+    }
+    return null;
+  }
+
   public static void main (String[] args) {
     new USB4000();
   }
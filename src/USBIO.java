@@ -3,21 +3,37 @@ import org.usb4java.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  *  Implements a bulk transfer I/O driver that uses usb4java to communicate with a USB Device
  *  such as a Silhouette Curio, Cameo or Portrait using the Usb4Java Library.
  *
+ *  Bulk IN reads can also be queued asynchronously with bulkRead(), in which case a daemon
+ *  thread is started to run the libusb event loop that completes them.
+ *
  *  See: http://usb4java.org, and http://usb4java.org/apidocs/index.html for more info
  */
 
-class USBIO {
-  private static final int  TIMEOUT = 500;
-  private DeviceHandle      handle;
-  private Context           context = new Context();
-  private byte              iFace, outEnd, inEnd;
+class USBIO implements USBTransport {
+  private static final int      TIMEOUT = 500;
+  private DeviceHandle          handle;
+  private Context               context = new Context();
+  private byte                  iFace, outEnd, inEnd;
+  private final List<AsyncRead> reads = new ArrayList<>();
+  private Thread                eventThread;
+  private volatile boolean      handleEvents;
 
   USBIO (short vendorId, short productId, byte iFace, byte outEnd, byte inEnd) {
+    this(vendorId, productId, iFace, outEnd, inEnd, 0);
+  }
+
+  /**
+   *  Open the index'th device, in bus order, that matches vendorId and productId, or the next
+   *  one after it that can be opened and claimed
+   */
+  USBIO (short vendorId, short productId, byte iFace, byte outEnd, byte inEnd, int index) {
     this.iFace = iFace;
     this.outEnd = outEnd;
     this.inEnd = inEnd;
@@ -27,31 +43,75 @@ class USBIO {
     }
     DeviceList list = new DeviceList();
     if ((error = LibUsb.getDeviceList(context, list)) < 0) {
+      LibUsb.exit(context);
       throw new LibUsbException("Unable to get device list", error);
     }
-    for (Device device : list) {
-      DeviceDescriptor desc = new DeviceDescriptor();
-      LibUsb.getDeviceDescriptor(device, desc);
-      if (desc.idVendor() == vendorId && desc.idProduct() == productId) {
-        handle = new DeviceHandle();
-        if ((error = LibUsb.open(device, handle)) >= 0) {
-          if ((error = LibUsb.claimInterface(handle, iFace)) == LibUsb.SUCCESS) {
-            return;
-          } else {
-            if (LibUsb.detachKernelDriver(handle, iFace) == LibUsb.SUCCESS) {
-              if ((error = LibUsb.claimInterface(handle, iFace)) == LibUsb.SUCCESS) {
+    // Release whatever was acquired unless a device was claimed, as sessions retry opening every
+    // second while the device is unplugged, and probing skips devices that are in use
+    try {
+      int match = 0;
+      for (Device device : list) {
+        DeviceDescriptor desc = new DeviceDescriptor();
+        LibUsb.getDeviceDescriptor(device, desc);
+        if (desc.idVendor() == vendorId && desc.idProduct() == productId && match++ >= index) {
+          DeviceHandle candidate = new DeviceHandle();
+          if ((error = LibUsb.open(device, candidate)) >= 0) {
+            if ((error = LibUsb.claimInterface(candidate, iFace)) == LibUsb.SUCCESS) {
+              handle = candidate;
+              return;
+            } else if (LibUsb.detachKernelDriver(candidate, iFace) == LibUsb.SUCCESS) {
+              if ((error = LibUsb.claimInterface(candidate, iFace)) == LibUsb.SUCCESS) {
+                handle = candidate;
                 return;
               }
+              LibUsb.close(candidate);
               throw new LibUsbException("Unable to claim interface", error);
             }
+            LibUsb.close(candidate);
           }
         }
       }
+    } finally {
+      // The open handle holds its own reference to its device
+      LibUsb.freeDeviceList(list, true);
+      if (handle == null) {
+        LibUsb.exit(context);
+      }
     }
     throw new LibUsbException("Unable to open device", error);
   }
 
-  void send (byte[] data) {
+  /**
+   *  @return number of attached devices that match vendorId and productId, whether or not
+   *  they're in use
+   */
+  static int countDevices (short vendorId, short productId) {
+    Context context = new Context();
+    int error = LibUsb.init(context);
+    if (error != LibUsb.SUCCESS) {
+      throw new LibUsbException("Unable to initialize libusb", error);
+    }
+    DeviceList list = new DeviceList();
+    try {
+      if ((error = LibUsb.getDeviceList(context, list)) < 0) {
+        throw new LibUsbException("Unable to get device list", error);
+      }
+      int count = 0;
+      for (Device device : list) {
+        DeviceDescriptor desc = new DeviceDescriptor();
+        LibUsb.getDeviceDescriptor(device, desc);
+        if (desc.idVendor() == vendorId && desc.idProduct() == productId) {
+          count++;
+        }
+      }
+      LibUsb.freeDeviceList(list, true);
+      return count;
+    } finally {
+      LibUsb.exit(context);
+    }
+  }
+
+  public void send (byte[] data) {
     ByteBuffer outBuf = BufferUtils.allocateByteBuffer(data.length);
     outBuf.put(data);
     IntBuffer outNum = IntBuffer.allocate(1);
@@ -61,11 +121,11 @@ class USBIO {
     }
   }
 
-  byte[] receive () {
+  public byte[] receive () {
     return receive(inEnd, 64);
   }
 
-  byte[] receive (byte eIn, int bSize) {
+  public byte[] receive (byte eIn, int bSize) {
     ByteBuffer inBuf = ByteBuffer.allocateDirect(bSize).order(ByteOrder.LITTLE_ENDIAN);
     IntBuffer inNum = IntBuffer.allocate(1);  // Used to get bytes read count
     if (LibUsb.bulkTransfer(handle, eIn, inBuf, inNum, TIMEOUT) >= 0) {
@@ -84,7 +144,142 @@ class USBIO {
     return new byte[0];
   }
 
-  void close () {
+  /**
+   *  Allocate an asynchronous bulk read into buf, which must be a direct buffer.  The first call
+   *  starts the thread that runs the libusb event loop.
+   */
+  public BulkRead bulkRead (byte eIn, ByteBuffer buf) {
+    if (!buf.isDirect()) {
+      throw new IllegalArgumentException("buf must be a direct ByteBuffer");
+    }
+    synchronized (reads) {
+      if (eventThread == null) {
+        handleEvents = true;
+        eventThread = new Thread(() -> {
+          while (handleEvents) {
+            int error = LibUsb.handleEventsTimeout(context, 100000);
+            if (error != LibUsb.SUCCESS && error != LibUsb.ERROR_INTERRUPTED) {
+              break;
+            }
+          }
+        }, "libusb events");
+        eventThread.setDaemon(true);
+        eventThread.start();
+      }
+      AsyncRead read = new AsyncRead(eIn, buf);
+      reads.add(read);
+      return read;
+    }
+  }
+
+  private class AsyncRead implements BulkRead, TransferCallback {
+    private final Transfer    transfer = LibUsb.allocTransfer();
+    private final ByteBuffer  buf;
+    private boolean           pending;
+    private int               result;
+
+    AsyncRead (byte eIn, ByteBuffer buf) {
+      this.buf = buf;
+      // Timeout of 0 as the read is usually queued well before the device has data to send
+      LibUsb.fillBulkTransfer(transfer, handle, eIn, buf, this, null, 0);
+    }
+
+    public synchronized void submit () {
+      if (pending) {
+        throw new IllegalStateException("Read is already queued");
+      }
+      int error = LibUsb.submitTransfer(transfer);
+      if (error != LibUsb.SUCCESS) {
+        throw new LibUsbException("Unable to submit transfer", error);
+      }
+      pending = true;
+    }
+
+    // Called on the event thread
+    public synchronized void processTransfer (Transfer transfer) {
+      int status = transfer.status();
+      if (status == LibUsb.TRANSFER_COMPLETED) {
+        result = transfer.actualLength();
+      } else if (status == LibUsb.TRANSFER_TIMED_OUT) {
+        result = LibUsb.ERROR_TIMEOUT;
+      } else if (status == LibUsb.TRANSFER_CANCELLED) {
+        result = LibUsb.ERROR_INTERRUPTED;
+      } else if (status == LibUsb.TRANSFER_NO_DEVICE) {
+        result = LibUsb.ERROR_NO_DEVICE;
+      } else if (status == LibUsb.TRANSFER_STALL) {
+        result = LibUsb.ERROR_PIPE;
+      } else if (status == LibUsb.TRANSFER_OVERFLOW) {
+        result = LibUsb.ERROR_OVERFLOW;
+      } else {
+        result = LibUsb.ERROR_IO;
+      }
+      pending = false;
+      notifyAll();
+    }
+
+    public synchronized int await (long timeout) {
+      long deadline = System.nanoTime() + timeout * 1000000L;
+      try {
+        while (pending) {
+          long remaining = (deadline - System.nanoTime()) / 1000000L;
+          if (remaining <= 0) {
+            cancel();
+            return LibUsb.ERROR_TIMEOUT;
+          }
+          wait(remaining);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        cancel();
+        return LibUsb.ERROR_INTERRUPTED;
+      }
+      return result;
+    }
+
+    public synchronized void cancel () {
+      if (pending && LibUsb.cancelTransfer(transfer) == LibUsb.SUCCESS) {
+        // Wait for the event thread to deliver the cancellation
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (pending && System.currentTimeMillis() < deadline) {
+          try {
+            wait(TIMEOUT);
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+      }
+    }
+
+    public ByteBuffer buffer () {
+      return buf;
+    }
+  }
+
+  public void close () {
+    synchronized (reads) {
+      for (AsyncRead read : reads) {
+        read.cancel();
+      }
+      if (eventThread != null) {
+        handleEvents = false;
+        try {
+          eventThread.join(TIMEOUT);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        eventThread = null;
+      }
+      for (AsyncRead read : reads) {
+        synchronized (read) {
+          // Leak, rather than free, a transfer libusb may still write to
+          if (!read.pending) {
+            LibUsb.freeTransfer(read.transfer);
+          }
+        }
+      }
+      reads.clear();
+    }
     try {
       int error = LibUsb.releaseInterface(handle, iFace);
       if (error != LibUsb.SUCCESS) {
@@ -0,0 +1,44 @@
+import java.nio.ByteBuffer;
+
+/**
+ *  Abstracts the bulk endpoint I/O used to talk to the USB4000 so that a fake device can
+ *  stand in for the real one when no spectrometer is attached.
+ */
+
+interface USBTransport {
+
+  /**
+   *  A preallocated bulk IN read that can be queued ahead of the command that causes the
+   *  device to send data, and then resubmitted for the next scan without reallocation.
+   */
+  interface BulkRead {
+    /**
+     *  Queue the read.  Must not be called again until await() has returned.
+     */
+    void submit ();
+
+    /**
+     *  Wait for the read to complete
+     *  @param timeout maximum time to wait in milliseconds
+     *  @return number of bytes read, or a negative LibUsb error code
+     */
+    int await (long timeout);
+
+    /**
+     *  Cancel the read, if queued, and wait for the cancellation to complete
+     */
+    void cancel ();
+
+    ByteBuffer buffer ();
+  }
+
+  void send (byte[] data);
+
+  byte[] receive ();
+
+  byte[] receive (byte eIn, int bSize);
+
+  BulkRead bulkRead (byte eIn, ByteBuffer buf);
+
+  void close ();
+}
@@ -0,0 +1,320 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ *  Scrolling waterfall of recent frames, newest at the top.  Each frame (or the mean of several)
+ *  becomes one row of a color mapped image, written straight into the image's pixels through a
+ *  65,536 entry color table, so each frame costs one pass over its pixels however long the
+ *  history is.  The image is a circular buffer of rows: the newest row's index advances and wraps,
+ *  and painting draws the two halves either side of it, so nothing is ever copied to scroll.
+ *
+ *  History is bounded by the depth, in rows, so memory is fixed at 4 bytes per usable pixel per
+ *  row, and the depth is limited to MAX_DEPTH rows (about 120 MB), or fewer if that would take
+ *  more than a quarter of the heap.  Averaging several frames per row stretches it, as at 90 scans/s a row per 64 frames keeps
+ *  about 25 minutes in 2048 rows.  The mouse wheel scrolls back through the history, which then
+ *  stays put as new rows arrive, and a double click returns to following the newest.
+ *
+ *  Values are mapped from a fixed range, which is set with setRange() or, by default, from the
+ *  first frame after clear() or a change of units, so rows already drawn never need redrawing.
+ */
+
+class WaterfallPanel extends JPanel {
+  private static final int      LUT_SIZE = 65536;
+  private static final int[]    lut = new int[LUT_SIZE];
+  // Position and RGB of each color stop, dark to bright
+  private static final float[][] stops = {{0, 0, 0, 0}, {0.15f, 40, 10, 100}, {0.35f, 130, 20, 130},
+                                          {0.55f, 220, 50, 60}, {0.75f, 250, 150, 20}, {1, 255, 255, 210}};
+  private static final int      usableStart = Acquisition.usableStart;
+  private static final int      usableEnd = Acquisition.usableEnd;
+  private static final int      width = usableEnd - usableStart;
+  static final int              MAX_DEPTH = 8192;
+  private final Acquisition     acquisition;
+  private final Acquisition.FrameListener listener = this::frameAcquired;
+  private boolean               listening;
+  private BufferedImage         image;
+  private int[]                 pixels;                 // The image's pixels, written directly
+  private long[]                rowNanos;               // System.nanoTime() of the last frame in each row
+  private float[]               sums = new float[width];
+  private int                   depth;
+  private volatile int          head = -1;              // Row holding the newest frame, or -1 if none
+  private volatile long         rows;                   // Rows written since cleared
+  private int                   framesPerRow = 1, summed;
+  private boolean               autoRange = true;
+  private SpectrumProcessor.Mode rangeMode;
+  private float                 low, scale;             // Value at color 0, and colors per unit of value
+  private double                viewStart = usableStart, viewScale = 2;
+  private int                   back;                   // Rows scrolled back from the newest, 0 to follow
+  private long                  pinnedAt;               // Rows written when scrolled back
+
+  static {
+    for (int ii = 0; ii < LUT_SIZE; ii++) {
+      float pos = (float) ii / (LUT_SIZE - 1);
+      int stop = 1;
+      while (stop < stops.length - 1 && pos > stops[stop][0]) {
+        stop++;
+      }
+      float[] lo = stops[stop - 1], hi = stops[stop];
+      float frac = (pos - lo[0]) / (hi[0] - lo[0]);
+      int rgb = 0;
+      for (int jj = 1; jj <= 3; jj++) {
+        rgb = (rgb << 8) | Math.round(lo[jj] + frac * (hi[jj] - lo[jj]));
+      }
+      lut[ii] = rgb;
+    }
+  }
+
+  /**
+   *  @param depth rows of history kept
+   */
+  WaterfallPanel (Acquisition acquisition, int depth) {
+    this.acquisition = acquisition;
+    setDepth(depth);
+    setPreferredSize(new Dimension(width / 2, 200));
+    setBackground(Color.black);
+    ToolTipManager.sharedInstance().registerComponent(this);
+    MouseAdapter mouse = new MouseAdapter() {
+      @Override
+      public void mouseClicked (MouseEvent ev) {
+        if (ev.getClickCount() == 2) {
+          back = 0;
+          repaint();
+        }
+      }
+    };
+    addMouseListener(mouse);
+    addMouseWheelListener(ev -> {
+      long count = rows;
+      int current = rowsBack(count);
+      back = (int) Math.max(0, Math.min(Math.min(count, this.depth) - 1, current + ev.getWheelRotation() * 10L));
+      pinnedAt = count;
+      repaint();
+    });
+  }
+
+  /**
+   *  @param show true to add each frame to the waterfall and show it, or false to hide it and
+   *  stop taking frames, so it costs nothing while hidden
+   */
+  void setShowing (boolean show) {
+    if (show != listening) {
+      if (show) {
+        acquisition.addFrameListener(listener);
+      } else {
+        acquisition.removeFrameListener(listener);
+      }
+      listening = show;
+    }
+    setVisible(show);
+  }
+
+  /**
+   *  @return most rows of history that may be kept, MAX_DEPTH unless the heap is too small
+   */
+  static int maxDepth () {
+    return (int) Math.max(1, Math.min(MAX_DEPTH, Runtime.getRuntime().maxMemory() / 4 / bytes(1)));
+  }
+
+  /**
+   *  @return bytes used by this many rows of history
+   */
+  static long bytes (int rows) {
+    return (long) rows * width * 4;
+  }
+
+  /**
+   *  Set the number of rows of history kept, limited to maxDepth(), which clears it
+   */
+  synchronized void setDepth (int depth) {
+    depth = Math.max(1, Math.min(maxDepth(), depth));
+    if (depth != this.depth) {
+      this.depth = depth;
+      image = new BufferedImage(width, depth, BufferedImage.TYPE_INT_RGB);
+      pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+      rowNanos = new long[depth];
+    }
+    clear();
+  }
+
+  int getDepth () {
+    return depth;
+  }
+
+  /**
+   *  @param frames number of frames averaged into each row
+   */
+  synchronized void setFramesPerRow (int frames) {
+    framesPerRow = Math.max(1, frames);
+    summed = 0;
+  }
+
+  /**
+   *  Map values from low to high onto the color scale, in the units of the frames' mode
+   */
+  synchronized void setRange (float low, float high) {
+    autoRange = false;
+    setScale(low, high);
+  }
+
+  /**
+   *  Set the range from the next frame, and again whenever the units change
+   */
+  synchronized void setAutoRange () {
+    autoRange = true;
+    rangeMode = null;
+  }
+
+  private void setScale (float low, float high) {
+    this.low = low;
+    scale = high > low ? (LUT_SIZE - 1) / (high - low) : 0;
+  }
+
+  /**
+   *  Discard the history
+   */
+  synchronized void clear () {
+    head = -1;
+    rows = 0;
+    summed = 0;
+    back = 0;
+    if (autoRange) {
+      rangeMode = null;
+    }
+    Arrays.fill(pixels, 0);
+    repaint();
+  }
+
+  /**
+   *  Match the Spectrum's horizontal view, so each column lines up with the trace above it
+   *  @param start pixel at the left edge
+   *  @param scale pixels per screen column
+   */
+  void setView (double start, double scale) {
+    if (start != viewStart || scale != viewScale) {
+      viewStart = start;
+      viewScale = scale;
+      repaint();
+    }
+  }
+
+  /**
+   *  Add a frame, on the acquisition thread.  Painting doesn't lock, so at worst the row being
+   *  written shows half old and half new for one repaint.
+   */
+  private synchronized void frameAcquired (FrameRing.Frame frame) {
+    float[] values = frame.values;
+    int end = Math.min(usableEnd, frame.length);
+    if (end <= usableStart) {
+      return;
+    }
+    if (frame.mode != rangeMode) {
+      // Units changed, so partly averaged rows can't be finished
+      summed = 0;
+      if (autoRange) {
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (int ii = usableStart; ii < end; ii++) {
+          min = Math.min(min, values[ii]);
+          max = Math.max(max, values[ii]);
+        }
+        setScale(min, max + (max - min) * 0.1f);
+      }
+      rangeMode = frame.mode;
+    }
+    float[] src = values;
+    int offset = usableStart;
+    float mul = scale;
+    if (framesPerRow > 1) {
+      float[] acc = sums;
+      if (summed == 0) {
+        System.arraycopy(values, usableStart, acc, 0, end - usableStart);
+      } else {
+        for (int ii = usableStart; ii < end; ii++) {
+          acc[ii - usableStart] += values[ii];
+        }
+      }
+      if (++summed < framesPerRow) {
+        return;
+      }
+      src = acc;
+      offset = 0;
+      mul /= framesPerRow;
+    }
+    summed = 0;
+    int row = head + 1 < depth ? head + 1 : 0;
+    int base = row * width;
+    int count = end - usableStart;
+    // Scaling the sum rather than each value folds the division by framesPerRow into mul
+    float zero = framesPerRow > 1 ? low * framesPerRow : low;
+    for (int ii = 0; ii < count; ii++) {
+      int idx = (int) ((src[offset + ii] - zero) * mul);
+      pixels[base + ii] = lut[idx < 0 ? 0 : idx >= LUT_SIZE ? LUT_SIZE - 1 : idx];
+    }
+    rowNanos[row] = frame.nanos;
+    head = row;
+    rows++;
+    repaint();
+  }
+
+  /**
+   *  @return rows scrolled back, grown by the rows written since scrolling so the view stays put
+   */
+  private int rowsBack (long count) {
+    if (back == 0) {
+      return 0;
+    }
+    return (int) Math.min(Math.min(count, depth) - 1, back + count - pinnedAt);
+  }
+
+  @Override
+  protected void paintComponent (Graphics g) {
+    super.paintComponent(g);
+    BufferedImage img = image;
+    int newest = head;
+    long count = rows;
+    if (newest < 0 || img.getHeight() != depth) {
+      return;
+    }
+    Graphics2D g2 = (Graphics2D) g.create();
+    int filled = (int) Math.min(count, depth);
+    int skip = rowsBack(count);
+    int top = Math.floorMod(newest - skip, depth);
+    int visible = Math.min(getHeight(), filled - skip);
+    double sx = 1 / viewScale;
+    double tx = (usableStart - viewStart) / viewScale;
+    // Rows from top down to 0, flipped so the newest is at the top
+    int first = Math.min(visible, top + 1);
+    Shape clip = g2.getClip();
+    g2.clipRect(0, 0, getWidth(), first);
+    g2.drawImage(img, new AffineTransform(sx, 0, 0, -1, tx, top + 1), null);
+    if (visible > first) {
+      // Then from the last row of the image down, as the buffer wraps
+      g2.setClip(clip);
+      g2.clipRect(0, first, getWidth(), visible - first);
+      g2.drawImage(img, new AffineTransform(sx, 0, 0, -1, tx, first + depth), null);
+    }
+    g2.dispose();
+    if (skip > 0) {
+      g.setColor(Color.white);
+      g.drawString(String.format("%.1f s ago", (rowNanos[newest] - rowNanos[top]) / 1e9), 5, 15);
+    }
+  }
+
+  @Override
+  public String getToolTipText (MouseEvent ev) {
+    int newest = head;
+    long count = rows;
+    int skip = rowsBack(count);
+    Calibration cal = acquisition.getCalibration();
+    if (newest < 0 || cal == null || ev.getY() >= Math.min(count, depth) - skip) {
+      return null;
+    }
+    int row = Math.floorMod(newest - skip - ev.getY(), depth);
+    double nm = cal.pixelToNanometers(viewStart + ev.getX() * viewScale);
+    return String.format("%.1f nm, %.1f s ago", nm, (rowNanos[newest] - rowNanos[row]) / 1e9);
+  }
+}
@@ -3,9 +3,28 @@ import java.awt.*;
   // Adapted from https://gist.github.com/friendly/67a7df339aa999e2bcfcfec88311abfc
 
 class WavelengthToRGB {
-  private static final double gamma = 0.8;
+  private static final double   gamma = 0.8;
+  private static final double   MIN_NM = 380, MAX_NM = 750, STEP = 0.1;
+  private static final Color[]  colors = new Color[(int) Math.round((MAX_NM - MIN_NM) / STEP) + 1];
 
-   static Color getRBG (double wavelength) {
+  static {
+    // Computed once at every STEP, as painting asks for a color per pixel on every frame
+    for (int ii = 0; ii < colors.length; ii++) {
+      colors[ii] = compute(MIN_NM + ii * STEP);
+    }
+  }
+
+  /**
+   *  @return approximate color of a wavelength, to the nearest STEP nm, or white outside the visible range
+   */
+  static Color getRBG (double wavelength) {
+    if (wavelength >= MIN_NM && wavelength <= MAX_NM) {
+      return colors[(int) ((wavelength - MIN_NM) / STEP + 0.5)];
+    }
+    return Color.white;
+  }
+
+   private static Color compute (double wavelength) {
      double R = 0, G = 0, B = 0;
      if (wavelength >= 380 & wavelength <= 440) {
       double attenuation = 0.3 + 0.7 * (wavelength - 380) / (440 - 380);